@@ -0,0 +1,118 @@
+package io.webthings.webthing.benchmark;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import io.webthings.webthing.Codec;
+import io.webthings.webthing.DoubleValue;
+import io.webthings.webthing.Property;
+import io.webthings.webthing.Thing;
+
+/**
+ * Encoded size and encode/decode cost of JSON and CBOR for typical payloads.
+ * The {@code encodedBytes} counter, divided by the operation count, gives the
+ * encoded size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @State(Scope.Thread)
+    public static class Payload {
+        @Param({"json", "cbor"})
+        String codecName;
+
+        @Param({"propertyStatus", "actionDescriptions", "thingDescription"})
+        String payload;
+
+        Codec codec;
+        JSONObject value;
+        byte[] encoded;
+
+        @Setup
+        public void setup() throws Exception {
+            this.codec = this.codecName.equals("cbor") ? Codec.CBOR : Codec.JSON;
+
+            Thing thing = new Thing("urn:dev:ops:benchmark",
+                                    "Benchmark",
+                                    new JSONArray().put("MultiLevelSensor"),
+                                    "A sensor");
+            for (String name : new String[]{"temperature", "humidity", "pressure"}) {
+                JSONObject metadata = new JSONObject();
+                metadata.put("@type", "LevelProperty");
+                metadata.put("title", name);
+                metadata.put("type", "number");
+                metadata.put("minimum", 0);
+                metadata.put("maximum", 1100);
+                metadata.put("readOnly", true);
+                thing.addProperty(new Property<>(thing,
+                                                 name,
+                                                 new DoubleValue(21.5),
+                                                 metadata));
+            }
+
+            switch (this.payload) {
+                case "propertyStatus":
+                    this.value = new JSONObject().put("messageType",
+                                                      "propertyStatus")
+                                                 .put("data",
+                                                      thing.getProperties());
+                    break;
+                case "actionDescriptions": {
+                    JSONArray actions = new JSONArray();
+                    for (int i = 0; i < 10; ++i) {
+                        actions.put(new JSONObject(
+                                "{\"fade\":{\"href\":\"/actions/fade/" + i +
+                                        "b1e4c3a-9f7d-2f6c1b0e8a41\"," +
+                                        "\"timeRequested\":\"2021-01-05T10:20:30+00:00\"," +
+                                        "\"status\":\"completed\",\"input\":" +
+                                        "{\"brightness\":" + (i * 10) +
+                                        ",\"duration\":1000}," +
+                                        "\"timeCompleted\":\"2021-01-05T10:20:31+00:00\"}}"));
+                    }
+                    this.value = new JSONObject().put("actions", actions);
+                    break;
+                }
+                default:
+                    this.value = thing.asThingDescription();
+                    break;
+            }
+
+            this.encoded = this.codec.encode(this.value);
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long encodedBytes;
+    }
+
+    @Benchmark
+    public byte[] encode(Payload payload, Bytes bytes) {
+        byte[] encoded = payload.codec.encode(payload.value);
+        bytes.encodedBytes += encoded.length;
+        return encoded;
+    }
+
+    @Benchmark
+    public Object decode(Payload payload) {
+        return payload.codec.decode(payload.encoded);
+    }
+}
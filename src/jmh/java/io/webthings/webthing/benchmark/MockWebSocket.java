@@ -0,0 +1,30 @@
+package io.webthings.webthing.benchmark;
+
+import java.lang.reflect.Proxy;
+
+import fi.iki.elonen.NanoHTTPD;
+import io.webthings.webthing.Thing;
+import io.webthings.webthing.WebThingServer;
+
+/**
+ * A subscriber which counts the messages sent to it instead of writing them
+ * to a connection.
+ */
+class MockWebSocket extends WebThingServer.ThingHandler.ThingWebSocket {
+    long messages;
+    long characters;
+
+    MockWebSocket(Thing thing) {
+        super(thing,
+              (NanoHTTPD.IHTTPSession) Proxy.newProxyInstance(
+                      NanoHTTPD.IHTTPSession.class.getClassLoader(),
+                      new Class<?>[]{NanoHTTPD.IHTTPSession.class},
+                      (proxy, method, args) -> null));
+    }
+
+    @Override
+    public void sendMessage(String message) {
+        ++this.messages;
+        this.characters += message.length();
+    }
+}
@@ -0,0 +1,73 @@
+package io.webthings.webthing.benchmark;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import io.webthings.webthing.Property;
+import io.webthings.webthing.Thing;
+import io.webthings.webthing.Value;
+import io.webthings.webthing.errors.PropertyError;
+
+/**
+ * Setting a property through {@link Property#setValue}, which validates the
+ * new value against the property's metadata before notifying the thing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropertyBenchmark {
+    @State(Scope.Thread)
+    public static class Properties {
+        /**
+         * The metadata to validate against: none, a type, or a type with
+         * bounds and a unit as most level properties have.
+         */
+        @Param({"none", "type", "bounded"})
+        String metadata;
+
+        Property<Integer> property;
+        int next;
+
+        @Setup
+        public void setup() {
+            JSONObject metadata = new JSONObject();
+            if (!this.metadata.equals("none")) {
+                metadata.put("type", "integer");
+            }
+            if (this.metadata.equals("bounded")) {
+                metadata.put("@type", "BrightnessProperty");
+                metadata.put("title", "Brightness");
+                metadata.put("minimum", 0);
+                metadata.put("maximum", 100);
+                metadata.put("unit", "percent");
+            }
+
+            Thing thing = new Thing("urn:dev:ops:benchmark", "Benchmark");
+            this.property = new Property<>(thing,
+                                           "brightness",
+                                           new Value<>(0),
+                                           metadata);
+            thing.addProperty(this.property);
+        }
+    }
+
+    @Benchmark
+    public void setValue(Properties properties) throws PropertyError {
+        properties.next = (properties.next + 1) % 100;
+        properties.property.setValue(properties.next);
+    }
+}
@@ -0,0 +1,48 @@
+package io.webthings.webthing.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import io.webthings.webthing.Utils;
+import io.webthings.webthing.WebThingServer;
+
+/**
+ * Per-request helpers: URI parameter extraction in the handlers and
+ * timestamps for actions and events.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerBenchmark {
+    @State(Scope.Thread)
+    public static class Uris {
+        @Param({"/properties/brightness",
+                "/0/actions/fade/8c1f5a1e-5b1e-4c3a-9f7d-2f6c1b0e8a41"})
+        String uri;
+
+        final WebThingServer.BaseHandler handler =
+                new WebThingServer.BaseHandler();
+    }
+
+    @Benchmark
+    public String getUriParam(Uris uris) {
+        return uris.handler.getUriParam(uris.uri, 2);
+    }
+
+    @Benchmark
+    public String timestamp() {
+        return Utils.timestamp();
+    }
+}
@@ -0,0 +1,95 @@
+package io.webthings.webthing.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import io.webthings.webthing.Thing;
+import io.webthings.webthing.WebThingServer;
+
+/**
+ * Time from constructing and starting a server to the first response to a
+ * request, which no longer waits for mDNS registration. Stopping the server,
+ * which waits for mDNS to say goodbye, is not measured.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark {
+    private static final byte[] REQUEST =
+            "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII);
+
+    @State(Scope.Thread)
+    public static class Server {
+        int port;
+        WebThingServer server;
+
+        @Setup(Level.Invocation)
+        public void setup() throws IOException {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                this.port = socket.getLocalPort();
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            if (this.server != null) {
+                this.server.stop();
+                this.server = null;
+            }
+        }
+    }
+
+    @Benchmark
+    public int timeToFirstRequest(Server state) throws IOException {
+        state.server =
+                new WebThingServer(new WebThingServer.SingleThing(
+                        new Thing("urn:dev:ops:startup", "Startup")),
+                                   state.port,
+                                   null,
+                                   null,
+                                   null,
+                                   "/",
+                                   true);
+        state.server.start(true);
+        return firstResponse(state.port);
+    }
+
+    private static int firstResponse(int port) throws IOException {
+        while (true) {
+            try (Socket socket = new Socket("localhost", port)) {
+                OutputStream out = socket.getOutputStream();
+                out.write(REQUEST);
+                out.flush();
+
+                InputStream in = socket.getInputStream();
+                int first = in.read();
+                if (first != -1) {
+                    return first;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package io.webthings.webthing.benchmark;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.webthings.webthing.Action;
+import io.webthings.webthing.Event;
+import io.webthings.webthing.IntValue;
+import io.webthings.webthing.Property;
+import io.webthings.webthing.Thing;
+
+/**
+ * Thing operations whose cost grows with the number of subscribers, the size
+ * of the description or the length of the action and event history.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThingBenchmark {
+    @State(Scope.Thread)
+    public static class Subscribers {
+        @Param({"1", "10", "100"})
+        int subscribers;
+
+        Thing thing;
+        Property<Integer> property;
+
+        @Setup
+        public void setup() {
+            this.thing = newThing(4);
+            this.property = this.thing.findProperty("property0");
+            for (int i = 0; i < this.subscribers; ++i) {
+                this.thing.addSubscriber(new MockWebSocket(this.thing));
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Description {
+        @Param({"4", "32"})
+        int properties;
+
+        Thing thing;
+
+        @Setup
+        public void setup() {
+            this.thing = newThing(this.properties);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class History {
+        @Param({"10", "100", "1000"})
+        int history;
+
+        Thing thing;
+
+        @Setup
+        public void setup() {
+            this.thing = newThing(1);
+            for (int i = 0; i < this.history; ++i) {
+                JSONObject input = new JSONObject().put("brightness", i % 100);
+                Action action = this.thing.performAction("fade", input);
+                action.start();
+                action.finish();
+                this.thing.addEvent(new Event(this.thing, "overheated", i));
+            }
+        }
+    }
+
+    @Benchmark
+    public void propertyNotify(Subscribers subscribers) {
+        subscribers.thing.propertyNotify(subscribers.property);
+    }
+
+    @Benchmark
+    public JSONObject asThingDescription(Description description) {
+        return description.thing.asThingDescription();
+    }
+
+    @Benchmark
+    public JSONArray getActionDescriptions(History history) {
+        return history.thing.getActionDescriptions(null);
+    }
+
+    @Benchmark
+    public String getActionDescriptionsJson(History history) {
+        return history.thing.getActionDescriptionsJson(null);
+    }
+
+    @Benchmark
+    public JSONArray getEventDescriptions(History history) {
+        return history.thing.getEventDescriptions(null);
+    }
+
+    @Benchmark
+    public String getEventDescriptionsJson(History history) {
+        return history.thing.getEventDescriptionsJson(null);
+    }
+
+    /**
+     * Create a thing with level properties, an action and an event.
+     *
+     * @param properties Number of properties
+     * @return The thing.
+     */
+    static Thing newThing(int properties) {
+        Thing thing = new Thing("urn:dev:ops:benchmark",
+                                "Benchmark",
+                                new JSONArray().put("Light"),
+                                "A dimmable light");
+        for (int i = 0; i < properties; ++i) {
+            JSONObject metadata = new JSONObject();
+            metadata.put("@type", "BrightnessProperty");
+            metadata.put("title", "Brightness " + i);
+            metadata.put("type", "integer");
+            metadata.put("minimum", 0);
+            metadata.put("maximum", 100);
+            metadata.put("unit", "percent");
+            thing.addProperty(new Property<>(thing,
+                                             "property" + i,
+                                             new IntValue(50),
+                                             metadata));
+        }
+
+        JSONObject input = new JSONObject(
+                "{\"type\":\"object\",\"required\":[\"brightness\"]," +
+                        "\"properties\":{\"brightness\":{\"type\":\"integer\"," +
+                        "\"minimum\":0,\"maximum\":100}}}");
+        thing.addAvailableAction("fade",
+                                 new JSONObject().put("title", "Fade")
+                                                 .put("input", input),
+                                 FadeAction.class);
+        thing.addAvailableEvent("overheated",
+                                new JSONObject().put("type", "number")
+                                                .put("unit", "degree celsius"));
+        return thing;
+    }
+
+    public static class FadeAction extends Action {
+        public FadeAction(Thing thing, JSONObject input) {
+            super(UUID.randomUUID().toString(), thing, "fade", input);
+        }
+    }
+}
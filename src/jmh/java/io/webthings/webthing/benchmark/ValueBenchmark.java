@@ -0,0 +1,84 @@
+package io.webthings.webthing.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.webthings.webthing.IntValue;
+import io.webthings.webthing.Value;
+
+/**
+ * Contended updates of a single value from several writer threads, as when a
+ * hardware thread and HTTP request threads update the same property.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValueBenchmark {
+    @State(Scope.Benchmark)
+    public static class SharedValues {
+        final LongAdder notifications = new LongAdder();
+        Value<Integer> boxed;
+        IntValue primitive;
+
+        @Setup
+        public void setup() {
+            this.boxed = new Value<>(0);
+            this.boxed.addListener(v -> this.notifications.increment());
+            this.primitive = new IntValue(0);
+            this.primitive.addListener(v -> this.notifications.increment());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        int next;
+
+        @Setup
+        public void setup() {
+            // Give every writer its own range so most writes are changes.
+            this.next = (int) Thread.currentThread().getId() << 20;
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void boxedMultiWriter(SharedValues values, Writer writer) {
+        values.boxed.notifyOfExternalUpdate(writer.next++);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void primitiveMultiWriter(SharedValues values, Writer writer) {
+        values.primitive.notifyOfExternalUpdate(writer.next++);
+    }
+
+    @Benchmark
+    @Group("primitiveReadWrite")
+    @GroupThreads(3)
+    public void primitiveWriter(SharedValues values, Writer writer) {
+        values.primitive.notifyOfExternalUpdate(writer.next++);
+    }
+
+    @Benchmark
+    @Group("primitiveReadWrite")
+    @GroupThreads(1)
+    public int primitiveReader(SharedValues values) {
+        return values.primitive.getInt();
+    }
+}
@@ -0,0 +1,144 @@
+package io.webthings.webthing.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoWSD;
+import io.webthings.webthing.Thing;
+import io.webthings.webthing.WebSocketCompression;
+import io.webthings.webthing.WebThingServer;
+
+/**
+ * Bandwidth and CPU cost of permessage-deflate for typical notification
+ * messages. The {@code payloadBytes} and {@code wireBytes} counters give the
+ * compression ratio; the primary score gives the CPU cost per message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebSocketCompressionBenchmark {
+    @State(Scope.Thread)
+    public static class Connection {
+        @Param({"none", "noContextTakeover", "contextTakeover"})
+        String mode;
+
+        @Param({"0", "64"})
+        int threshold;
+
+        final Random random = new Random(42);
+        CountingWebSocket socket;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            String offer = "permessage-deflate";
+            WebSocketCompression compression = null;
+            if (this.mode.equals("noContextTakeover")) {
+                offer += "; server_no_context_takeover; client_no_context_takeover";
+            }
+            if (!this.mode.equals("none")) {
+                compression = new WebSocketCompression(-1, this.threshold, 1);
+            }
+
+            this.socket = new CountingWebSocket(
+                    new Thing("urn:dev:ops:benchmark", "Benchmark"),
+                    session(Collections.singletonMap("sec-websocket-extensions",
+                                                     offer)),
+                    compression);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.socket.close();
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long payloadBytes;
+        public long wireBytes;
+    }
+
+    @Benchmark
+    public void propertyStatus(Connection connection, Bytes bytes) {
+        String message = String.format(
+                "{\"messageType\":\"propertyStatus\",\"data\":{\"temperature\":%.2f}}",
+                20 + connection.random.nextDouble() * 5);
+        send(connection, bytes, message);
+    }
+
+    @Benchmark
+    public void actionStatus(Connection connection, Bytes bytes) {
+        String message = String.format(
+                "{\"messageType\":\"actionStatus\",\"data\":{\"fade\":{" +
+                        "\"href\":\"/actions/fade/%08x-5b1e-4c3a-9f7d-2f6c1b0e8a41\"," +
+                        "\"timeRequested\":\"2021-01-05T10:20:30+00:00\"," +
+                        "\"status\":\"completed\",\"input\":{\"brightness\":%d," +
+                        "\"duration\":1000}," +
+                        "\"timeCompleted\":\"2021-01-05T10:20:31+00:00\"}}}",
+                connection.random.nextInt(),
+                connection.random.nextInt(101));
+        send(connection, bytes, message);
+    }
+
+    private static void send(Connection connection, Bytes bytes, String message) {
+        bytes.payloadBytes += message.length();
+        connection.socket.sendMessage(message);
+        bytes.wireBytes += connection.socket.lastPayloadLength;
+    }
+
+    private static NanoHTTPD.IHTTPSession session(Map<String, String> headers) {
+        return (NanoHTTPD.IHTTPSession) Proxy.newProxyInstance(
+                NanoHTTPD.IHTTPSession.class.getClassLoader(),
+                new Class<?>[]{NanoHTTPD.IHTTPSession.class},
+                (proxy, method, args) -> method.getName().equals("getHeaders") ?
+                                         headers :
+                                         null);
+    }
+
+    /**
+     * A websocket which counts the frames it would write instead of writing
+     * them to a connection.
+     */
+    static class CountingWebSocket extends WebThingServer.ThingHandler.ThingWebSocket {
+        int lastPayloadLength;
+
+        CountingWebSocket(Thing thing,
+                          NanoHTTPD.IHTTPSession handshakeRequest,
+                          WebSocketCompression compression) {
+            super(thing, handshakeRequest, compression);
+        }
+
+        @Override
+        public synchronized void sendFrame(NanoWSD.WebSocketFrame frame) {
+            this.lastPayloadLength = frame.getBinaryPayload().length;
+        }
+
+        void close() {
+            this.onClose(NanoWSD.WebSocketFrame.CloseCode.NormalClosure,
+                         null,
+                         false);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package io.webthings.webthing.load;
+
+import org.json.JSONObject;
+
+/**
+ * A latency histogram with logarithmic buckets, each split into linear
+ * sub-buckets, which keeps the relative error of recorded values below 1%
+ * from one nanosecond to hours.
+ * <p>
+ * A histogram is not thread-safe; every thread records into its own and the
+ * histograms are added up for the report.
+ */
+class Histogram {
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    private final long[] counts =
+            new long[SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF];
+    private long count;
+    private long sum;
+    private long max;
+
+    /**
+     * Record a value.
+     *
+     * @param nanos The value, in nanoseconds
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        ++this.counts[index(nanos)];
+        ++this.count;
+        this.sum += nanos;
+        this.max = Math.max(this.max, nanos);
+    }
+
+    /**
+     * Add the values recorded in another histogram.
+     *
+     * @param other The other histogram
+     */
+    void add(Histogram other) {
+        for (int i = 0; i < this.counts.length; ++i) {
+            this.counts[i] += other.counts[i];
+        }
+
+        this.count += other.count;
+        this.sum += other.sum;
+        this.max = Math.max(this.max, other.max);
+    }
+
+    /**
+     * Get the number of recorded values.
+     *
+     * @return The count.
+     */
+    long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Get the value below which a fraction of the recorded values lie.
+     *
+     * @param fraction The fraction, between 0 and 1
+     * @return The value, in nanoseconds, or 0 if nothing was recorded.
+     */
+    long percentile(double fraction) {
+        if (this.count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * this.count));
+        long seen = 0;
+        for (int i = 0; i < this.counts.length; ++i) {
+            seen += this.counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), this.max);
+            }
+        }
+
+        return this.max;
+    }
+
+    /**
+     * Describe the histogram, in microseconds.
+     *
+     * @return The description.
+     */
+    JSONObject asJson() {
+        JSONObject json = new JSONObject();
+        json.put("count", this.count);
+        json.put("meanUs", this.count == 0 ?
+                           0 :
+                           micros(this.sum / this.count));
+        json.put("p50Us", micros(this.percentile(0.5)));
+        json.put("p99Us", micros(this.percentile(0.99)));
+        json.put("p999Us", micros(this.percentile(0.999)));
+        json.put("maxUs", micros(this.max));
+        return json;
+    }
+
+    /**
+     * Get the bucket of a value.
+     * <p>
+     * Values below {@code SUB_BUCKETS} get a bucket each; above that, every
+     * power of two is split into {@code HALF} buckets.
+     *
+     * @param value The value
+     * @return The bucket index.
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int top = (int) (value >>> shift);
+        return SUB_BUCKETS + (shift - 1) * HALF + top - HALF;
+    }
+
+    /**
+     * Get the highest value which falls into a bucket.
+     *
+     * @param index The bucket index
+     * @return The value.
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long top = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * Convert nanoseconds to microseconds.
+     *
+     * @param nanos The value, in nanoseconds
+     * @return The value, in microseconds.
+     */
+    private static double micros(long nanos) {
+        return Math.round(nanos / 100.0) / 10.0;
+    }
+}
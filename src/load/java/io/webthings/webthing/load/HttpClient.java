@@ -0,0 +1,167 @@
+package io.webthings.webthing.load;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A minimal HTTP/1.1 client over one kept-alive connection.
+ * <p>
+ * Every request is written with a single write and Nagle's algorithm is
+ * disabled, so that the client does not add delays of its own to the
+ * latencies it measures.
+ */
+class HttpClient {
+    private final String host;
+    private final int port;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    /**
+     * Initialize the object. The connection is opened on first use.
+     *
+     * @param host The server host
+     * @param port The server port
+     */
+    HttpClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Send a request and read the whole response.
+     *
+     * @param method The method
+     * @param path   The path
+     * @param body   The JSON body, or null
+     * @return The response status.
+     * @throws IOException If the request fails; the connection is closed.
+     */
+    int request(String method, String path, String body) throws IOException {
+        byte[] content = body == null ?
+                         new byte[0] :
+                         body.getBytes(StandardCharsets.UTF_8);
+        StringBuilder head = new StringBuilder(128);
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+            .append("Host: ").append(this.host).append(':').append(this.port)
+            .append("\r\n");
+        if (body != null) {
+            head.append("Content-Type: application/json\r\n");
+        }
+        head.append("Content-Length: ").append(content.length).append("\r\n\r\n");
+
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.US_ASCII);
+        byte[] request = new byte[headBytes.length + content.length];
+        System.arraycopy(headBytes, 0, request, 0, headBytes.length);
+        System.arraycopy(content, 0, request, headBytes.length, content.length);
+
+        try {
+            if (this.socket == null) {
+                this.socket = new Socket(this.host, this.port);
+                this.socket.setTcpNoDelay(true);
+                this.in = new BufferedInputStream(this.socket.getInputStream());
+                this.out = this.socket.getOutputStream();
+            }
+
+            this.out.write(request);
+            this.out.flush();
+            return this.readResponse();
+        } catch (IOException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Close the connection.
+     */
+    void close() {
+        if (this.socket != null) {
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                // pass
+            }
+            this.socket = null;
+        }
+    }
+
+    /**
+     * Read a response, skipping its body.
+     *
+     * @return The response status.
+     * @throws IOException On read failure.
+     */
+    private int readResponse() throws IOException {
+        String statusLine = this.readLine();
+        int status = Integer.parseInt(statusLine.split(" ")[1]);
+
+        long length = -1;
+        boolean close = false;
+        String line;
+        while (!(line = this.readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                length = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Connection")) {
+                close = value.equalsIgnoreCase("close");
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                throw new IOException("Chunked responses are not supported");
+            }
+        }
+
+        if (length < 0) {
+            // The body runs until the connection is closed
+            while (this.in.read() >= 0) {
+                // Skip
+            }
+            this.close();
+            return status;
+        }
+
+        while (length > 0) {
+            long skipped = this.in.skip(length);
+            if (skipped <= 0) {
+                if (this.in.read() < 0) {
+                    throw new EOFException("Connection closed in response body");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+
+        if (close) {
+            this.close();
+        }
+
+        return status;
+    }
+
+    /**
+     * Read a header line.
+     *
+     * @return The line, without its line break.
+     * @throws IOException On read failure.
+     */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int c;
+        while ((c = this.in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("Connection closed in response head");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+
+        return line.toString();
+    }
+}
@@ -0,0 +1,453 @@
+package io.webthings.webthing.load;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.webthings.webthing.Action;
+import io.webthings.webthing.IntValue;
+import io.webthings.webthing.LongValue;
+import io.webthings.webthing.Property;
+import io.webthings.webthing.Thing;
+import io.webthings.webthing.WebThingServer;
+
+/**
+ * Load generator for an in-process {@link WebThingServer}.
+ * <p>
+ * Starts a server with the configured things, drives a mix of property
+ * reads, property writes and action requests over HTTP from a pool of
+ * client threads, and connects websocket subscribers to every thing. Each
+ * thing has a {@code sentAt} property which is set to the current
+ * {@link System#nanoTime()} at a fixed rate, so subscribers can measure the
+ * time from {@code Value.set} to delivery.
+ * <p>
+ * Reports throughput and latency percentiles for every operation, on
+ * standard output and as JSON. Options, with their defaults:
+ * <pre>
+ *   --things 1            Number of things
+ *   --properties 4        Integer properties per thing
+ *   --clients 8           HTTP client threads
+ *   --mix get=70,put=25,post=5
+ *                         Relative weights of GET and PUT on a property and
+ *                         POST of an action
+ *   --subscribers 4       Websocket subscribers per thing
+ *   --update-rate 100     sentAt updates per second per thing
+ *   --warmup 2            Seconds before recording starts
+ *   --duration 10         Seconds of recording
+ *   --output FILE         Where to write the JSON report
+ * </pre>
+ */
+public class LoadGenerator {
+    private static final String[] OPERATIONS = {"get", "put", "post"};
+
+    private final Map<String, String> options;
+    private final int things;
+    private final int properties;
+    private final int clients;
+    private final int[] weights = new int[OPERATIONS.length];
+    private final int subscribers;
+    private final int updateRate;
+    private final int warmup;
+    private final int duration;
+
+    private volatile boolean recording;
+    private volatile boolean running = true;
+
+    /**
+     * Initialize the object.
+     *
+     * @param options The options, without their leading dashes
+     */
+    LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.things = this.intOption("things", 1);
+        this.properties = this.intOption("properties", 4);
+        this.clients = this.intOption("clients", 8);
+        this.subscribers = this.intOption("subscribers", 4);
+        this.updateRate = this.intOption("update-rate", 100);
+        this.warmup = this.intOption("warmup", 2);
+        this.duration = this.intOption("duration", 10);
+
+        for (String weight : options.getOrDefault("mix", "get=70,put=25,post=5")
+                                    .split(",")) {
+            String[] parts = weight.split("=");
+            int index = indexOf(parts[0].trim());
+            if (index < 0 || parts.length != 2) {
+                throw new IllegalArgumentException("Invalid mix: " + weight);
+            }
+            this.weights[index] = Integer.parseInt(parts[1].trim());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; ++i) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Invalid option: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+
+        JSONObject report = new LoadGenerator(options).run();
+
+        String output = options.get("output");
+        if (output != null) {
+            Files.write(Paths.get(output),
+                        report.toString(2).getBytes(StandardCharsets.UTF_8));
+            System.out.println("Results written to " + output);
+        }
+
+        // The server's mDNS threads are not daemons
+        System.exit(0);
+    }
+
+    /**
+     * Run the load and report the results.
+     *
+     * @return The report.
+     * @throws Exception If the server fails to start.
+     */
+    JSONObject run() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        List<Thing> things = new ArrayList<>();
+        List<LongValue> sentAt = new ArrayList<>();
+        for (int i = 0; i < this.things; ++i) {
+            LongValue value = new LongValue(0L);
+            things.add(this.newThing(i, value));
+            sentAt.add(value);
+        }
+
+        WebThingServer server =
+                new WebThingServer(new WebThingServer.MultipleThings(things,
+                                                                      "load"),
+                                   port);
+        server.start(true);
+
+        try {
+            return this.drive(port, sentAt);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Drive the load against a running server.
+     *
+     * @param port   The server port
+     * @param sentAt The sentAt value of every thing
+     * @return The report.
+     * @throws Exception If subscribers fail to connect.
+     */
+    private JSONObject drive(int port, List<LongValue> sentAt)
+            throws Exception {
+        List<WebSocketClient> sockets = new ArrayList<>();
+        List<Histogram> deliveries = new ArrayList<>();
+        LongAdder messages = new LongAdder();
+        for (int i = 0; i < this.things; ++i) {
+            for (int j = 0; j < this.subscribers; ++j) {
+                Histogram histogram = new Histogram();
+                deliveries.add(histogram);
+                WebSocketClient socket = new WebSocketClient(
+                        "localhost",
+                        port,
+                        "/" + i,
+                        message -> this.receive(message, histogram, messages));
+                sockets.add(socket);
+                Thread reader = new Thread(socket, "load-subscriber");
+                reader.setDaemon(true);
+                reader.start();
+            }
+        }
+
+        ScheduledExecutorService updater =
+                Executors.newSingleThreadScheduledExecutor();
+        if (this.updateRate > 0) {
+            updater.scheduleAtFixedRate(() -> {
+                                            for (LongValue value : sentAt) {
+                                                value.set(System.nanoTime());
+                                            }
+                                        },
+                                        0,
+                                        TimeUnit.SECONDS.toNanos(1) /
+                                                this.updateRate,
+                                        TimeUnit.NANOSECONDS);
+        }
+
+        List<Client> clients = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(this.clients);
+        for (int i = 0; i < this.clients; ++i) {
+            Client client = new Client(port, done);
+            clients.add(client);
+            new Thread(client, "load-client-" + i).start();
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(this.warmup));
+        this.recording = true;
+        long start = System.nanoTime();
+        messages.reset();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(this.duration));
+        this.recording = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        this.running = false;
+        done.await();
+        updater.shutdownNow();
+        for (WebSocketClient socket : sockets) {
+            socket.close();
+        }
+
+        JSONObject results = new JSONObject();
+        System.out.printf("%-10s %10s %10s %10s %10s %10s %10s %8s%n",
+                          "operation", "count", "ops/s", "p50 us", "p99 us",
+                          "p99.9 us", "max us", "errors");
+        for (int i = 0; i < OPERATIONS.length; ++i) {
+            Histogram histogram = new Histogram();
+            long errors = 0;
+            for (Client client : clients) {
+                histogram.add(client.latencies[i]);
+                errors += client.errors[i];
+            }
+            results.put(OPERATIONS[i],
+                        result(OPERATIONS[i], histogram, elapsed, errors));
+        }
+
+        Histogram delivery = new Histogram();
+        for (Histogram histogram : deliveries) {
+            delivery.add(histogram);
+        }
+        JSONObject deliveryResult = result("delivery", delivery, elapsed, 0);
+        deliveryResult.put("messagesPerSecond", messages.sum() / elapsed);
+        results.put("delivery", deliveryResult);
+
+        JSONObject report = new JSONObject();
+        report.put("options", new JSONObject(this.options));
+        report.put("seconds", elapsed);
+        report.put("results", results);
+        return report;
+    }
+
+    /**
+     * Summarize and print the results of one operation.
+     *
+     * @param name      Name of the operation
+     * @param histogram The latencies of the operation
+     * @param elapsed   Seconds of recording
+     * @param errors    Number of failed operations
+     * @return The summary.
+     */
+    private static JSONObject result(String name,
+                                     Histogram histogram,
+                                     double elapsed,
+                                     long errors) {
+        JSONObject result = histogram.asJson();
+        result.put("throughput", histogram.getCount() / elapsed);
+        result.put("errors", errors);
+
+        System.out.printf("%-10s %10d %10.0f %10.1f %10.1f %10.1f %10.1f %8d%n",
+                          name,
+                          histogram.getCount(),
+                          histogram.getCount() / elapsed,
+                          result.getDouble("p50Us"),
+                          result.getDouble("p99Us"),
+                          result.getDouble("p999Us"),
+                          result.getDouble("maxUs"),
+                          errors);
+        return result;
+    }
+
+    /**
+     * Handle a websocket message, recording the delivery time of sentAt
+     * updates.
+     *
+     * @param message   The message
+     * @param histogram The subscriber's delivery latencies
+     * @param messages  Counter of received messages
+     */
+    private void receive(String message, Histogram histogram, LongAdder messages) {
+        long now = System.nanoTime();
+        messages.increment();
+
+        JSONObject json = new JSONObject(message);
+        if (!"propertyStatus".equals(json.optString("messageType"))) {
+            return;
+        }
+
+        JSONObject data = json.getJSONObject("data");
+        if (data.has("sentAt") && this.recording) {
+            histogram.record(now - data.getLong("sentAt"));
+        }
+    }
+
+    /**
+     * Create a thing with integer properties, a sentAt property and an
+     * action.
+     *
+     * @param index  Index of the thing
+     * @param sentAt Value of the sentAt property
+     * @return The thing.
+     */
+    private Thing newThing(int index, LongValue sentAt) {
+        Thing thing = new Thing("urn:dev:ops:load-" + index,
+                                "Load " + index,
+                                new JSONArray(),
+                                "A thing under load");
+        for (int i = 0; i < this.properties; ++i) {
+            JSONObject metadata = new JSONObject();
+            metadata.put("type", "integer");
+            metadata.put("minimum", 0);
+            metadata.put("maximum", 100);
+            thing.addProperty(new Property<>(thing,
+                                             "property" + i,
+                                             new IntValue(0),
+                                             metadata));
+        }
+
+        thing.addProperty(new Property<>(thing,
+                                         "sentAt",
+                                         sentAt,
+                                         new JSONObject().put("type", "integer")
+                                                         .put("readOnly", true)));
+        thing.addAvailableAction("pulse",
+                                 new JSONObject().put("title", "Pulse"),
+                                 PulseAction.class);
+        return thing;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = this.options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static int indexOf(String operation) {
+        for (int i = 0; i < OPERATIONS.length; ++i) {
+            if (OPERATIONS[i].equals(operation)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * An action which completes immediately.
+     */
+    public static class PulseAction extends Action {
+        public PulseAction(Thing thing, JSONObject input) {
+            super(UUID.randomUUID().toString(), thing, "pulse", input);
+        }
+    }
+
+    /**
+     * An HTTP client thread, which sends a random mix of requests until the
+     * run ends.
+     */
+    private class Client implements Runnable {
+        private final HttpClient http;
+        private final CountDownLatch done;
+        private final Histogram[] latencies = new Histogram[OPERATIONS.length];
+        private final long[] errors = new long[OPERATIONS.length];
+
+        Client(int port, CountDownLatch done) {
+            this.http = new HttpClient("localhost", port);
+            this.done = done;
+            for (int i = 0; i < OPERATIONS.length; ++i) {
+                this.latencies[i] = new Histogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                int total = 0;
+                for (int weight : LoadGenerator.this.weights) {
+                    total += weight;
+                }
+
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (LoadGenerator.this.running && total > 0) {
+                    int pick = random.nextInt(total);
+                    int operation = 0;
+                    while (pick >= LoadGenerator.this.weights[operation]) {
+                        pick -= LoadGenerator.this.weights[operation++];
+                    }
+
+                    int thing = random.nextInt(LoadGenerator.this.things);
+                    String property = "property" +
+                            random.nextInt(LoadGenerator.this.properties);
+
+                    boolean recording = LoadGenerator.this.recording;
+                    long start = System.nanoTime();
+                    boolean ok;
+                    switch (OPERATIONS[operation]) {
+                        case "get":
+                            ok = this.request("GET",
+                                              "/" + thing + "/properties/" + property,
+                                              null);
+                            break;
+                        case "put":
+                            ok = this.request("PUT",
+                                              "/" + thing + "/properties/" + property,
+                                              new JSONObject().put(property,
+                                                                   random.nextInt(101)));
+                            break;
+                        default:
+                            ok = this.request("POST",
+                                              "/" + thing + "/actions",
+                                              new JSONObject().put("pulse",
+                                                                   new JSONObject()));
+                            break;
+                    }
+                    long latency = System.nanoTime() - start;
+
+                    if (recording && LoadGenerator.this.recording) {
+                        this.latencies[operation].record(latency);
+                        if (!ok) {
+                            ++this.errors[operation];
+                        }
+                    }
+                }
+            } finally {
+                this.http.close();
+                this.done.countDown();
+            }
+        }
+
+        /**
+         * Send a request.
+         *
+         * @param method The method
+         * @param path   The path
+         * @param body   The JSON body, or null
+         * @return Whether the request succeeded.
+         */
+        private boolean request(String method, String path, JSONObject body) {
+            try {
+                return this.http.request(method,
+                                         path,
+                                         body == null ? null : body.toString()) < 400;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package io.webthings.webthing.load;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * A minimal websocket client, enough to subscribe to a thing and receive its
+ * messages. Pings are answered; extensions and fragmented messages are not
+ * supported, as the server does not use them unless asked to.
+ */
+class WebSocketClient implements Runnable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Consumer<String> listener;
+
+    /**
+     * Connect and complete the opening handshake.
+     *
+     * @param host     The server host
+     * @param port     The server port
+     * @param path     The path of the thing
+     * @param listener Receiver of text messages, called on the reading thread
+     * @throws IOException If the connection or handshake fails.
+     */
+    WebSocketClient(String host, int port, String path, Consumer<String> listener)
+            throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+        this.out = this.socket.getOutputStream();
+        this.listener = listener;
+
+        byte[] nonce = new byte[16];
+        ThreadLocalRandom.current().nextBytes(nonce);
+        String request = "GET " + path + " HTTP/1.1\r\n" +
+                "Host: " + host + ":" + port + "\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Key: " + Base64.getEncoder().encodeToString(nonce) + "\r\n" +
+                "Sec-WebSocket-Version: 13\r\n\r\n";
+        this.out.write(request.getBytes(StandardCharsets.US_ASCII));
+        this.out.flush();
+
+        StringBuilder response = new StringBuilder();
+        while (!response.toString().endsWith("\r\n\r\n")) {
+            int c = this.in.read();
+            if (c < 0) {
+                throw new EOFException("Connection closed during handshake");
+            }
+            response.append((char) c);
+        }
+
+        if (!response.toString().startsWith("HTTP/1.1 101")) {
+            this.socket.close();
+            throw new IOException("Handshake failed: " +
+                                          response.toString().split("\r\n")[0]);
+        }
+    }
+
+    /**
+     * Read messages until the connection is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                int head = this.in.readUnsignedByte();
+                int length = this.in.readUnsignedByte() & 0x7f;
+                long fullLength = length;
+                if (length == 126) {
+                    fullLength = this.in.readUnsignedShort();
+                } else if (length == 127) {
+                    fullLength = this.in.readLong();
+                }
+
+                byte[] payload = new byte[(int) fullLength];
+                this.in.readFully(payload);
+
+                switch (head & 0x0f) {
+                    case 0x1:
+                        this.listener.accept(new String(payload,
+                                                        StandardCharsets.UTF_8));
+                        break;
+                    case 0x8:
+                        this.close();
+                        return;
+                    case 0x9:
+                        this.send(0xA, payload);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Send a text message.
+     *
+     * @param message The message
+     * @throws IOException On write failure.
+     */
+    void send(String message) throws IOException {
+        this.send(0x1, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Close the connection without a closing handshake.
+     */
+    void close() {
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // pass
+        }
+    }
+
+    /**
+     * Send a masked frame.
+     *
+     * @param opCode  The opcode
+     * @param payload The payload
+     * @throws IOException On write failure.
+     */
+    private synchronized void send(int opCode, byte[] payload)
+            throws IOException {
+        byte[] mask = new byte[4];
+        ThreadLocalRandom.current().nextBytes(mask);
+
+        int headerLength = payload.length < 126 ? 6 : 8;
+        byte[] frame = new byte[headerLength + payload.length];
+        frame[0] = (byte) (0x80 | opCode);
+        if (payload.length < 126) {
+            frame[1] = (byte) (0x80 | payload.length);
+        } else {
+            frame[1] = (byte) (0x80 | 126);
+            frame[2] = (byte) (payload.length >>> 8);
+            frame[3] = (byte) payload.length;
+        }
+        System.arraycopy(mask, 0, frame, headerLength - 4, 4);
+        for (int i = 0; i < payload.length; ++i) {
+            frame[headerLength + i] = (byte) (payload[i] ^ mask[i % 4]);
+        }
+
+        this.out.write(frame);
+        this.out.flush();
+    }
+}
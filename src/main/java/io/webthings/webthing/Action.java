@@ -6,19 +6,57 @@ package io.webthings.webthing;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 /**
  * An Action represents an individual action on a thing.
+ * <p>
+ * An action's status moves from "created" to "pending" when it starts, and
+ * then to one of "completed", "cancelled", "timeout" or "error", after which
+ * it no longer changes. An action whose {@link #performAction()} throws
+ * moves to "error".
  */
 public class Action {
+    private static final long NOT_COMPLETED = Long.MIN_VALUE;
+    private static final AtomicReferenceFieldUpdater<Action, String> STATUS =
+            AtomicReferenceFieldUpdater.newUpdater(Action.class,
+                                                   String.class,
+                                                   "status");
+    private static final AtomicReferenceFieldUpdater<Action, Runnable>
+            COMPLETION =
+            AtomicReferenceFieldUpdater.newUpdater(Action.class,
+                                                   Runnable.class,
+                                                   "completion");
+    private static final AtomicIntegerFieldUpdater<Action> DESCRIPTION_VERSION =
+            AtomicIntegerFieldUpdater.newUpdater(Action.class,
+                                                 "descriptionVersion");
+    private static final AtomicIntegerFieldUpdater<Action> QUEUED =
+            AtomicIntegerFieldUpdater.newUpdater(Action.class, "queued");
+    private static final AtomicIntegerFieldUpdater<Action> SUBMITTED =
+            AtomicIntegerFieldUpdater.newUpdater(Action.class, "submitted");
     private final String id;
     private final Thing thing;
     private final String name;
     private final JSONObject input;
-    private String hrefPrefix;
+    private volatile String hrefPrefix;
     private final String href;
-    private String status;
-    private final String timeRequested;
-    private String timeCompleted;
+    private volatile String status;
+    private final long timeRequested;
+    private volatile long timeCompleted;
+    private volatile int descriptionVersion;
+    private volatile CachedDescription cachedDescription;
+    private volatile int queued;
+    private volatile int submitted;
+    private volatile long timeStarted;
+    private volatile Object flightEvent;
+    private volatile int queuePosition;
+    private volatile Future<?> task;
+    private volatile Runnable completion;
+    private final Object notificationLock = new Object();
+    private volatile Metrics.Gauge queueDepth;
+    private volatile Metrics.Histogram duration;
 
     /**
      * Initialize the object.
@@ -47,7 +85,8 @@ public class Action {
         this.hrefPrefix = "";
         this.href = String.format("/actions/%s/%s", this.name, this.id);
         this.status = "created";
-        this.timeRequested = Utils.timestamp();
+        this.timeRequested = Utils.currentTimeMillis();
+        this.timeCompleted = NOT_COMPLETED;
     }
 
     /**
@@ -60,15 +99,19 @@ public class Action {
         JSONObject inner = new JSONObject();
         try {
             inner.put("href", this.hrefPrefix + this.href);
-            inner.put("timeRequested", this.timeRequested);
+            inner.put("timeRequested", this.getTimeRequested());
             inner.put("status", this.status);
 
             if (this.input != null) {
                 inner.put("input", this.input);
             }
 
-            if (this.timeCompleted != null) {
-                inner.put("timeCompleted", this.timeCompleted);
+            if (this.queuePosition > 0) {
+                inner.put("queuePosition", this.queuePosition);
+            }
+
+            if (this.timeCompleted != NOT_COMPLETED) {
+                inner.put("timeCompleted", this.getTimeCompleted());
             }
 
             obj.put(this.name, inner);
@@ -78,6 +121,36 @@ public class Action {
         }
     }
 
+    /**
+     * Get the action description, serialized as JSON.
+     * <p>
+     * The serialized form is cached until the description changes, e.g. on a
+     * status change, so notifications and action listings do not rebuild it.
+     *
+     * @return Description of the action as a JSON string.
+     */
+    public String asActionDescriptionJson() {
+        int version = this.descriptionVersion;
+        CachedDescription cached = this.cachedDescription;
+        if (cached != null && cached.version == version) {
+            return cached.json;
+        }
+
+        String json = String.valueOf(this.asActionDescription());
+        this.cachedDescription = new CachedDescription(version, json);
+        return json;
+    }
+
+    /**
+     * Discard the cached serialized description.
+     * <p>
+     * Call this when overriding {@link #asActionDescription()} with state that
+     * changes over the lifetime of the action.
+     */
+    protected void invalidateDescription() {
+        DESCRIPTION_VERSION.incrementAndGet(this);
+    }
+
     /**
      * Set the prefix of any hrefs associated with this action.
      *
@@ -85,6 +158,7 @@ public class Action {
      */
     public void setHrefPrefix(String prefix) {
         this.hrefPrefix = prefix;
+        this.invalidateDescription();
     }
 
     /**
@@ -138,18 +212,168 @@ public class Action {
      * @return The time.
      */
     public String getTimeRequested() {
+        return Utils.timestamp(this.timeRequested);
+    }
+
+    /**
+     * Get the time the action was requested.
+     *
+     * @return Milliseconds since the epoch.
+     */
+    public long getTimeRequestedMillis() {
         return this.timeRequested;
     }
 
     /**
      * Get the time the action was completed.
      *
-     * @return The time.
+     * @return The time, or null if the action has not completed.
      */
     public String getTimeCompleted() {
+        if (this.timeCompleted == NOT_COMPLETED) {
+            return null;
+        }
+
+        return Utils.timestamp(this.timeCompleted);
+    }
+
+    /**
+     * Get the time the action was completed.
+     *
+     * @return Milliseconds since the epoch, or Long.MIN_VALUE if the action
+     * has not completed.
+     */
+    public long getTimeCompletedMillis() {
         return this.timeCompleted;
     }
 
+    /**
+     * Get the position of this action in the queue of actions waiting to
+     * start, as given by its {@link ActionPolicy}.
+     *
+     * @return The position, starting at 1, or 0 if the action is not waiting.
+     */
+    public int getQueuePosition() {
+        return this.queuePosition;
+    }
+
+    /**
+     * Set the position of this action in the queue of actions waiting to
+     * start.
+     *
+     * @param position The position, or 0 if the action is not waiting
+     * @return Whether the position changed.
+     */
+    boolean setQueuePosition(int position) {
+        if (this.queuePosition == position) {
+            return false;
+        }
+
+        this.queuePosition = position;
+        this.invalidateDescription();
+        return true;
+    }
+
+    /**
+     * Notify subscribers that the position of this action in the queue
+     * changed.
+     */
+    void notifyQueuePosition() {
+        this.thing.actionNotify(this);
+    }
+
+    /**
+     * Get whether this action was cancelled or timed out. Long running
+     * actions should check this, or handle interruption, and return early.
+     *
+     * @return Whether the action was cancelled.
+     */
+    public boolean isCancelled() {
+        String status = this.status;
+        return "cancelled".equals(status) || "timeout".equals(status);
+    }
+
+    /**
+     * Get whether this action was submitted to run and has not completed,
+     * been cancelled or timed out.
+     *
+     * @return Whether the action is waiting or running.
+     */
+    boolean isActive() {
+        String status = this.status;
+        return this.submitted != 0 &&
+                ("created".equals(status) || "pending".equals(status));
+    }
+
+    /**
+     * Set the task this action runs in, and what to do once it is complete.
+     *
+     * @param task       The task, which is interrupted if the action is
+     *                   cancelled
+     * @param completion Called once when the action completes, is cancelled
+     *                   or times out
+     */
+    void setTask(Future<?> task, Runnable completion) {
+        this.task = task;
+        this.completion = completion;
+    }
+
+    /**
+     * Get the lock held while a status change of this action is numbered and
+     * sent to subscribers.
+     *
+     * @return The lock.
+     */
+    Object getNotificationLock() {
+        return this.notificationLock;
+    }
+
+    /**
+     * Set the metrics this action records into, which are looked up once
+     * per available action rather than on every change of an action. Must be
+     * called before the action is counted as waiting.
+     *
+     * @param queueDepth Gauge of actions of this type waiting to be started
+     * @param duration   Histogram of the time actions of this type run
+     */
+    void setMetrics(Metrics.Gauge queueDepth, Metrics.Histogram duration) {
+        this.queueDepth = queueDepth;
+        this.duration = duration;
+    }
+
+    /**
+     * Cancel this action, whether it is waiting or running, interrupting the
+     * task it runs in and calling {@link #cancel()}.
+     *
+     * @param status The status to move to, "cancelled" or "timeout"
+     * @return Whether the action was cancelled, i.e. had not completed.
+     */
+    boolean abort(String status) {
+        this.dequeue();
+        if (!this.complete(status)) {
+            return false;
+        }
+
+        Future<?> task = this.task;
+        if (task != null) {
+            task.cancel(true);
+        }
+
+        this.cancel();
+        return true;
+    }
+
+    /**
+     * Call the completion of this action if it was not called yet, e.g.
+     * because the action failed.
+     */
+    void release() {
+        Runnable completion = COMPLETION.getAndSet(this, null);
+        if (completion != null) {
+            completion.run();
+        }
+    }
+
     /**
      * Get the inputs for this action.
      *
@@ -163,9 +387,23 @@ public class Action {
      * Start performing the action.
      */
     public void start() {
-        this.status = "pending";
+        this.dequeue();
+        if (!STATUS.compareAndSet(this, "created", "pending")) {
+            // Cancelled before it started
+            this.release();
+            return;
+        }
+
+        this.timeStarted = System.nanoTime();
+        this.flightEvent = FlightEvents.get().beginAction();
+        this.invalidateDescription();
         this.thing.actionNotify(this);
-        this.performAction();
+        try {
+            this.performAction();
+        } catch (RuntimeException | Error e) {
+            this.complete("error");
+            throw e;
+        }
         this.finish();
     }
 
@@ -176,17 +414,140 @@ public class Action {
     }
 
     /**
-     * Override this with the code necessary to cancel the action.
+     * Override this with the code necessary to cancel the action. It is
+     * called once, when the action is cancelled or times out, while
+     * {@link #performAction()} may still be running.
      */
     public void cancel() {
     }
 
     /**
-     * Finish performing the action.
+     * Finish performing the action. This does nothing if the action was
+     * cancelled or timed out.
      */
     public void finish() {
-        this.status = "completed";
-        this.timeCompleted = Utils.timestamp();
+        this.complete("completed");
+    }
+
+    /**
+     * Move this action to a final status, unless it already has one.
+     *
+     * @param status The final status
+     * @return Whether the status changed.
+     */
+    private boolean complete(String status) {
+        String current;
+        do {
+            current = this.status;
+            if (!"created".equals(current) && !"pending".equals(current)) {
+                return false;
+            }
+        } while (!STATUS.compareAndSet(this, current, status));
+
+        this.timeCompleted = Utils.currentTimeMillis();
+        this.invalidateDescription();
         this.thing.actionNotify(this);
+
+        long timeStarted = this.timeStarted;
+        if (timeStarted != 0) {
+            Metrics.Histogram duration = this.duration;
+            if (duration == null) {
+                duration = durationOf(this.name);
+            }
+            duration.observeNanos(System.nanoTime() - timeStarted);
+        }
+
+        Object flightEvent = this.flightEvent;
+        if (flightEvent != null) {
+            this.flightEvent = null;
+            FlightEvents.get().commitAction(flightEvent, this);
+        }
+
+        this.release();
+        return true;
+    }
+
+    /**
+     * Mark this action as submitted to run.
+     *
+     * @return Whether the action was not submitted before.
+     */
+    boolean submit() {
+        return SUBMITTED.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * Count this action as waiting to be started.
+     */
+    void enqueue() {
+        if (QUEUED.compareAndSet(this, 0, 1)) {
+            this.queueDepth().increment();
+        }
+    }
+
+    /**
+     * Stop counting this action as waiting to be started.
+     */
+    void dequeue() {
+        if (QUEUED.compareAndSet(this, 1, 0)) {
+            this.queueDepth().decrement();
+        }
+    }
+
+    /**
+     * Get the gauge of actions of this type waiting to be started.
+     *
+     * @return The gauge.
+     */
+    private Metrics.Gauge queueDepth() {
+        Metrics.Gauge queueDepth = this.queueDepth;
+        return queueDepth == null ? queueDepthOf(this.name) : queueDepth;
+    }
+
+    /**
+     * Look up the gauge of actions of a type waiting to be started.
+     *
+     * @param name Name of the action
+     * @return The gauge.
+     */
+    static Metrics.Gauge queueDepthOf(String name) {
+        return Metrics.getDefault()
+                      .gauge("webthing_action_queue_depth",
+                             "Actions requested and not yet started.",
+                             "action",
+                             name);
+    }
+
+    /**
+     * Look up the histogram of the time actions of a type run.
+     *
+     * @param name Name of the action
+     * @return The histogram.
+     */
+    static Metrics.Histogram durationOf(String name) {
+        return Metrics.getDefault()
+                      .histogram("webthing_action_duration_seconds",
+                                 "Time from starting to finishing actions.",
+                                 "action",
+                                 name);
+    }
+
+    /**
+     * A serialized description, tagged with the version it was built from.
+     */
+    private static class CachedDescription {
+        private final int version;
+        private final String json;
+
+        /**
+         * Initialize the object.
+         *
+         * @param version The description version
+         * @param json    The serialized description
+         */
+        CachedDescription(int version, String json) {
+            this.version = version;
+            this.json = json;
+        }
     }
 }
@@ -0,0 +1,124 @@
+/**
+ * Action concurrency policies.
+ */
+package io.webthings.webthing;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * How many actions of one name may run at once on a thing, and in which order
+ * the others wait.
+ * <p>
+ * Actions that cannot start yet wait in a queue without holding a thread, and
+ * their position in the queue is included in their description. Waiting
+ * actions start in order of their priority, highest first, and then in the
+ * order they were requested.
+ */
+public final class ActionPolicy {
+    private static final ActionPolicy UNLIMITED =
+            new ActionPolicy(0, false, null);
+
+    private final int maxConcurrent;
+    private final boolean latestWins;
+    private final ToIntFunction<Action> priority;
+
+    /**
+     * Initialize the object.
+     *
+     * @param maxConcurrent Number of actions which may run at once, or 0 for
+     *                      no limit
+     * @param latestWins    Whether a new request cancels waiting ones
+     * @param priority      Priority of an action, or null
+     */
+    private ActionPolicy(int maxConcurrent,
+                         boolean latestWins,
+                         ToIntFunction<Action> priority) {
+        this.maxConcurrent = maxConcurrent;
+        this.latestWins = latestWins;
+        this.priority = priority;
+    }
+
+    /**
+     * Run every action as soon as it is requested. This is the default.
+     *
+     * @return The policy.
+     */
+    public static ActionPolicy unlimited() {
+        return UNLIMITED;
+    }
+
+    /**
+     * Run one action at a time.
+     *
+     * @return The policy.
+     */
+    public static ActionPolicy serialized() {
+        return maxConcurrent(1);
+    }
+
+    /**
+     * Run up to a number of actions at a time.
+     *
+     * @param max Number of actions which may run at once
+     * @return The policy.
+     * @throws IllegalArgumentException If max is less than 1.
+     */
+    public static ActionPolicy maxConcurrent(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException(
+                    "Maximum concurrency must be at least 1: " + max);
+        }
+
+        return new ActionPolicy(max, false, null);
+    }
+
+    /**
+     * Run one action at a time, and cancel any waiting action when a new one
+     * is requested, so that only the latest request runs next.
+     *
+     * @return The policy.
+     */
+    public static ActionPolicy latestWins() {
+        return new ActionPolicy(1, true, null);
+    }
+
+    /**
+     * Get a copy of this policy which starts waiting actions in order of
+     * priority.
+     *
+     * @param priority Priority of an action, e.g. taken from its input;
+     *                 higher priorities start first
+     * @return The policy.
+     */
+    public ActionPolicy withPriority(ToIntFunction<Action> priority) {
+        return new ActionPolicy(this.maxConcurrent, this.latestWins, priority);
+    }
+
+    /**
+     * Get the number of actions which may run at once.
+     *
+     * @return The number, or 0 if there is no limit.
+     */
+    public int getMaxConcurrent() {
+        return this.maxConcurrent;
+    }
+
+    /**
+     * Get whether a new request cancels waiting ones.
+     *
+     * @return Whether the latest request wins.
+     */
+    public boolean isLatestWins() {
+        return this.latestWins;
+    }
+
+    /**
+     * Get the priority of an action.
+     *
+     * @param action The action
+     * @return The priority, or 0 if this policy has no priorities.
+     */
+    int getPriority(Action action) {
+        return this.priority == null ? 0 : this.priority.applyAsInt(action);
+    }
+}
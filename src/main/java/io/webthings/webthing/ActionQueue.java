@@ -0,0 +1,244 @@
+/**
+ * Action scheduling.
+ */
+package io.webthings.webthing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the actions of one name on a thing, as their {@link ActionPolicy}
+ * allows.
+ * <p>
+ * Actions run on a shared pool of daemon threads, which grows with the number
+ * of running actions; waiting actions do not hold a thread. A running action
+ * holds its slot until it completes, is cancelled or times out, so a
+ * cancelled action which ignores interruption does not hold up the actions
+ * waiting behind it.
+ */
+class ActionQueue {
+    private static final AtomicInteger THREADS = new AtomicInteger();
+    private static final ExecutorService WORKERS =
+            Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable,
+                                           "webthing-action-" +
+                                                   THREADS.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final ScheduledExecutorService TIMEOUTS =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "webthing-action-timeout");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final Comparator<Waiting> ORDER =
+            Comparator.comparingInt((Waiting w) -> -w.priority)
+                      .thenComparingLong(w -> w.sequence);
+
+    private final ActionPolicy policy;
+    private final long timeout;
+    private final TreeSet<Waiting> waiting = new TreeSet<>(ORDER);
+    private int running;
+    private long sequence;
+
+    /**
+     * Initialize the object.
+     *
+     * @param policy  The concurrency policy
+     * @param timeout Time an action may run for, in milliseconds, or 0 for
+     *                no limit
+     */
+    ActionQueue(ActionPolicy policy, long timeout) {
+        this.policy = policy;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Get the concurrency policy.
+     *
+     * @return The policy.
+     */
+    ActionPolicy getPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * Run an action now, or once the policy allows.
+     *
+     * @param action The action
+     */
+    void submit(Action action) {
+        if (this.policy.getMaxConcurrent() == 0) {
+            this.run(action);
+            return;
+        }
+
+        int priority = this.policy.getPriority(action);
+        List<Action> superseded = Collections.emptyList();
+        List<Action> moved;
+        boolean start = false;
+        synchronized (this) {
+            if (this.policy.isLatestWins() && !this.waiting.isEmpty()) {
+                superseded = new ArrayList<>(this.waiting.size());
+                for (Waiting w : this.waiting) {
+                    w.action.setQueuePosition(0);
+                    superseded.add(w.action);
+                }
+                this.waiting.clear();
+            }
+
+            if (this.running < this.policy.getMaxConcurrent()) {
+                ++this.running;
+                start = true;
+            } else {
+                this.waiting.add(new Waiting(action, priority, this.sequence++));
+            }
+
+            moved = this.renumber();
+        }
+
+        superseded.forEach(a -> a.abort("cancelled"));
+        moved.forEach(Action::notifyQueuePosition);
+        if (start) {
+            this.run(action);
+        }
+    }
+
+    /**
+     * Remove an action which has not started yet.
+     *
+     * @param action The action
+     * @return Whether the action was waiting.
+     */
+    boolean remove(Action action) {
+        if (this.policy.getMaxConcurrent() == 0) {
+            return false;
+        }
+
+        List<Action> moved;
+        synchronized (this) {
+            if (!this.waiting.removeIf(w -> w.action == action)) {
+                return false;
+            }
+
+            action.setQueuePosition(0);
+            moved = this.renumber();
+        }
+
+        moved.forEach(Action::notifyQueuePosition);
+        return true;
+    }
+
+    /**
+     * Run an action on a worker thread, and start the next waiting action
+     * once it completes.
+     *
+     * @param action The action
+     */
+    private void run(Action action) {
+        // The action moves to "error" if it fails; its slot is released
+        // however it ends
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            try {
+                action.start();
+            } finally {
+                action.release();
+            }
+        }, null);
+
+        AtomicReference<ScheduledFuture<?>> timeout = new AtomicReference<>();
+        boolean limited = this.policy.getMaxConcurrent() != 0;
+        action.setTask(task, () -> {
+            ScheduledFuture<?> scheduled = timeout.get();
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            if (limited) {
+                this.next();
+            }
+        });
+
+        if (this.timeout > 0) {
+            timeout.set(TIMEOUTS.schedule(() -> action.abort("timeout"),
+                                          this.timeout,
+                                          TimeUnit.MILLISECONDS));
+        }
+
+        WORKERS.execute(task);
+    }
+
+    /**
+     * Release the slot of a finished action, or pass it to the next waiting
+     * action.
+     */
+    private void next() {
+        Action next;
+        List<Action> moved;
+        synchronized (this) {
+            Waiting first = this.waiting.pollFirst();
+            if (first == null) {
+                --this.running;
+                return;
+            }
+
+            next = first.action;
+            next.setQueuePosition(0);
+            moved = this.renumber();
+        }
+
+        moved.forEach(Action::notifyQueuePosition);
+        this.run(next);
+    }
+
+    /**
+     * Update the queue positions of waiting actions. Must be called while
+     * holding this queue's lock.
+     *
+     * @return The actions whose position changed.
+     */
+    private List<Action> renumber() {
+        List<Action> moved = new ArrayList<>();
+        int position = 0;
+        for (Waiting w : this.waiting) {
+            if (w.action.setQueuePosition(++position)) {
+                moved.add(w.action);
+            }
+        }
+
+        return moved;
+    }
+
+    /**
+     * An action waiting to start.
+     */
+    private static class Waiting {
+        private final Action action;
+        private final int priority;
+        private final long sequence;
+
+        /**
+         * Initialize the object.
+         *
+         * @param action   The action
+         * @param priority The action's priority
+         * @param sequence Order in which the action was requested
+         */
+        Waiting(Action action, int priority, long sequence) {
+            this.action = action;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+}
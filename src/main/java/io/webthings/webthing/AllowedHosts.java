@@ -0,0 +1,91 @@
+/**
+ * Host header validation.
+ */
+package io.webthings.webthing;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Host names and addresses a server accepts requests for, with and without
+ * its port.
+ * <p>
+ * Lookups read an immutable hash set without locking. Changes build a new set
+ * and swap it in, so a request never waits for the network addresses to be
+ * refreshed.
+ */
+class AllowedHosts {
+    private final int port;
+    private final Set<String> names = new LinkedHashSet<>();
+    private Set<String> addresses = Collections.emptySet();
+    private volatile Set<String> hosts = Collections.emptySet();
+
+    /**
+     * Initialize the object.
+     *
+     * @param port The port the server listens on
+     */
+    AllowedHosts(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Get whether requests for a host are allowed.
+     *
+     * @param host The Host header, in lower case
+     * @return Whether the host is allowed.
+     */
+    boolean contains(String host) {
+        return this.hosts.contains(host);
+    }
+
+    /**
+     * Allow a host name, which is kept when the addresses change.
+     *
+     * @param name The host name, in lower case
+     */
+    synchronized void addName(String name) {
+        if (this.names.add(name)) {
+            this.swap();
+        }
+    }
+
+    /**
+     * Replace the network addresses.
+     *
+     * @param addresses The addresses, in lower case
+     * @return Whether the addresses changed.
+     */
+    synchronized boolean setAddresses(Collection<String> addresses) {
+        Set<String> next = new HashSet<>(addresses);
+        if (next.equals(this.addresses)) {
+            return false;
+        }
+
+        this.addresses = next;
+        this.swap();
+        return true;
+    }
+
+    /**
+     * Build and publish the set of allowed hosts. Must be called while
+     * holding this object's lock.
+     */
+    private void swap() {
+        Set<String> hosts =
+                new HashSet<>(2 * (this.names.size() + this.addresses.size()));
+        for (String host : this.names) {
+            hosts.add(host);
+            hosts.add(String.format("%s:%d", host, this.port));
+        }
+        for (String host : this.addresses) {
+            hosts.add(host);
+            hosts.add(String.format("%s:%d", host, this.port));
+        }
+
+        this.hosts = Collections.unmodifiableSet(hosts);
+    }
+}
@@ -0,0 +1,138 @@
+package io.webthings.webthing;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A property value holding a primitive boolean.
+ * <p>
+ * Stores the reading unboxed, detects changes with a primitive comparison and
+ * serializes it without boxing. Concurrent updates are published with a
+ * compare-and-set.
+ */
+public class BooleanValue extends Value<Boolean> {
+    private static final AtomicIntegerFieldUpdater<BooleanValue> LAST_VALUE =
+            AtomicIntegerFieldUpdater.newUpdater(BooleanValue.class,
+                                                 "lastValue");
+
+    private final BooleanConsumer valueForwarder;
+    private volatile int lastValue;
+
+    /**
+     * Operation accepting a single boolean, used to forward new values to the
+     * thing.
+     */
+    @FunctionalInterface
+    public interface BooleanConsumer {
+        /**
+         * Performs this operation on the given value.
+         *
+         * @param value The value
+         */
+        void accept(boolean value);
+    }
+
+    /**
+     * Create a read only value that can only be updated by a Thing's reading.
+     *
+     * @param initialValue The initial value
+     */
+    public BooleanValue(final boolean initialValue) {
+        this(initialValue, null);
+    }
+
+    /**
+     * Create a writable value that can be set to a new value.
+     *
+     * @param initialValue   The initial value
+     * @param valueForwarder The method that updates the actual value on the
+     *                       thing
+     */
+    public BooleanValue(final boolean initialValue, final BooleanConsumer valueForwarder) {
+        this(initialValue, valueForwarder, null);
+    }
+
+    /**
+     * Create a value whose change notifications are filtered.
+     *
+     * @param initialValue   The initial value
+     * @param valueForwarder The method that updates the actual value on the
+     *                       thing, or null for a read only value
+     * @param changeFilter   The filter deciding which changes are notified,
+     *                       or null to notify all changes
+     */
+    public BooleanValue(final boolean initialValue,
+                        final BooleanConsumer valueForwarder,
+                        final ChangeFilter changeFilter) {
+        super(Boolean.class, null, null, changeFilter);
+        this.lastValue = initialValue ? 1 : 0;
+        this.valueForwarder = valueForwarder;
+    }
+
+    /**
+     * Set a new value for this thing.
+     *
+     * @param value Value to set
+     */
+    public void set(boolean value) {
+        if (this.valueForwarder != null) {
+            this.valueForwarder.accept(value);
+        }
+
+        this.notifyOfExternalUpdate(value);
+    }
+
+    @Override
+    public void set(Boolean value) {
+        if (value != null) {
+            this.set(value.booleanValue());
+        }
+    }
+
+    /**
+     * Returns the last known value from the underlying thing.
+     *
+     * @return The value.
+     */
+    public boolean getBoolean() {
+        return this.lastValue != 0;
+    }
+
+    @Override
+    public Boolean get() {
+        return this.getBoolean();
+    }
+
+    /**
+     * Called if the underlying thing reported a new value. This informs
+     * listeners about the update.
+     *
+     * @param value the newly reported value
+     */
+    public void notifyOfExternalUpdate(boolean value) {
+        int update = value ? 1 : 0;
+        if (LAST_VALUE.compareAndSet(this, 1 - update, update)) {
+            Listener[] listeners = this.changedListeners();
+            if (listeners != null) {
+                // Box the value stored only if an observer is handed it
+                this.dispatchValueChanged(listeners,
+                                          hasObserver(listeners) ?
+                                          Boolean.valueOf(value) :
+                                          null);
+            }
+        } else {
+            this.valueUnchanged();
+        }
+    }
+
+    @Override
+    public void notifyOfExternalUpdate(Boolean value) {
+        if (value != null) {
+            this.notifyOfExternalUpdate(value.booleanValue());
+        }
+    }
+
+    @Override
+    public void appendJson(StringBuilder builder) {
+        builder.append(this.getBoolean());
+    }
+}
@@ -0,0 +1,603 @@
+/**
+ * CBOR payload encoding.
+ */
+package io.webthings.webthing;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+import org.json.JSONTokener;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The CBOR encoding (RFC 8949), mapped onto the org.json model.
+ * <p>
+ * Integers are encoded in the shortest form, and floating point numbers as
+ * single precision when that is lossless. Decoding accepts definite and
+ * indefinite lengths, half, single and double precision floats and bignums;
+ * other tags are skipped and undefined decodes as null. Map keys which are
+ * not strings are converted to strings.
+ */
+public class CborCodec implements Codec {
+    private static final int MAX_DEPTH = 64;
+
+    private static final int UNSIGNED = 0;
+    private static final int NEGATIVE = 1;
+    private static final int BYTES = 2;
+    private static final int TEXT = 3;
+    private static final int ARRAY = 4;
+    private static final int MAP = 5;
+    private static final int TAG = 6;
+    private static final int SIMPLE = 7;
+
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int UNDEFINED = 0xf7;
+    private static final int FLOAT = 0xfa;
+    private static final int DOUBLE = 0xfb;
+    private static final int BREAK = 0xff;
+
+    private static final int POSITIVE_BIGNUM = 2;
+    private static final int NEGATIVE_BIGNUM = 3;
+
+    private static final BigInteger LONG_MIN =
+            BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger LONG_MAX =
+            BigInteger.valueOf(Long.MAX_VALUE);
+
+    private volatile EncodedJson lastEncodedJson = new EncodedJson(null, null);
+
+    /**
+     * Initialize the object. Use {@link Codec#CBOR} rather than creating new
+     * instances.
+     */
+    CborCodec() {
+    }
+
+    @Override
+    public String getMediaType() {
+        return "application/cbor";
+    }
+
+    @Override
+    public boolean isBinary() {
+        return true;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Encoder encoder = new Encoder();
+        encoder.write(value, 0);
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Encode a value which is already serialized as JSON.
+     * <p>
+     * The last result is kept, so that sending one notification to many
+     * sockets only converts it once.
+     *
+     * @param json The JSON text
+     * @return The encoded value.
+     * @throws JSONException If the text is not valid JSON.
+     */
+    @Override
+    public byte[] encodeJson(String json) {
+        EncodedJson last = this.lastEncodedJson;
+        if (last.json == json) {
+            return last.encoded;
+        }
+
+        byte[] encoded = this.encode(Codec.JSON.decode(
+                json.getBytes(StandardCharsets.UTF_8)));
+        this.lastEncodedJson = new EncodedJson(json, encoded);
+        return encoded;
+    }
+
+    @Override
+    public Object decode(byte[] data) {
+        Decoder decoder = new Decoder(data);
+        Object value = decoder.read(0);
+        if (decoder.position != data.length) {
+            throw new JSONException("Unexpected data after CBOR value");
+        }
+
+        return value;
+    }
+
+    /**
+     * A JSON text with its encoding.
+     */
+    private static class EncodedJson {
+        private final String json;
+        private final byte[] encoded;
+
+        /**
+         * Initialize the object.
+         *
+         * @param json    The JSON text
+         * @param encoded The encoded value
+         */
+        EncodedJson(String json, byte[] encoded) {
+            this.json = json;
+            this.encoded = encoded;
+        }
+    }
+
+    /**
+     * Writer of a single encoded value.
+     */
+    private static class Encoder extends ByteArrayOutputStream {
+        /**
+         * Initialize the object.
+         */
+        Encoder() {
+            super(64);
+        }
+
+        /**
+         * Write a value.
+         *
+         * @param value The value
+         * @param depth Nesting depth of the value
+         */
+        void write(Object value, int depth) {
+            if (depth > MAX_DEPTH) {
+                throw new JSONException("CBOR value nested too deeply");
+            }
+
+            if (value == null || JSONObject.NULL.equals(value)) {
+                this.write(NULL);
+            } else if (value instanceof Boolean) {
+                this.write((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof String) {
+                byte[] text = ((String) value).getBytes(StandardCharsets.UTF_8);
+                this.writeHead(TEXT, text.length);
+                this.write(text, 0, text.length);
+            } else if (value instanceof Integer ||
+                    value instanceof Long ||
+                    value instanceof Short ||
+                    value instanceof Byte) {
+                this.writeInteger(((Number) value).longValue());
+            } else if (value instanceof BigInteger) {
+                this.writeBigInteger((BigInteger) value);
+            } else if (value instanceof Float) {
+                this.writeFloat((Float) value);
+            } else if (value instanceof BigDecimal) {
+                BigDecimal decimal = (BigDecimal) value;
+                if (decimal.scale() <= 0) {
+                    this.writeBigInteger(decimal.toBigInteger());
+                } else {
+                    this.writeDouble(decimal.doubleValue());
+                }
+            } else if (value instanceof Number) {
+                this.writeDouble(((Number) value).doubleValue());
+            } else if (value instanceof JSONObject) {
+                JSONObject object = (JSONObject) value;
+                this.writeHead(MAP, object.length());
+                for (String key : object.keySet()) {
+                    this.write(key, depth + 1);
+                    this.write(object.opt(key), depth + 1);
+                }
+            } else if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray) value;
+                this.writeHead(ARRAY, array.length());
+                for (int i = 0; i < array.length(); ++i) {
+                    this.write(array.opt(i), depth + 1);
+                }
+            } else if (value instanceof byte[]) {
+                byte[] bytes = (byte[]) value;
+                this.writeHead(BYTES, bytes.length);
+                this.write(bytes, 0, bytes.length);
+            } else if (value instanceof JSONString) {
+                this.write(new JSONTokener(((JSONString) value).toJSONString())
+                                   .nextValue(),
+                           depth);
+            } else {
+                Object wrapped = JSONObject.wrap(value);
+                if (wrapped == null || wrapped == value) {
+                    this.write(value.toString(), depth);
+                } else {
+                    this.write(wrapped, depth);
+                }
+            }
+        }
+
+        /**
+         * Write an integer.
+         *
+         * @param value The value
+         */
+        private void writeInteger(long value) {
+            if (value < 0) {
+                this.writeHead(NEGATIVE, -1 - value);
+            } else {
+                this.writeHead(UNSIGNED, value);
+            }
+        }
+
+        /**
+         * Write an integer of any size, as a bignum if it does not fit in 64
+         * bits.
+         *
+         * @param value The value
+         */
+        private void writeBigInteger(BigInteger value) {
+            if (value.compareTo(LONG_MIN) >= 0 &&
+                    value.compareTo(LONG_MAX) <= 0) {
+                this.writeInteger(value.longValue());
+                return;
+            }
+
+            boolean negative = value.signum() < 0;
+            byte[] magnitude =
+                    (negative ? value.negate().subtract(BigInteger.ONE) : value)
+                            .toByteArray();
+            int offset = magnitude[0] == 0 ? 1 : 0;
+            this.writeHead(TAG, negative ? NEGATIVE_BIGNUM : POSITIVE_BIGNUM);
+            this.writeHead(BYTES, magnitude.length - offset);
+            this.write(magnitude, offset, magnitude.length - offset);
+        }
+
+        /**
+         * Write a single precision float.
+         *
+         * @param value The value
+         */
+        private void writeFloat(float value) {
+            int bits = Float.floatToIntBits(value);
+            this.write(FLOAT);
+            this.writeBytes(bits, 4);
+        }
+
+        /**
+         * Write a double, as single precision if that is lossless.
+         *
+         * @param value The value
+         */
+        private void writeDouble(double value) {
+            float single = (float) value;
+            if (single == value || Double.isNaN(value)) {
+                this.writeFloat(single);
+                return;
+            }
+
+            this.write(DOUBLE);
+            this.writeBytes(Double.doubleToLongBits(value), 8);
+        }
+
+        /**
+         * Write the head of a data item.
+         *
+         * @param majorType The major type
+         * @param argument  The argument, an unsigned 64-bit integer
+         */
+        private void writeHead(int majorType, long argument) {
+            int type = majorType << 5;
+            if (argument >= 0 && argument < 24) {
+                this.write(type | (int) argument);
+            } else if (argument >= 0 && argument <= 0xffL) {
+                this.write(type | 24);
+                this.writeBytes(argument, 1);
+            } else if (argument >= 0 && argument <= 0xffffL) {
+                this.write(type | 25);
+                this.writeBytes(argument, 2);
+            } else if (argument >= 0 && argument <= 0xffffffffL) {
+                this.write(type | 26);
+                this.writeBytes(argument, 4);
+            } else {
+                this.write(type | 27);
+                this.writeBytes(argument, 8);
+            }
+        }
+
+        /**
+         * Write the low bytes of a value, in network byte order.
+         *
+         * @param value The value
+         * @param count Number of bytes to write
+         */
+        private void writeBytes(long value, int count) {
+            for (int shift = (count - 1) * 8; shift >= 0; shift -= 8) {
+                this.write((int) (value >>> shift));
+            }
+        }
+    }
+
+    /**
+     * Reader of a single encoded value.
+     */
+    private static class Decoder {
+        private final byte[] data;
+        private int position;
+
+        /**
+         * Initialize the object.
+         *
+         * @param data The encoded value
+         */
+        Decoder(byte[] data) {
+            this.data = data;
+        }
+
+        /**
+         * Read a value.
+         *
+         * @param depth Nesting depth of the value
+         * @return The value.
+         */
+        Object read(int depth) {
+            if (depth > MAX_DEPTH) {
+                throw new JSONException("CBOR value nested too deeply");
+            }
+
+            int initial = this.readByte();
+            int majorType = initial >>> 5;
+            int info = initial & 0x1f;
+
+            switch (majorType) {
+                case UNSIGNED: {
+                    long value = this.readArgument(info);
+                    if (value < 0) {
+                        return new BigInteger(Long.toUnsignedString(value));
+                    }
+                    return narrow(value);
+                }
+                case NEGATIVE: {
+                    long value = this.readArgument(info);
+                    if (value < 0) {
+                        return new BigInteger(Long.toUnsignedString(value))
+                                .not();
+                    }
+                    return narrow(-1 - value);
+                }
+                case BYTES:
+                    return this.readString(BYTES, info);
+                case TEXT:
+                    return new String(this.readString(TEXT, info),
+                                      StandardCharsets.UTF_8);
+                case ARRAY: {
+                    JSONArray array = new JSONArray();
+                    if (info == 31) {
+                        while (!this.readBreak()) {
+                            array.put(this.read(depth + 1));
+                        }
+                    } else {
+                        long length = this.readLength(info);
+                        for (long i = 0; i < length; ++i) {
+                            array.put(this.read(depth + 1));
+                        }
+                    }
+                    return array;
+                }
+                case MAP: {
+                    JSONObject object = new JSONObject();
+                    if (info == 31) {
+                        while (!this.readBreak()) {
+                            this.readEntry(object, depth);
+                        }
+                    } else {
+                        long length = this.readLength(info);
+                        for (long i = 0; i < length; ++i) {
+                            this.readEntry(object, depth);
+                        }
+                    }
+                    return object;
+                }
+                case TAG: {
+                    long tag = this.readArgument(info);
+                    Object value = this.read(depth + 1);
+                    if ((tag == POSITIVE_BIGNUM || tag == NEGATIVE_BIGNUM) &&
+                            value instanceof byte[]) {
+                        BigInteger magnitude = new BigInteger(1, (byte[]) value);
+                        return tag == POSITIVE_BIGNUM ?
+                               magnitude :
+                               magnitude.not();
+                    }
+                    return value;
+                }
+                default:
+                    return this.readSimple(initial);
+            }
+        }
+
+        /**
+         * Read a key and value into a map.
+         *
+         * @param object The map
+         * @param depth  Nesting depth of the map
+         */
+        private void readEntry(JSONObject object, int depth) {
+            Object key = this.read(depth + 1);
+            object.put(key instanceof String ?
+                       (String) key :
+                       JSONObject.valueToString(key),
+                       this.read(depth + 1));
+        }
+
+        /**
+         * Read a simple value or float.
+         *
+         * @param initial The initial byte
+         * @return The value.
+         */
+        private Object readSimple(int initial) {
+            switch (initial) {
+                case FALSE:
+                    return Boolean.FALSE;
+                case TRUE:
+                    return Boolean.TRUE;
+                case NULL:
+                case UNDEFINED:
+                    return JSONObject.NULL;
+                case 0xf9:
+                    return (double) halfToFloat((int) this.readBytes(2));
+                case FLOAT:
+                    return (double) Float.intBitsToFloat(
+                            (int) this.readBytes(4));
+                case DOUBLE:
+                    return Double.longBitsToDouble(this.readBytes(8));
+                default:
+                    throw new JSONException(String.format(
+                            "Unsupported CBOR simple value 0x%02x",
+                            initial));
+            }
+        }
+
+        /**
+         * Read a byte or text string, joining the chunks of an indefinite
+         * length string.
+         *
+         * @param majorType The major type of the string
+         * @param info      The additional information of the initial byte
+         * @return The bytes of the string.
+         */
+        private byte[] readString(int majorType, int info) {
+            if (info != 31) {
+                int length = this.readLength(info);
+                byte[] bytes = Arrays.copyOfRange(this.data,
+                                                  this.position,
+                                                  this.position + length);
+                this.position += length;
+                return bytes;
+            }
+
+            ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            while (!this.readBreak()) {
+                int initial = this.readByte();
+                if (initial >>> 5 != majorType || (initial & 0x1f) == 31) {
+                    throw new JSONException("Invalid CBOR string chunk");
+                }
+
+                byte[] chunk = this.readString(majorType, initial & 0x1f);
+                chunks.write(chunk, 0, chunk.length);
+            }
+            return chunks.toByteArray();
+        }
+
+        /**
+         * Read a length which must fit in the remaining data.
+         *
+         * @param info The additional information of the initial byte
+         * @return The length.
+         */
+        private int readLength(int info) {
+            long length = this.readArgument(info);
+            if (length < 0 || length > this.data.length - this.position) {
+                throw new JSONException("Invalid CBOR length");
+            }
+
+            return (int) length;
+        }
+
+        /**
+         * Read the argument of a data item.
+         *
+         * @param info The additional information of the initial byte
+         * @return The argument, an unsigned 64-bit integer.
+         */
+        private long readArgument(int info) {
+            if (info < 24) {
+                return info;
+            }
+
+            switch (info) {
+                case 24:
+                    return this.readBytes(1);
+                case 25:
+                    return this.readBytes(2);
+                case 26:
+                    return this.readBytes(4);
+                case 27:
+                    return this.readBytes(8);
+                default:
+                    throw new JSONException("Invalid CBOR argument");
+            }
+        }
+
+        /**
+         * Consume a break byte, if one is next.
+         *
+         * @return Boolean indicating whether a break was read.
+         */
+        private boolean readBreak() {
+            if (this.position < this.data.length &&
+                    (this.data[this.position] & 0xff) == BREAK) {
+                ++this.position;
+                return true;
+            }
+
+            return false;
+        }
+
+        /**
+         * Read bytes as a big-endian integer.
+         *
+         * @param count Number of bytes to read
+         * @return The integer.
+         */
+        private long readBytes(int count) {
+            long value = 0;
+            for (int i = 0; i < count; ++i) {
+                value = (value << 8) | this.readByte();
+            }
+
+            return value;
+        }
+
+        /**
+         * Read a byte.
+         *
+         * @return The byte, as an unsigned value.
+         */
+        private int readByte() {
+            if (this.position >= this.data.length) {
+                throw new JSONException("Unexpected end of CBOR data");
+            }
+
+            return this.data[this.position++] & 0xff;
+        }
+
+        /**
+         * Narrow an integer to the type org.json would parse it as.
+         *
+         * @param value The integer
+         * @return The integer, as an Integer if it fits.
+         */
+        private static Object narrow(long value) {
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                return (int) value;
+            }
+
+            return value;
+        }
+
+        /**
+         * Convert a half precision float.
+         *
+         * @param half The bits of the half precision float
+         * @return The float.
+         */
+        private static float halfToFloat(int half) {
+            int exponent = (half >>> 10) & 0x1f;
+            int mantissa = half & 0x3ff;
+            float value;
+            if (exponent == 0) {
+                value = mantissa * (float) Math.pow(2, -24);
+            } else if (exponent == 31) {
+                value = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+            } else {
+                value = (mantissa + 1024) * (float) Math.pow(2, exponent - 25);
+            }
+
+            return (half & 0x8000) == 0 ? value : -value;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Change notification filter.
+ */
+package io.webthings.webthing;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which value changes are significant enough to notify listeners.
+ * <p>
+ * The stored value is always updated; the filter only suppresses
+ * notifications:
+ * <ul>
+ * <li>Changes within the deadband of the last notified value are suppressed.
+ * The deadband is the larger of the absolute deadband and the relative
+ * deadband times the magnitude of the last notified value. Deadbands only
+ * apply to numeric values.</li>
+ * <li>Changes within the minimum interval after the last notification are
+ * suppressed.</li>
+ * <li>Once the maximum interval since the last notification has passed, the
+ * next reported reading is notified even if it did not change, as a
+ * heartbeat.</li>
+ * </ul>
+ * Notifications are only evaluated when a reading is reported, so a
+ * suppressed change is delivered by the next notification or heartbeat.
+ * <p>
+ * A filter can be configured from property metadata with the keys
+ * {@code deadband}, {@code relativeDeadband}, {@code minInterval} and
+ * {@code maxInterval}, the intervals being in milliseconds.
+ */
+public class ChangeFilter {
+    private final double absoluteDeadband;
+    private final double relativeDeadband;
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+
+    /**
+     * Initialize the object. Use 0 to disable any of the criteria.
+     *
+     * @param absoluteDeadband Absolute change below which notifications are
+     *                         suppressed
+     * @param relativeDeadband Change, relative to the last notified value,
+     *                         below which notifications are suppressed, e.g.
+     *                         0.01 for 1%
+     * @param minInterval      Minimum time between notifications, in
+     *                         milliseconds
+     * @param maxInterval      Maximum time between notifications, in
+     *                         milliseconds, after which a heartbeat is sent
+     */
+    public ChangeFilter(double absoluteDeadband,
+                        double relativeDeadband,
+                        long minInterval,
+                        long maxInterval) {
+        if (absoluteDeadband < 0 || relativeDeadband < 0 ||
+                minInterval < 0 || maxInterval < 0) {
+            throw new IllegalArgumentException(
+                    "Change filter settings must not be negative.");
+        }
+
+        this.absoluteDeadband = absoluteDeadband;
+        this.relativeDeadband = relativeDeadband;
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minInterval);
+        this.maxIntervalNanos = TimeUnit.MILLISECONDS.toNanos(maxInterval);
+    }
+
+    /**
+     * Create a filter from property metadata.
+     *
+     * @param metadata The property metadata
+     * @return The filter, or null if the metadata does not configure one.
+     */
+    public static ChangeFilter fromMetadata(JSONObject metadata) {
+        if (metadata == null || !(metadata.has("deadband") ||
+                metadata.has("relativeDeadband") ||
+                metadata.has("minInterval") ||
+                metadata.has("maxInterval"))) {
+            return null;
+        }
+
+        return new ChangeFilter(metadata.optDouble("deadband", 0),
+                                metadata.optDouble("relativeDeadband", 0),
+                                metadata.optLong("minInterval", 0),
+                                metadata.optLong("maxInterval", 0));
+    }
+
+    /**
+     * Get the absolute deadband.
+     *
+     * @return The deadband.
+     */
+    public double getAbsoluteDeadband() {
+        return this.absoluteDeadband;
+    }
+
+    /**
+     * Get the relative deadband.
+     *
+     * @return The deadband.
+     */
+    public double getRelativeDeadband() {
+        return this.relativeDeadband;
+    }
+
+    /**
+     * Get the minimum interval between notifications.
+     *
+     * @return The interval in milliseconds.
+     */
+    public long getMinInterval() {
+        return TimeUnit.NANOSECONDS.toMillis(this.minIntervalNanos);
+    }
+
+    /**
+     * Get the maximum interval between notifications.
+     *
+     * @return The interval in milliseconds.
+     */
+    public long getMaxInterval() {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxIntervalNanos);
+    }
+
+    /**
+     * Determine whether a change should be notified.
+     *
+     * @param notifiedBefore Whether a notification was sent since the filter
+     *                       was installed
+     * @param elapsedNanos   Time since the last notification
+     * @param previous       The last notified value, or NaN if not numeric
+     * @param next           The new value, or NaN if not numeric
+     * @return Whether to notify.
+     */
+    boolean isSignificant(boolean notifiedBefore,
+                          long elapsedNanos,
+                          double previous,
+                          double next) {
+        if (notifiedBefore && elapsedNanos < this.minIntervalNanos) {
+            return false;
+        }
+
+        if (this.isHeartbeatDue(elapsedNanos) || !notifiedBefore ||
+                Double.isNaN(previous) || Double.isNaN(next) ||
+                Double.isInfinite(previous)) {
+            return true;
+        }
+
+        double threshold = Math.max(this.absoluteDeadband,
+                                    this.relativeDeadband * Math.abs(previous));
+        return Math.abs(next - previous) > threshold;
+    }
+
+    /**
+     * Determine whether an unchanged reading is due as a heartbeat.
+     *
+     * @param elapsedNanos Time since the last notification
+     * @return Whether to notify.
+     */
+    boolean isHeartbeatDue(long elapsedNanos) {
+        return this.maxIntervalNanos > 0 &&
+                elapsedNanos >= this.maxIntervalNanos;
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Payload encodings.
+ */
+package io.webthings.webthing;
+
+import org.json.JSONException;
+
+/**
+ * An encoding of JSON-like payloads, i.e. values of the org.json model:
+ * JSONObject, JSONArray, String, Number, Boolean and JSONObject.NULL.
+ * <p>
+ * The server negotiates a codec for REST bodies through the Accept and
+ * Content-Type headers, and for websockets through the subprotocol.
+ */
+public interface Codec {
+    /**
+     * JSON, the default encoding.
+     */
+    Codec JSON = new JsonCodec();
+
+    /**
+     * CBOR (RFC 8949).
+     */
+    Codec CBOR = new CborCodec();
+
+    /**
+     * Websocket subprotocol for CBOR messages in binary frames.
+     */
+    String CBOR_WEBSOCKET_PROTOCOL = "webthing+cbor";
+
+    /**
+     * Get the media type of the encoding.
+     *
+     * @return The media type.
+     */
+    String getMediaType();
+
+    /**
+     * Whether or not the encoding is sent in binary websocket frames.
+     *
+     * @return Boolean indicating whether the encoding is binary.
+     */
+    boolean isBinary();
+
+    /**
+     * Encode a value.
+     *
+     * @param value The value
+     * @return The encoded value.
+     */
+    byte[] encode(Object value);
+
+    /**
+     * Encode a value which is already serialized as JSON.
+     *
+     * @param json The JSON text
+     * @return The encoded value.
+     * @throws JSONException If the text is not valid JSON.
+     */
+    byte[] encodeJson(String json);
+
+    /**
+     * Decode a value.
+     *
+     * @param data The encoded value
+     * @return The decoded value.
+     * @throws JSONException If the data is malformed.
+     */
+    Object decode(byte[] data);
+
+    /**
+     * Select the codec for a response.
+     * <p>
+     * CBOR is only selected if the client lists it and does not prefer JSON.
+     *
+     * @param accept The request's Accept header
+     * @return The codec.
+     */
+    static Codec forAccept(String accept) {
+        if (accept == null) {
+            return JSON;
+        }
+
+        double cbor = -1;
+        double json = -1;
+        double wildcard = -1;
+        for (String range : accept.split(",")) {
+            String[] params = range.split(";");
+            double quality = 1;
+            for (int i = 1; i < params.length; ++i) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+
+            switch (params[0].trim().toLowerCase()) {
+                case "application/cbor":
+                    cbor = quality;
+                    break;
+                case "application/json":
+                    json = quality;
+                    break;
+                case "application/*":
+                case "*/*":
+                    wildcard = Math.max(wildcard, quality);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (json < 0) {
+            json = wildcard;
+        }
+
+        return cbor > 0 && cbor >= json ? CBOR : JSON;
+    }
+
+    /**
+     * Select the codec for a request body.
+     *
+     * @param contentType The request's Content-Type header
+     * @return The codec.
+     */
+    static Codec forContentType(String contentType) {
+        if (contentType != null &&
+                contentType.split(";")[0]
+                           .trim()
+                           .equalsIgnoreCase(CBOR.getMediaType())) {
+            return CBOR;
+        }
+
+        return JSON;
+    }
+
+    /**
+     * Select the codec for a websocket.
+     *
+     * @param protocols The request's Sec-WebSocket-Protocol header
+     * @return The codec.
+     */
+    static Codec forWebSocketProtocols(String protocols) {
+        if (protocols != null) {
+            for (String protocol : protocols.split(",")) {
+                if (protocol.trim().equals(CBOR_WEBSOCKET_PROTOCOL)) {
+                    return CBOR;
+                }
+            }
+        }
+
+        return JSON;
+    }
+}
@@ -0,0 +1,151 @@
+package io.webthings.webthing;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.DoubleConsumer;
+
+/**
+ * A property value holding a primitive double.
+ * <p>
+ * Stores the reading unboxed, detects changes with a primitive comparison and
+ * serializes it without boxing, which keeps high-rate sensor updates from
+ * churning the heap. Concurrent updates are published with a compare-and-set.
+ */
+public class DoubleValue extends Value<Double> {
+    private static final AtomicLongFieldUpdater<DoubleValue> LAST_BITS =
+            AtomicLongFieldUpdater.newUpdater(DoubleValue.class, "lastBits");
+
+    private final DoubleConsumer valueForwarder;
+    private volatile long lastBits;
+
+    /**
+     * Create a read only value that can only be updated by a Thing's reading.
+     *
+     * @param initialValue The initial value
+     */
+    public DoubleValue(final double initialValue) {
+        this(initialValue, null);
+    }
+
+    /**
+     * Create a writable value that can be set to a new value.
+     *
+     * @param initialValue   The initial value
+     * @param valueForwarder The method that updates the actual value on the
+     *                       thing
+     */
+    public DoubleValue(final double initialValue, final DoubleConsumer valueForwarder) {
+        this(initialValue, valueForwarder, null);
+    }
+
+    /**
+     * Create a value whose change notifications are filtered.
+     *
+     * @param initialValue   The initial value
+     * @param valueForwarder The method that updates the actual value on the
+     *                       thing, or null for a read only value
+     * @param changeFilter   The filter deciding which changes are notified,
+     *                       or null to notify all changes
+     */
+    public DoubleValue(final double initialValue,
+                       final DoubleConsumer valueForwarder,
+                       final ChangeFilter changeFilter) {
+        super(Double.class, null, null, changeFilter);
+        this.lastBits = Double.doubleToLongBits(initialValue);
+        this.valueForwarder = valueForwarder;
+    }
+
+    /**
+     * Set a new value for this thing.
+     *
+     * @param value Value to set
+     */
+    public void set(double value) {
+        if (this.valueForwarder != null) {
+            this.valueForwarder.accept(value);
+        }
+
+        this.notifyOfExternalUpdate(value);
+    }
+
+    @Override
+    public void set(Double value) {
+        if (value != null) {
+            this.set(value.doubleValue());
+        }
+    }
+
+    /**
+     * Returns the last known value from the underlying thing.
+     *
+     * @return The value.
+     */
+    public double getDouble() {
+        return Double.longBitsToDouble(this.lastBits);
+    }
+
+    @Override
+    public Double get() {
+        return this.getDouble();
+    }
+
+    /**
+     * Called if the underlying thing reported a new value. This informs
+     * listeners about the update.
+     * <p>
+     * Values are compared by their bit patterns, like
+     * {@link Double#equals(Object)}, so repeated NaN readings do not count as
+     * changes.
+     *
+     * @param value the newly reported value
+     */
+    public void notifyOfExternalUpdate(double value) {
+        long bits = Double.doubleToLongBits(value);
+        long current;
+        do {
+            current = this.lastBits;
+            if (bits == current) {
+                this.valueUnchanged();
+                return;
+            }
+        } while (!LAST_BITS.compareAndSet(this, current, bits));
+
+        Listener[] listeners = this.changedListeners();
+        if (listeners != null) {
+            // Box the value stored only if an observer is handed it
+            this.dispatchValueChanged(listeners,
+                                      hasObserver(listeners) ?
+                                      Double.valueOf(value) :
+                                      null);
+        }
+    }
+
+    @Override
+    public void notifyOfExternalUpdate(Double value) {
+        if (value != null) {
+            this.notifyOfExternalUpdate(value.doubleValue());
+        }
+    }
+
+    /**
+     * Append the current value to a JSON document being built.
+     * <p>
+     * JSON cannot represent NaN or infinite numbers, so those are written as
+     * null.
+     *
+     * @param builder The builder to append to
+     */
+    @Override
+    public void appendJson(StringBuilder builder) {
+        double value = this.getDouble();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            builder.append("null");
+        } else {
+            builder.append(value);
+        }
+    }
+
+    @Override
+    protected double doubleValue() {
+        return this.getDouble();
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Result of a graceful shutdown.
+ */
+package io.webthings.webthing;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What {@link WebThingServer#stop(java.time.Duration)} could not finish
+ * before its deadline.
+ */
+public final class DrainReport {
+    private final int abandonedRequests;
+    private final List<Action> abandonedActions;
+    private final int unclosedWebSockets;
+
+    /**
+     * Initialize the object.
+     *
+     * @param abandonedRequests  Number of requests still being handled
+     * @param abandonedActions   Actions which were cancelled
+     * @param unclosedWebSockets Number of websockets which did not
+     *                           acknowledge the close
+     */
+    DrainReport(int abandonedRequests,
+                List<Action> abandonedActions,
+                int unclosedWebSockets) {
+        this.abandonedRequests = abandonedRequests;
+        this.abandonedActions = Collections.unmodifiableList(abandonedActions);
+        this.unclosedWebSockets = unclosedWebSockets;
+    }
+
+    /**
+     * Get the number of HTTP requests which were still being handled at the
+     * deadline, and whose connections were closed.
+     *
+     * @return The number of requests.
+     */
+    public int getAbandonedRequests() {
+        return this.abandonedRequests;
+    }
+
+    /**
+     * Get the actions which were still waiting or running at the deadline,
+     * and which were cancelled.
+     *
+     * @return The actions.
+     */
+    public List<Action> getAbandonedActions() {
+        return this.abandonedActions;
+    }
+
+    /**
+     * Get the number of websockets which did not answer the close frame
+     * before the deadline, and whose connections were closed.
+     *
+     * @return The number of websockets.
+     */
+    public int getUnclosedWebSockets() {
+        return this.unclosedWebSockets;
+    }
+
+    /**
+     * Get whether everything finished before the deadline.
+     *
+     * @return Whether nothing was abandoned.
+     */
+    public boolean isClean() {
+        return this.abandonedRequests == 0 &&
+                this.abandonedActions.isEmpty() &&
+                this.unclosedWebSockets == 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d requests, %d actions and %d websockets " +
+                                     "abandoned",
+                             this.abandonedRequests,
+                             this.abandonedActions.size(),
+                             this.unclosedWebSockets);
+    }
+}
@@ -15,7 +15,8 @@ public class Event<T> {
     private final Thing thing;
     private final String name;
     private final T data;
-    private final String time;
+    private final long time;
+    private volatile String descriptionJson;
 
     /**
      * Initialize the object.
@@ -38,7 +39,7 @@ public class Event<T> {
         this.thing = thing;
         this.name = name;
         this.data = data;
-        this.time = Utils.timestamp();
+        this.time = Utils.currentTimeMillis();
     }
 
     /**
@@ -50,7 +51,7 @@ public class Event<T> {
         JSONObject obj = new JSONObject();
         JSONObject inner = new JSONObject();
         try {
-            inner.put("timestamp", this.time);
+            inner.put("timestamp", this.getTime());
 
             if (this.data != null) {
                 inner.put("data", this.data);
@@ -63,6 +64,24 @@ public class Event<T> {
         }
     }
 
+    /**
+     * Get the event description, serialized as JSON.
+     * <p>
+     * Events do not change once created, so the description is serialized
+     * only once and reused for notifications and event listings.
+     *
+     * @return Description of the event as a JSON string.
+     */
+    public String asEventDescriptionJson() {
+        String json = this.descriptionJson;
+        if (json == null) {
+            json = String.valueOf(this.asEventDescription());
+            this.descriptionJson = json;
+        }
+
+        return json;
+    }
+
     /**
      * Get the thing associated with this event.
      *
@@ -96,6 +115,15 @@ public class Event<T> {
      * @return The time.
      */
     public String getTime() {
+        return Utils.timestamp(this.time);
+    }
+
+    /**
+     * Get the event's timestamp.
+     *
+     * @return Milliseconds since the epoch.
+     */
+    public long getTimeMillis() {
         return this.time;
     }
 }
@@ -0,0 +1,138 @@
+/**
+ * Java Flight Recorder hooks.
+ */
+package io.webthings.webthing;
+
+/**
+ * Emitter of Java Flight Recorder events for property writes, notification
+ * fan-out, action runs and slow websocket sends.
+ * <p>
+ * This class does nothing; {@link #get()} returns an emitter backed by
+ * {@code jdk.jfr} when the running JDK has it, so that the library still runs
+ * on Java 8 releases without it. Each event is begun with a {@code begin}
+ * method, which returns null unless a recording has the event enabled, and is
+ * given to the matching {@code commit} method when the operation ends. Nothing
+ * is allocated or timed while no recording is enabled.
+ */
+class FlightEvents {
+    private static final FlightEvents INSTANCE = load();
+
+    /**
+     * Initialize the object.
+     */
+    FlightEvents() {
+    }
+
+    /**
+     * Get the emitter for the running JDK.
+     *
+     * @return The emitter.
+     */
+    static FlightEvents get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Load the jdk.jfr backed emitter, if the JDK supports it.
+     *
+     * @return The emitter.
+     */
+    private static FlightEvents load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (FlightEvents) Class.forName(
+                    "io.webthings.webthing.JfrFlightEvents")
+                                       .getDeclaredConstructor()
+                                       .newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new FlightEvents();
+        }
+    }
+
+    /**
+     * Begin a property write event.
+     *
+     * @return The event, or null if it is not recorded.
+     */
+    Object beginPropertyWrite() {
+        return null;
+    }
+
+    /**
+     * Commit a property write event.
+     *
+     * @param event           The event
+     * @param property        The property written
+     * @param validationNanos Time spent validating the value
+     * @param valid           Whether the value was valid
+     */
+    void commitPropertyWrite(Object event,
+                             Property<?> property,
+                             long validationNanos,
+                             boolean valid) {
+    }
+
+    /**
+     * Begin a notification event.
+     *
+     * @return The event, or null if it is not recorded.
+     */
+    Object beginNotification() {
+        return null;
+    }
+
+    /**
+     * Commit a notification event.
+     *
+     * @param event       The event
+     * @param thing       The thing whose subscribers were notified
+     * @param messageType The websocket message type
+     * @param name        Name of the property or event
+     * @param subscribers Number of subscribers notified
+     */
+    void commitNotification(Object event,
+                            Thing thing,
+                            String messageType,
+                            String name,
+                            int subscribers) {
+    }
+
+    /**
+     * Begin an action event, when the action starts.
+     *
+     * @return The event, or null if it is not recorded.
+     */
+    Object beginAction() {
+        return null;
+    }
+
+    /**
+     * Commit an action event, when the action finishes.
+     *
+     * @param event  The event
+     * @param action The action
+     */
+    void commitAction(Object event, Action action) {
+    }
+
+    /**
+     * Begin a websocket send event.
+     *
+     * @return The event, or null if it is not recorded.
+     */
+    Object beginWebSocketSend() {
+        return null;
+    }
+
+    /**
+     * Commit a websocket send event. It is only recorded if the send took
+     * longer than the event's threshold.
+     *
+     * @param event  The event
+     * @param thing  The thing the websocket is subscribed to
+     * @param length Length of the message, in characters
+     * @param sent   Whether the message was sent
+     */
+    void commitWebSocketSend(Object event, Thing thing, int length, boolean sent) {
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Idempotency key cache.
+ */
+package io.webthings.webthing;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Actions requested with an idempotency key, so that retried requests return
+ * the action the first request created.
+ * <p>
+ * The cache is bounded in size, and keys expire a fixed time after their
+ * first use, as given by {@link Utils#currentTimeMillis()}.
+ */
+class IdempotencyCache {
+    /**
+     * Longest accepted key.
+     */
+    static final int MAX_KEY_LENGTH = 255;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private volatile int maxKeys;
+    private volatile long expiryMillis;
+
+    /**
+     * Initialize the object.
+     *
+     * @param maxKeys      Number of keys to remember
+     * @param expiryMillis Time to remember a key for, in milliseconds
+     */
+    IdempotencyCache(int maxKeys, long expiryMillis) {
+        this.setLimits(maxKeys, expiryMillis);
+    }
+
+    /**
+     * Set the limits of the cache. They apply to keys used afterwards.
+     *
+     * @param maxKeys      Number of keys to remember
+     * @param expiryMillis Time to remember a key for, in milliseconds
+     * @throws IllegalArgumentException If a limit is negative.
+     */
+    void setLimits(int maxKeys, long expiryMillis) {
+        if (maxKeys < 0 || expiryMillis < 0) {
+            throw new IllegalArgumentException(
+                    "Idempotency key limits must not be negative");
+        }
+
+        this.maxKeys = maxKeys;
+        this.expiryMillis = expiryMillis;
+    }
+
+    /**
+     * Get the action created with a key, or create one.
+     * <p>
+     * Requests with the same key wait for the first of them to create its
+     * action, so that concurrent retries still create a single action. The
+     * action is created without holding the cache's lock, so requests with
+     * other keys do not wait.
+     *
+     * @param key    The key
+     * @param create Creator of the action, which may return null if the
+     *               request is invalid
+     * @return The action, or null if none was created.
+     */
+    Action get(String key, Supplier<Action> create) {
+        if (this.maxKeys == 0) {
+            return create.get();
+        }
+
+        while (true) {
+            Entry entry;
+            boolean creator = false;
+            synchronized (this) {
+                long now = Utils.currentTimeMillis();
+                this.expire(now);
+
+                entry = this.entries.get(key);
+                if (entry == null) {
+                    entry = new Entry(now + this.expiryMillis);
+                    creator = true;
+                    this.entries.put(key, entry);
+                    if (this.entries.size() > this.maxKeys) {
+                        Iterator<Entry> oldest = this.entries.values().iterator();
+                        oldest.next();
+                        oldest.remove();
+                    }
+                }
+            }
+
+            if (creator) {
+                return this.create(key, entry, create);
+            }
+
+            // An invalid first request leaves the key unused, and the
+            // waiting ones try again
+            Action action = entry.action.join();
+            if (action != null) {
+                return action;
+            }
+        }
+    }
+
+    /**
+     * Create the action for a key, and pass it to the requests waiting for
+     * it. The key is forgotten if no action was created.
+     *
+     * @param key    The key
+     * @param entry  The key's entry
+     * @param create Creator of the action
+     * @return The action, or null if none was created.
+     */
+    private Action create(String key, Entry entry, Supplier<Action> create) {
+        Action action = null;
+        try {
+            action = create.get();
+        } finally {
+            if (action == null) {
+                synchronized (this) {
+                    this.entries.remove(key, entry);
+                }
+            }
+            entry.action.complete(action);
+        }
+
+        return action;
+    }
+
+    /**
+     * Remove expired keys. Keys are held in the order they were first used,
+     * so only the oldest ones need to be checked.
+     *
+     * @param now The current time, in milliseconds since the epoch
+     */
+    private void expire(long now) {
+        Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet()
+                                                            .iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().expires > now) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    /**
+     * An action, once it is created, and the time its key expires.
+     */
+    private static class Entry {
+        private final CompletableFuture<Action> action;
+        private final long expires;
+
+        /**
+         * Initialize the object.
+         *
+         * @param expires Expiry time, in milliseconds since the epoch
+         */
+        Entry(long expires) {
+            this.action = new CompletableFuture<>();
+            this.expires = expires;
+        }
+    }
+}
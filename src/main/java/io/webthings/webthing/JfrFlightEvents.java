@@ -0,0 +1,212 @@
+/**
+ * Java Flight Recorder events.
+ */
+package io.webthings.webthing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Emitter of Java Flight Recorder events, backed by {@code jdk.jfr}.
+ * <p>
+ * This class is only loaded by {@link FlightEvents#get()} once it has checked
+ * that the JDK supports it.
+ */
+class JfrFlightEvents extends FlightEvents {
+    private static final EventType PROPERTY_WRITE =
+            EventType.getEventType(PropertyWrite.class);
+    private static final EventType NOTIFICATION =
+            EventType.getEventType(Notification.class);
+    private static final EventType ACTION =
+            EventType.getEventType(ActionRun.class);
+    private static final EventType WEBSOCKET_SEND =
+            EventType.getEventType(WebSocketSend.class);
+
+    /**
+     * Initialize the object.
+     */
+    JfrFlightEvents() {
+    }
+
+    @Override
+    Object beginPropertyWrite() {
+        if (!PROPERTY_WRITE.isEnabled()) {
+            return null;
+        }
+
+        PropertyWrite event = new PropertyWrite();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void commitPropertyWrite(Object event,
+                             Property<?> property,
+                             long validationNanos,
+                             boolean valid) {
+        PropertyWrite write = (PropertyWrite) event;
+        write.end();
+        if (write.shouldCommit()) {
+            write.thing = property.getThing().getId();
+            write.property = property.getName();
+            write.validation = validationNanos;
+            write.valid = valid;
+            write.commit();
+        }
+    }
+
+    @Override
+    Object beginNotification() {
+        if (!NOTIFICATION.isEnabled()) {
+            return null;
+        }
+
+        Notification event = new Notification();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void commitNotification(Object event,
+                            Thing thing,
+                            String messageType,
+                            String name,
+                            int subscribers) {
+        Notification notification = (Notification) event;
+        notification.end();
+        if (notification.shouldCommit()) {
+            notification.thing = thing.getId();
+            notification.messageType = messageType;
+            notification.name = name;
+            notification.subscribers = subscribers;
+            notification.commit();
+        }
+    }
+
+    @Override
+    Object beginAction() {
+        if (!ACTION.isEnabled()) {
+            return null;
+        }
+
+        ActionRun event = new ActionRun();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void commitAction(Object event, Action action) {
+        ActionRun run = (ActionRun) event;
+        run.end();
+        if (run.shouldCommit()) {
+            run.thing = action.getThing().getId();
+            run.action = action.getName();
+            run.id = action.getId();
+            run.status = action.getStatus();
+            run.commit();
+        }
+    }
+
+    @Override
+    Object beginWebSocketSend() {
+        if (!WEBSOCKET_SEND.isEnabled()) {
+            return null;
+        }
+
+        WebSocketSend event = new WebSocketSend();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void commitWebSocketSend(Object event, Thing thing, int length, boolean sent) {
+        WebSocketSend send = (WebSocketSend) event;
+        send.end();
+        if (send.shouldCommit()) {
+            send.thing = thing.getId();
+            send.length = length;
+            send.sent = sent;
+            send.commit();
+        }
+    }
+
+    @Name("io.webthings.webthing.PropertyWrite")
+    @Label("Property Write")
+    @Category("Web Thing")
+    @Description("A property value set through Property.setValue, including " +
+            "validation and change notification")
+    static class PropertyWrite extends Event {
+        @Label("Thing")
+        String thing;
+
+        @Label("Property")
+        String property;
+
+        @Label("Validation Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long validation;
+
+        @Label("Valid")
+        boolean valid;
+    }
+
+    @Name("io.webthings.webthing.Notification")
+    @Label("Notification")
+    @Category("Web Thing")
+    @Description("A message fanned out to a thing's websocket subscribers")
+    static class Notification extends Event {
+        @Label("Thing")
+        String thing;
+
+        @Label("Message Type")
+        String messageType;
+
+        @Label("Name")
+        @Description("Name of the property, action or event")
+        String name;
+
+        @Label("Subscribers")
+        int subscribers;
+    }
+
+    @Name("io.webthings.webthing.Action")
+    @Label("Action")
+    @Category("Web Thing")
+    @Description("An action, from starting to finishing")
+    static class ActionRun extends Event {
+        @Label("Thing")
+        String thing;
+
+        @Label("Action")
+        String action;
+
+        @Label("ID")
+        String id;
+
+        @Label("Status")
+        String status;
+    }
+
+    @Name("io.webthings.webthing.WebSocketSend")
+    @Label("WebSocket Send Stall")
+    @Category("Web Thing")
+    @Description("A websocket message which took long to encode and write")
+    @Threshold("20 ms")
+    static class WebSocketSend extends Event {
+        @Label("Thing")
+        String thing;
+
+        @Label("Length")
+        @Description("Length of the message, in characters")
+        int length;
+
+        @Label("Sent")
+        boolean sent;
+    }
+}
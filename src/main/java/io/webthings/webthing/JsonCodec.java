@@ -0,0 +1,61 @@
+/**
+ * JSON payload encoding.
+ */
+package io.webthings.webthing;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The JSON encoding, backed by org.json.
+ */
+public class JsonCodec implements Codec {
+    /**
+     * Initialize the object. Use {@link Codec#JSON} rather than creating new
+     * instances.
+     */
+    JsonCodec() {
+    }
+
+    @Override
+    public String getMediaType() {
+        return "application/json";
+    }
+
+    @Override
+    public boolean isBinary() {
+        return false;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        String json;
+        if (value instanceof JSONObject || value instanceof JSONArray) {
+            json = value.toString();
+        } else {
+            json = JSONObject.valueToString(value);
+        }
+
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] encodeJson(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Object decode(byte[] data) {
+        JSONTokener tokener =
+                new JSONTokener(new String(data, StandardCharsets.UTF_8));
+        Object value = tokener.nextValue();
+        if (tokener.nextClean() != 0) {
+            throw tokener.syntaxError("Unexpected data after value");
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,133 @@
+package io.webthings.webthing;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.LongConsumer;
+
+/**
+ * A property value holding a primitive long.
+ * <p>
+ * Stores the reading unboxed, detects changes with a primitive comparison and
+ * serializes it without boxing, which keeps high-rate sensor updates from
+ * churning the heap. Concurrent updates are published with a compare-and-set.
+ */
+public class LongValue extends Value<Long> {
+    private static final AtomicLongFieldUpdater<LongValue> LAST_VALUE =
+            AtomicLongFieldUpdater.newUpdater(LongValue.class, "lastValue");
+
+    private final LongConsumer valueForwarder;
+    private volatile long lastValue;
+
+    /**
+     * Create a read only value that can only be updated by a Thing's reading.
+     *
+     * @param initialValue The initial value
+     */
+    public LongValue(final long initialValue) {
+        this(initialValue, null);
+    }
+
+    /**
+     * Create a writable value that can be set to a new value.
+     *
+     * @param initialValue   The initial value
+     * @param valueForwarder The method that updates the actual value on the
+     *                       thing
+     */
+    public LongValue(final long initialValue, final LongConsumer valueForwarder) {
+        this(initialValue, valueForwarder, null);
+    }
+
+    /**
+     * Create a value whose change notifications are filtered.
+     *
+     * @param initialValue   The initial value
+     * @param valueForwarder The method that updates the actual value on the
+     *                       thing, or null for a read only value
+     * @param changeFilter   The filter deciding which changes are notified,
+     *                       or null to notify all changes
+     */
+    public LongValue(final long initialValue,
+                     final LongConsumer valueForwarder,
+                     final ChangeFilter changeFilter) {
+        super(Long.class, null, null, changeFilter);
+        this.lastValue = initialValue;
+        this.valueForwarder = valueForwarder;
+    }
+
+    /**
+     * Set a new value for this thing.
+     *
+     * @param value Value to set
+     */
+    public void set(long value) {
+        if (this.valueForwarder != null) {
+            this.valueForwarder.accept(value);
+        }
+
+        this.notifyOfExternalUpdate(value);
+    }
+
+    @Override
+    public void set(Long value) {
+        if (value != null) {
+            this.set(value.longValue());
+        }
+    }
+
+    /**
+     * Returns the last known value from the underlying thing.
+     *
+     * @return The value.
+     */
+    public long getLong() {
+        return this.lastValue;
+    }
+
+    @Override
+    public Long get() {
+        return this.lastValue;
+    }
+
+    /**
+     * Called if the underlying thing reported a new value. This informs
+     * listeners about the update.
+     *
+     * @param value the newly reported value
+     */
+    public void notifyOfExternalUpdate(long value) {
+        long current;
+        do {
+            current = this.lastValue;
+            if (value == current) {
+                this.valueUnchanged();
+                return;
+            }
+        } while (!LAST_VALUE.compareAndSet(this, current, value));
+
+        Listener[] listeners = this.changedListeners();
+        if (listeners != null) {
+            // Box the value stored only if an observer is handed it
+            this.dispatchValueChanged(listeners,
+                                      hasObserver(listeners) ?
+                                      Long.valueOf(value) :
+                                      null);
+        }
+    }
+
+    @Override
+    public void notifyOfExternalUpdate(Long value) {
+        if (value != null) {
+            this.notifyOfExternalUpdate(value.longValue());
+        }
+    }
+
+    @Override
+    public void appendJson(StringBuilder builder) {
+        builder.append(this.lastValue);
+    }
+
+    @Override
+    protected double doubleValue() {
+        return this.getLong();
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * JSON merge patches.
+ */
+package io.webthings.webthing;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * JSON merge patches, as defined by RFC 7396.
+ * <p>
+ * A patch is a JSON object whose members replace those of the target, with
+ * nested objects merged recursively and null members removed. Any other patch
+ * replaces the target as a whole.
+ */
+final class MergePatch {
+    /**
+     * Not instantiable.
+     */
+    private MergePatch() {
+    }
+
+    /**
+     * Apply a merge patch. Neither the target nor the patch are modified.
+     *
+     * @param target The value to patch, or null if there is none
+     * @param patch  The patch
+     * @return The patched value.
+     */
+    static Object apply(Object target, Object patch) {
+        if (!(patch instanceof JSONObject)) {
+            return copy(patch);
+        }
+
+        JSONObject result = target instanceof JSONObject ?
+                            (JSONObject) copy(target) :
+                            new JSONObject();
+        JSONObject members = (JSONObject) patch;
+        for (String name : members.keySet()) {
+            Object value = members.get(name);
+            if (value == JSONObject.NULL) {
+                result.remove(name);
+            } else {
+                result.put(name, apply(result.opt(name), value));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the merge patch which turns one value into another.
+     *
+     * @param source The old value
+     * @param target The new value
+     * @return The patch, or null if the new value cannot be reached by a
+     * merge patch, i.e. it is an object with null members.
+     */
+    static Object diff(Object source, Object target) {
+        if (!(target instanceof JSONObject)) {
+            return target;
+        }
+
+        JSONObject to = (JSONObject) target;
+        if (hasNull(to)) {
+            return null;
+        }
+
+        if (!(source instanceof JSONObject)) {
+            return target;
+        }
+
+        JSONObject from = (JSONObject) source;
+        JSONObject patch = new JSONObject();
+        for (String name : from.keySet()) {
+            if (!to.has(name)) {
+                patch.put(name, JSONObject.NULL);
+            }
+        }
+
+        for (String name : to.keySet()) {
+            Object value = to.get(name);
+            Object old = from.opt(name);
+            if (old == null) {
+                patch.put(name, value);
+            } else if (!similar(old, value)) {
+                patch.put(name, diff(old, value));
+            }
+        }
+
+        return patch;
+    }
+
+    /**
+     * Make a deep copy of a JSON value, so that it can be kept while the
+     * original is modified.
+     *
+     * @param value The value
+     * @return The copy.
+     */
+    static Object copy(Object value) {
+        if (value instanceof JSONObject) {
+            return new JSONObject(value.toString());
+        }
+
+        if (value instanceof JSONArray) {
+            return new JSONArray(value.toString());
+        }
+
+        return value;
+    }
+
+    /**
+     * Get whether an object has null members, at any depth.
+     *
+     * @param object The object
+     * @return Whether it has null members.
+     */
+    private static boolean hasNull(JSONObject object) {
+        for (String name : object.keySet()) {
+            Object value = object.get(name);
+            if (value == JSONObject.NULL ||
+                    (value instanceof JSONObject &&
+                            hasNull((JSONObject) value))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Compare two JSON values.
+     *
+     * @param a One value
+     * @param b The other value
+     * @return Whether they are equal.
+     */
+    private static boolean similar(Object a, Object b) {
+        if (a instanceof JSONObject) {
+            return ((JSONObject) a).similar(b);
+        }
+
+        if (a instanceof JSONArray) {
+            return ((JSONArray) a).similar(b);
+        }
+
+        if (a instanceof Number && b instanceof Number) {
+            return JSONObject.numberToString((Number) a)
+                             .equals(JSONObject.numberToString((Number) b));
+        }
+
+        return a.equals(b);
+    }
+}
@@ -0,0 +1,470 @@
+/**
+ * Metrics registry.
+ */
+package io.webthings.webthing;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A registry of counters, gauges and histograms, exported in the Prometheus
+ * text format.
+ * <p>
+ * Recording is lock-free: every metric is backed by {@link LongAdder}s, and
+ * metrics are looked up in concurrent maps, so hot paths can record without
+ * contending with each other or with a scrape. Callers on hot paths should
+ * look a metric up once and keep it.
+ * <p>
+ * The library records into the {@link #getDefault() default registry}.
+ */
+public class Metrics {
+    /**
+     * Default histogram buckets, in seconds.
+     */
+    public static final double[] DEFAULT_BUCKETS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+            0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    private static final Metrics DEFAULT = new Metrics();
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * Get the registry the library records into.
+     *
+     * @return The registry.
+     */
+    public static Metrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Get a counter.
+     *
+     * @param name   Name of the metric
+     * @param help   Description of the metric
+     * @param labels Label names and values, alternating
+     * @return The counter.
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) this.family(name, help, "counter")
+                             .get(labels, Counter::new);
+    }
+
+    /**
+     * Get a gauge which is set by the caller.
+     *
+     * @param name   Name of the metric
+     * @param help   Description of the metric
+     * @param labels Label names and values, alternating
+     * @return The gauge.
+     */
+    public Gauge gauge(String name, String help, String... labels) {
+        return (Gauge) this.family(name, help, "gauge").get(labels, Gauge::new);
+    }
+
+    /**
+     * Register a gauge whose value is read when metrics are exported,
+     * replacing any gauge registered with the same name and labels.
+     *
+     * @param name   Name of the metric
+     * @param help   Description of the metric
+     * @param value  Supplier of the value
+     * @param labels Label names and values, alternating
+     */
+    public void gauge(String name,
+                      String help,
+                      Supplier<? extends Number> value,
+                      String... labels) {
+        this.family(name, help, "gauge")
+            .put(labels, new CallbackGauge(value));
+    }
+
+    /**
+     * Remove a metric.
+     *
+     * @param name   Name of the metric
+     * @param labels Label names and values, alternating
+     */
+    public void remove(String name, String... labels) {
+        Family family = this.families.get(name);
+        if (family != null) {
+            family.metrics.remove(Family.key(labels));
+        }
+    }
+
+    /**
+     * Get a histogram with the default buckets.
+     *
+     * @param name   Name of the metric
+     * @param help   Description of the metric
+     * @param labels Label names and values, alternating
+     * @return The histogram.
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) this.family(name, help, "histogram")
+                               .get(labels, () -> new Histogram(DEFAULT_BUCKETS));
+    }
+
+    /**
+     * Export all metrics in the Prometheus text format.
+     *
+     * @return The metrics.
+     */
+    public String export() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : this.families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            if (family.metrics.isEmpty()) {
+                continue;
+            }
+
+            out.append("# HELP ").append(name).append(' ')
+               .append(family.help.replace("\\", "\\\\").replace("\n", "\\n"))
+               .append('\n');
+            out.append("# TYPE ").append(name).append(' ')
+               .append(family.type).append('\n');
+            for (Map.Entry<String, Metric> metric : family.metrics.entrySet()) {
+                metric.getValue().export(out, name, metric.getKey());
+            }
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * Get or create a family of metrics.
+     *
+     * @param name Name of the metric
+     * @param help Description of the metric
+     * @param type Prometheus type of the metric
+     * @return The family.
+     */
+    private Family family(String name, String help, String type) {
+        Family family = this.families.get(name);
+        if (family == null) {
+            family = this.families.computeIfAbsent(name,
+                                                   n -> new Family(help, type));
+        }
+
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(
+                    "Metric " + name + " is a " + family.type);
+        }
+
+        return family;
+    }
+
+    /**
+     * Format a number for export.
+     *
+     * @param out   The output
+     * @param value The number
+     */
+    private static void appendNumber(StringBuilder out, double value) {
+        if (Double.isNaN(value)) {
+            out.append("NaN");
+        } else if (Double.isInfinite(value)) {
+            out.append(value > 0 ? "+Inf" : "-Inf");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            // Avoid exponents, e.g. 1.0E-4
+            out.append(BigDecimal.valueOf(value)
+                                 .stripTrailingZeros()
+                                 .toPlainString());
+        }
+    }
+
+    /**
+     * Metrics with the same name and different labels.
+     */
+    private static class Family {
+        private final String help;
+        private final String type;
+        private final Map<String, Metric> metrics =
+                new ConcurrentSkipListMap<>();
+
+        /**
+         * Initialize the object.
+         *
+         * @param help Description of the metrics
+         * @param type Prometheus type of the metrics
+         */
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+
+        /**
+         * Get or create the metric with the given labels.
+         *
+         * @param labels  Label names and values, alternating
+         * @param factory Creator of a new metric
+         * @return The metric.
+         */
+        Metric get(String[] labels, Supplier<Metric> factory) {
+            String key = key(labels);
+            Metric metric = this.metrics.get(key);
+            if (metric == null) {
+                metric = this.metrics.computeIfAbsent(key, k -> factory.get());
+            }
+
+            return metric;
+        }
+
+        /**
+         * Set the metric with the given labels.
+         *
+         * @param labels Label names and values, alternating
+         * @param metric The metric
+         */
+        void put(String[] labels, Metric metric) {
+            this.metrics.put(key(labels), metric);
+        }
+
+        /**
+         * Format labels as they are exported, which also makes them a key.
+         *
+         * @param labels Label names and values, alternating
+         * @return The formatted labels, e.g. {@code a="1",b="2"}.
+         */
+        static String key(String[] labels) {
+            if (labels.length % 2 != 0) {
+                throw new IllegalArgumentException(
+                        "Labels must be name and value pairs: " +
+                                Arrays.toString(labels));
+            }
+
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < labels.length; i += 2) {
+                if (i > 0) {
+                    key.append(',');
+                }
+                key.append(labels[i]).append("=\"");
+                String value = labels[i + 1] == null ? "" : labels[i + 1];
+                for (int j = 0; j < value.length(); ++j) {
+                    char c = value.charAt(j);
+                    if (c == '\\' || c == '"') {
+                        key.append('\\').append(c);
+                    } else if (c == '\n') {
+                        key.append("\\n");
+                    } else {
+                        key.append(c);
+                    }
+                }
+                key.append('"');
+            }
+
+            return key.toString();
+        }
+    }
+
+    /**
+     * A single exported metric.
+     */
+    private interface Metric {
+        /**
+         * Export the metric.
+         *
+         * @param out    The output
+         * @param name   Name of the metric
+         * @param labels The formatted labels
+         */
+        void export(StringBuilder out, String name, String labels);
+    }
+
+    /**
+     * Append a sample line.
+     *
+     * @param out    The output
+     * @param name   Name of the sample
+     * @param labels The formatted labels
+     * @param value  The value
+     */
+    private static void appendSample(StringBuilder out,
+                                     String name,
+                                     String labels,
+                                     double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        appendNumber(out, value);
+        out.append('\n');
+    }
+
+    /**
+     * A monotonically increasing count.
+     */
+    public static class Counter implements Metric {
+        private final LongAdder count = new LongAdder();
+
+        /**
+         * Add one to the count.
+         */
+        public void increment() {
+            this.count.increment();
+        }
+
+        /**
+         * Add to the count.
+         *
+         * @param amount The amount to add
+         */
+        public void add(long amount) {
+            this.count.add(amount);
+        }
+
+        /**
+         * Get the count.
+         *
+         * @return The count.
+         */
+        public long get() {
+            return this.count.sum();
+        }
+
+        @Override
+        public void export(StringBuilder out, String name, String labels) {
+            appendSample(out, name, labels, this.get());
+        }
+    }
+
+    /**
+     * A value which goes up and down.
+     */
+    public static class Gauge implements Metric {
+        private final LongAdder value = new LongAdder();
+
+        /**
+         * Add one to the value.
+         */
+        public void increment() {
+            this.value.increment();
+        }
+
+        /**
+         * Subtract one from the value.
+         */
+        public void decrement() {
+            this.value.decrement();
+        }
+
+        /**
+         * Get the value.
+         *
+         * @return The value.
+         */
+        public long get() {
+            return this.value.sum();
+        }
+
+        @Override
+        public void export(StringBuilder out, String name, String labels) {
+            appendSample(out, name, labels, this.get());
+        }
+    }
+
+    /**
+     * A gauge whose value is read when it is exported.
+     */
+    private static class CallbackGauge implements Metric {
+        private final Supplier<? extends Number> value;
+
+        /**
+         * Initialize the object.
+         *
+         * @param value Supplier of the value
+         */
+        CallbackGauge(Supplier<? extends Number> value) {
+            this.value = value;
+        }
+
+        @Override
+        public void export(StringBuilder out, String name, String labels) {
+            appendSample(out, name, labels, this.value.get().doubleValue());
+        }
+    }
+
+    /**
+     * A distribution of durations, counted into buckets.
+     */
+    public static class Histogram implements Metric {
+        private final double[] bounds;
+        private final long[] boundsNanos;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        /**
+         * Initialize the object.
+         *
+         * @param bounds Upper bounds of the buckets, in seconds, ascending
+         */
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.boundsNanos = new long[bounds.length];
+            this.buckets = new LongAdder[bounds.length];
+            for (int i = 0; i < bounds.length; ++i) {
+                this.boundsNanos[i] = (long) (bounds[i] * 1e9);
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Record a duration.
+         *
+         * @param nanos The duration, in nanoseconds
+         */
+        public void observeNanos(long nanos) {
+            int bucket = Arrays.binarySearch(this.boundsNanos, nanos);
+            if (bucket < 0) {
+                bucket = -bucket - 1;
+            }
+            if (bucket < this.buckets.length) {
+                this.buckets[bucket].increment();
+            }
+
+            this.count.increment();
+            this.sumNanos.add(nanos);
+        }
+
+        /**
+         * Get the number of recorded durations.
+         *
+         * @return The count.
+         */
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        @Override
+        public void export(StringBuilder out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < this.bounds.length; ++i) {
+                cumulative += this.buckets[i].sum();
+                StringBuilder le = new StringBuilder(prefix).append("le=\"");
+                appendNumber(le, this.bounds[i]);
+                appendSample(out,
+                             name + "_bucket",
+                             le.append('"').toString(),
+                             cumulative);
+            }
+
+            // Read the count last, so that it is never below the buckets
+            long count = Math.max(this.count.sum(), cumulative);
+            appendSample(out, name + "_bucket", prefix + "le=\"+Inf\"", count);
+            appendSample(out, name + "_sum", labels, this.sumNanos.sum() / 1e9);
+            appendSample(out, name + "_count", labels, count);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Numbered websocket notifications.
+ */
+package io.webthings.webthing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+
+/**
+ * The notifications of a thing, numbered with a sequence which increases by
+ * one per notification, and the most recent of them, so that a reconnecting
+ * client can be sent the ones it missed.
+ * <p>
+ * Notifications are numbered, kept and handed to subscribers while holding
+ * the log's lock, so every subscriber receives them in sequence order.
+ * Nothing else happens under the lock: callers build the data first, and
+ * subscribers only queue the message, writing it to the network later.
+ * Callers may hold the lock to act between two notifications, e.g. to add a
+ * subscriber after replaying the notifications it missed.
+ * <p>
+ * Sequences start from the time the log was created, in microseconds, so that
+ * they keep increasing across restarts of the server.
+ */
+class NotificationLog {
+    private String[] messages;
+    private String[] topics;
+    private long sequence;
+    private long oldest;
+
+    /**
+     * Initialize the object.
+     *
+     * @param capacity Number of notifications to keep
+     */
+    NotificationLog(int capacity) {
+        this.messages = new String[capacity];
+        this.topics = new String[capacity];
+        this.sequence = Utils.currentTimeMillis() * 1000;
+        this.oldest = this.sequence + 1;
+    }
+
+    /**
+     * Set the number of notifications to keep. The most recent ones are kept
+     * if there are more.
+     *
+     * @param capacity Number of notifications to keep
+     * @throws IllegalArgumentException If the capacity is negative.
+     */
+    synchronized void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException(
+                    "Replay buffer size must not be negative");
+        }
+
+        String[] messages = new String[capacity];
+        String[] topics = new String[capacity];
+        long oldest = Math.max(this.oldest, this.sequence + 1 - capacity);
+        for (long sequence = oldest; sequence <= this.sequence; ++sequence) {
+            int index = (int) (sequence % this.messages.length);
+            messages[(int) (sequence % capacity)] = this.messages[index];
+            topics[(int) (sequence % capacity)] = this.topics[index];
+        }
+
+        this.messages = messages;
+        this.topics = topics;
+        this.oldest = oldest;
+    }
+
+    /**
+     * Get the sequence of the latest notification.
+     *
+     * @return The sequence.
+     */
+    synchronized long getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Number a notification, keep it, and send it.
+     *
+     * @param messageType Type of the message
+     * @param topic       What subscribers must have subscribed to to receive
+     *                    the message, e.g. the name of an event, or null if
+     *                    every subscriber receives it
+     * @param data        Data of the message, as JSON
+     * @param send        Sender of the message, which is given the message
+     *                    as JSON and its sequence, and is called while
+     *                    holding the log's lock
+     */
+    synchronized void publish(String messageType,
+                              String topic,
+                              String data,
+                              ObjLongConsumer<String> send) {
+        long sequence = ++this.sequence;
+        String message = "{\"messageType\":\"" + messageType +
+                "\",\"sequence\":" + sequence + ",\"data\":" + data + "}";
+
+        int capacity = this.messages.length;
+        if (capacity > 0) {
+            this.messages[(int) (sequence % capacity)] = message;
+            this.topics[(int) (sequence % capacity)] = topic;
+        }
+        this.oldest = Math.max(this.oldest, sequence + 1 - capacity);
+
+        send.accept(message, sequence);
+    }
+
+    /**
+     * Get the notifications after a sequence which a subscriber receives.
+     *
+     * @param lastSequence Sequence of the last notification received
+     * @param subscribed   Whether the subscriber subscribed to a topic
+     * @return The later notifications, oldest first, or null if some of them
+     * are no longer kept, or the sequence is not one of this log's.
+     */
+    synchronized List<String> since(long lastSequence,
+                                    Predicate<String> subscribed) {
+        if (lastSequence < this.oldest - 1 || lastSequence > this.sequence) {
+            return null;
+        }
+
+        List<String> messages =
+                new ArrayList<>((int) (this.sequence - lastSequence));
+        for (long sequence = lastSequence + 1;
+             sequence <= this.sequence;
+             ++sequence) {
+            int index = (int) (sequence % this.messages.length);
+            String topic = this.topics[index];
+            if (topic == null || subscribed.test(topic)) {
+                messages.add(this.messages[index]);
+            }
+        }
+
+        return messages;
+    }
+}
@@ -0,0 +1,697 @@
+/**
+ * permessage-deflate websocket extension.
+ */
+package io.webthings.webthing;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoWSD;
+
+/**
+ * The permessage-deflate extension (RFC 7692) negotiated for a single
+ * websocket connection.
+ * <p>
+ * NanoWSD rejects frames with reserved bits set, so incoming frames are
+ * decompressed by a stream sitting between the socket and NanoWSD's frame
+ * reader, which rewrites compressed messages into plain frames. Outgoing
+ * messages are compressed into frames that set the RSV1 bit themselves.
+ */
+class PerMessageDeflate {
+    static final String HEADER_WEBSOCKET_EXTENSIONS =
+            "sec-websocket-extensions";
+    private static final String EXTENSION = "permessage-deflate";
+    private static final byte[] TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+    private static final int RSV1 = 0x40;
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+    private final WebSocketCompression settings;
+    private final boolean serverContextTakeover;
+    private final boolean clientContextTakeover;
+    private final boolean holdsContext;
+    private final String responseHeader;
+    private Deflater deflater;
+    private Inflater inflater;
+    private boolean released;
+
+    /**
+     * Initialize the object.
+     *
+     * @param settings              The compression settings
+     * @param serverContextTakeover Whether the client allows the server to
+     *                              keep its compression context
+     * @param clientContextTakeover Whether the client keeps its compression
+     *                              context
+     * @param serverMaxWindowBits   Whether the client offered a server window
+     *                              size, which must then be confirmed
+     */
+    private PerMessageDeflate(WebSocketCompression settings,
+                              boolean serverContextTakeover,
+                              boolean clientContextTakeover,
+                              boolean serverMaxWindowBits) {
+        this.settings = settings;
+
+        // Keeping a context in either direction pins a deflater or inflater
+        // to the connection, so it is only granted within the budget
+        boolean holdsContext = false;
+        if (serverContextTakeover || clientContextTakeover) {
+            holdsContext = settings.acquireContext();
+            if (!holdsContext) {
+                serverContextTakeover = false;
+                clientContextTakeover = false;
+            }
+        }
+
+        this.serverContextTakeover = serverContextTakeover;
+        this.clientContextTakeover = clientContextTakeover;
+        this.holdsContext = holdsContext;
+
+        StringBuilder header = new StringBuilder(EXTENSION);
+        if (!serverContextTakeover) {
+            header.append("; server_no_context_takeover");
+        }
+        if (!clientContextTakeover) {
+            header.append("; client_no_context_takeover");
+        }
+        if (serverMaxWindowBits) {
+            header.append("; server_max_window_bits=15");
+        }
+        this.responseHeader = header.toString();
+    }
+
+    /**
+     * Negotiate the extension from the client's offers.
+     *
+     * @param offers   The Sec-WebSocket-Extensions request header
+     * @param settings The compression settings, or null if compression is
+     *                 disabled
+     * @return The negotiated extension, or null if no offer was acceptable.
+     */
+    static PerMessageDeflate negotiate(String offers,
+                                       WebSocketCompression settings) {
+        if (offers == null || settings == null) {
+            return null;
+        }
+
+        for (String offer : offers.split(",")) {
+            String[] params = offer.split(";");
+            if (!params[0].trim().equalsIgnoreCase(EXTENSION)) {
+                continue;
+            }
+
+            boolean serverContextTakeover = true;
+            boolean clientContextTakeover = true;
+            boolean serverMaxWindowBits = false;
+            boolean acceptable = true;
+            for (int i = 1; i < params.length && acceptable; ++i) {
+                String[] param = params[i].split("=", 2);
+                String value = param.length > 1 ?
+                               param[1].trim().replace("\"", "") :
+                               null;
+
+                switch (param[0].trim().toLowerCase()) {
+                    case "server_no_context_takeover":
+                        serverContextTakeover = false;
+                        break;
+                    case "client_no_context_takeover":
+                        clientContextTakeover = false;
+                        break;
+                    case "server_max_window_bits":
+                        // Deflater always uses a 15 bit window
+                        serverMaxWindowBits = true;
+                        acceptable = "15".equals(value);
+                        break;
+                    case "client_max_window_bits":
+                        // Inflater accepts any window size
+                        break;
+                    default:
+                        acceptable = false;
+                        break;
+                }
+            }
+
+            if (acceptable) {
+                return new PerMessageDeflate(settings,
+                                             serverContextTakeover,
+                                             clientContextTakeover,
+                                             serverMaxWindowBits);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the Sec-WebSocket-Extensions response header.
+     *
+     * @return The header value.
+     */
+    String getResponseHeader() {
+        return this.responseHeader;
+    }
+
+    /**
+     * Whether the server keeps its compression context between messages.
+     *
+     * @return Indication of context takeover.
+     */
+    boolean isServerContextTakeover() {
+        return this.serverContextTakeover;
+    }
+
+    /**
+     * Whether the client keeps its compression context between messages.
+     *
+     * @return Indication of context takeover.
+     */
+    boolean isClientContextTakeover() {
+        return this.clientContextTakeover;
+    }
+
+    /**
+     * Wrap the handshake request, so that the websocket reads decompressed
+     * frames.
+     *
+     * @param session The handshake request
+     * @return The wrapped request.
+     */
+    NanoHTTPD.IHTTPSession wrap(NanoHTTPD.IHTTPSession session) {
+        return new InflatingSession(session,
+                                    new InflatingInputStream(session.getInputStream()));
+    }
+
+    /**
+     * Build the frame for an outgoing text message.
+     * <p>
+     * Calls must be serialized with the sending of the returned frames, since
+     * with context takeover every frame depends on the previous ones.
+     *
+     * @param message The message
+     * @return The frame, compressed if the message reaches the threshold.
+     * @throws IOException If the message can not be encoded.
+     */
+    NanoWSD.WebSocketFrame textFrame(String message) throws IOException {
+        return this.frame(NanoWSD.WebSocketFrame.OpCode.Text,
+                          NanoWSD.WebSocketFrame.text2Binary(message));
+    }
+
+    /**
+     * Build the frame for an outgoing binary message.
+     * <p>
+     * Calls must be serialized with the sending of the returned frames, since
+     * with context takeover every frame depends on the previous ones.
+     *
+     * @param message The message
+     * @return The frame, compressed if the message reaches the threshold.
+     */
+    NanoWSD.WebSocketFrame binaryFrame(byte[] message) {
+        return this.frame(NanoWSD.WebSocketFrame.OpCode.Binary, message);
+    }
+
+    /**
+     * Build the frame for an outgoing message.
+     *
+     * @param opCode  The opcode of the message
+     * @param payload The uncompressed payload
+     * @return The frame, compressed if the payload reaches the threshold.
+     */
+    private synchronized NanoWSD.WebSocketFrame frame(
+            NanoWSD.WebSocketFrame.OpCode opCode,
+            byte[] payload) {
+        if (payload.length < this.settings.getThreshold() || this.released) {
+            return new NanoWSD.WebSocketFrame(opCode, true, payload);
+        }
+
+        Deflater deflater;
+        if (this.serverContextTakeover) {
+            if (this.deflater == null) {
+                this.deflater = this.settings.newDeflater();
+            }
+            deflater = this.deflater;
+        } else {
+            deflater = this.settings.borrowDeflater();
+        }
+
+        try {
+            return new CompressedFrame(opCode, deflate(deflater, payload));
+        } finally {
+            if (!this.serverContextTakeover) {
+                this.settings.returnDeflater(deflater);
+            }
+        }
+    }
+
+    /**
+     * Free the compression contexts of the connection.
+     */
+    synchronized void release() {
+        if (this.released) {
+            return;
+        }
+
+        this.released = true;
+
+        if (this.deflater != null) {
+            this.deflater.end();
+            this.deflater = null;
+        }
+
+        if (this.inflater != null) {
+            if (this.clientContextTakeover) {
+                this.inflater.end();
+            } else {
+                this.settings.returnInflater(this.inflater);
+            }
+            this.inflater = null;
+        }
+
+        if (this.holdsContext) {
+            this.settings.releaseContext();
+        }
+    }
+
+    /**
+     * Compress a message, removing the trailing empty block as required by
+     * the extension.
+     *
+     * @param deflater The deflater to use
+     * @param payload  The message
+     * @return The compressed message.
+     */
+    private static byte[] deflate(Deflater deflater, byte[] payload) {
+        deflater.setInput(payload);
+
+        byte[] buffer = new byte[payload.length / 2 + 16];
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(buffer,
+                                       length,
+                                       buffer.length - length,
+                                       Deflater.SYNC_FLUSH);
+            if (length < buffer.length) {
+                break;
+            }
+
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+
+        if (length >= TAIL.length) {
+            length -= TAIL.length;
+        }
+
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Decompress a fragment of a compressed message.
+     *
+     * @param payload The compressed fragment
+     * @param fin     Whether this is the last fragment of the message
+     * @param limit   The most bytes the fragment may decompress to, which is
+     *                what is left of the message size limit
+     * @return The decompressed fragment.
+     * @throws IOException If the fragment is invalid or too large.
+     */
+    private synchronized byte[] inflate(byte[] payload, boolean fin, int limit)
+            throws IOException {
+        if (this.released) {
+            throw new EOFException();
+        }
+
+        if (this.inflater == null) {
+            this.inflater = this.clientContextTakeover ?
+                            new Inflater(true) :
+                            this.settings.borrowInflater();
+        }
+
+        if (fin) {
+            payload = Arrays.copyOf(payload, payload.length + TAIL.length);
+            System.arraycopy(TAIL, 0, payload, payload.length - TAIL.length,
+                             TAIL.length);
+        }
+
+        this.inflater.setInput(payload);
+
+        byte[] buffer = new byte[Math.min(Math.max(64, payload.length * 4),
+                                          limit)];
+        int length = 0;
+        try {
+            while (true) {
+                if (length == buffer.length) {
+                    if (buffer.length >= limit) {
+                        // Only too big if there is more to decompress
+                        if (this.inflater.inflate(new byte[1]) == 0) {
+                            break;
+                        }
+
+                        throw new NanoWSD.WebSocketException(
+                                NanoWSD.WebSocketFrame.CloseCode.MessageTooBig,
+                                "Decompressed message too big.");
+                    }
+
+                    buffer = Arrays.copyOf(buffer,
+                                           (int) Math.min(buffer.length * 2L,
+                                                          limit));
+                }
+
+                int count = this.inflater.inflate(buffer,
+                                                  length,
+                                                  buffer.length - length);
+                if (count == 0) {
+                    break;
+                }
+
+                length += count;
+            }
+        } catch (DataFormatException e) {
+            throw new NanoWSD.WebSocketException(
+                    NanoWSD.WebSocketFrame.CloseCode.InvalidFramePayloadData,
+                    "Invalid compressed message.");
+        }
+
+        if (fin && !this.clientContextTakeover) {
+            this.settings.returnInflater(this.inflater);
+            this.inflater = null;
+        }
+
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Serialize an unmasked frame.
+     *
+     * @param head    The first header byte
+     * @param payload The payload
+     * @return The frame.
+     */
+    private static byte[] encodeFrame(int head, byte[] payload) {
+        int length = payload.length;
+        int headerLength = length <= 125 ? 2 : length <= 0xFFFF ? 4 : 10;
+        byte[] frame = new byte[headerLength + length];
+        frame[0] = (byte) head;
+
+        if (length <= 125) {
+            frame[1] = (byte) length;
+        } else if (length <= 0xFFFF) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 8; ++i) {
+                frame[2 + i] = (byte) ((long) length >>> (56 - 8 * i));
+            }
+        }
+
+        System.arraycopy(payload, 0, frame, headerLength, length);
+        return frame;
+    }
+
+    /**
+     * A data frame whose payload is compressed.
+     */
+    private static class CompressedFrame extends NanoWSD.WebSocketFrame {
+        /**
+         * Initialize the object.
+         *
+         * @param opCode  The frame opcode
+         * @param payload The compressed payload
+         */
+        CompressedFrame(OpCode opCode, byte[] payload) {
+            super(opCode, true, payload);
+        }
+
+        /**
+         * Write the frame, with the RSV1 bit marking it as compressed.
+         *
+         * @param out The stream to write to
+         * @throws IOException On write failure.
+         */
+        @Override
+        public void write(OutputStream out) throws IOException {
+            out.write(encodeFrame(0x80 | RSV1 | this.getOpCode().getValue(),
+                                  this.getBinaryPayload()));
+            out.flush();
+        }
+    }
+
+    /**
+     * Stream of incoming frames, with compressed messages rewritten into
+     * plain frames.
+     */
+    private class InflatingInputStream extends InputStream {
+        private final InputStream in;
+        private byte[] buffer;
+        private int position;
+        private boolean compressedMessage;
+        private int messageLength;
+
+        /**
+         * Initialize the object.
+         *
+         * @param in The socket's input stream
+         */
+        InflatingInputStream(InputStream in) {
+            this.in = in;
+            this.buffer = new byte[0];
+            this.position = 0;
+            this.compressedMessage = false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!this.fill()) {
+                return -1;
+            }
+
+            return this.buffer[this.position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!this.fill()) {
+                return -1;
+            }
+
+            int count = Math.min(len, this.buffer.length - this.position);
+            System.arraycopy(this.buffer, this.position, b, off, count);
+            this.position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+
+        /**
+         * Read the next frame if the current one was consumed.
+         *
+         * @return False at the end of the stream.
+         * @throws IOException On read failure or an invalid frame.
+         */
+        private boolean fill() throws IOException {
+            while (this.position == this.buffer.length) {
+                int head = this.in.read();
+                if (head < 0) {
+                    return false;
+                }
+
+                int second = this.readByte();
+                long length = second & 0x7F;
+                if (length == 126) {
+                    length = (this.readByte() << 8) | this.readByte();
+                } else if (length == 127) {
+                    length = 0;
+                    for (int i = 0; i < 8; ++i) {
+                        length = (length << 8) | this.readByte();
+                    }
+                }
+
+                if (length < 0 || length > MAX_MESSAGE_SIZE) {
+                    throw new NanoWSD.WebSocketException(
+                            NanoWSD.WebSocketFrame.CloseCode.MessageTooBig,
+                            "Max frame length has been exceeded.");
+                }
+
+                byte[] mask = null;
+                if ((second & 0x80) != 0) {
+                    mask = this.readFully(4);
+                }
+
+                byte[] payload = this.readFully((int) length);
+                if (mask != null) {
+                    for (int i = 0; i < payload.length; ++i) {
+                        payload[i] ^= mask[i % 4];
+                    }
+                }
+
+                int opCode = head & 0x0F;
+                boolean fin = (head & 0x80) != 0;
+                boolean control = (opCode & 0x08) != 0;
+                if (!control) {
+                    // Limit the size of whole messages, which NanoWSD joins
+                    // from any number of fragments
+                    if (opCode != 0) {
+                        this.compressedMessage = (head & RSV1) != 0;
+                        this.messageLength = 0;
+                    }
+
+                    int remaining = MAX_MESSAGE_SIZE - this.messageLength;
+                    if (this.compressedMessage) {
+                        head &= ~RSV1;
+                        payload = PerMessageDeflate.this.inflate(payload,
+                                                                 fin,
+                                                                 remaining);
+                    } else if (payload.length > remaining) {
+                        throw new NanoWSD.WebSocketException(
+                                NanoWSD.WebSocketFrame.CloseCode.MessageTooBig,
+                                "Max message length has been exceeded.");
+                    }
+                    this.messageLength += payload.length;
+
+                    if (fin) {
+                        this.compressedMessage = false;
+                        this.messageLength = 0;
+                    }
+                }
+
+                this.buffer = encodeFrame(head, payload);
+                this.position = 0;
+            }
+
+            return true;
+        }
+
+        /**
+         * Read a single byte of a frame.
+         *
+         * @return The byte.
+         * @throws IOException If the stream ended.
+         */
+        private int readByte() throws IOException {
+            int b = this.in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+
+            return b;
+        }
+
+        /**
+         * Read a number of bytes of a frame.
+         *
+         * @param length Number of bytes to read
+         * @return The bytes.
+         * @throws IOException If the stream ended.
+         */
+        private byte[] readFully(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int count = this.in.read(bytes, read, length - read);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                read += count;
+            }
+
+            return bytes;
+        }
+    }
+
+    /**
+     * Handshake request whose input stream is replaced by the decompressing
+     * one.
+     */
+    private static class InflatingSession implements NanoHTTPD.IHTTPSession {
+        private final NanoHTTPD.IHTTPSession session;
+        private final InputStream inputStream;
+
+        /**
+         * Initialize the object.
+         *
+         * @param session     The original request
+         * @param inputStream The decompressing stream
+         */
+        InflatingSession(NanoHTTPD.IHTTPSession session,
+                         InputStream inputStream) {
+            this.session = session;
+            this.inputStream = inputStream;
+        }
+
+        @Override
+        public void execute() throws IOException {
+            this.session.execute();
+        }
+
+        @Override
+        public NanoHTTPD.CookieHandler getCookies() {
+            return this.session.getCookies();
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return this.session.getHeaders();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return this.inputStream;
+        }
+
+        @Override
+        public NanoHTTPD.Method getMethod() {
+            return this.session.getMethod();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public Map<String, String> getParms() {
+            return this.session.getParms();
+        }
+
+        @Override
+        public Map<String, List<String>> getParameters() {
+            return this.session.getParameters();
+        }
+
+        @Override
+        public String getQueryParameterString() {
+            return this.session.getQueryParameterString();
+        }
+
+        @Override
+        public String getUri() {
+            return this.session.getUri();
+        }
+
+        @Override
+        public void parseBody(Map<String, String> files)
+                throws IOException, NanoHTTPD.ResponseException {
+            this.session.parseBody(files);
+        }
+
+        @Override
+        public String getRemoteIpAddress() {
+            return this.session.getRemoteIpAddress();
+        }
+
+        @Override
+        public String getRemoteHostName() {
+            return this.session.getRemoteHostName();
+        }
+    }
+}
@@ -17,12 +17,19 @@ import io.webthings.webthing.errors.PropertyError;
  * @param <T> The type of the property value.
  */
 public class Property<T> {
+    private static final Metrics.Histogram VALIDATION_TIME =
+            Metrics.getDefault()
+                   .histogram("webthing_schema_validation_seconds",
+                              "Time spent validating values against schemas.",
+                              "kind",
+                              "property");
     private final Thing thing;
     private final String name;
-    private String hrefPrefix;
+    private volatile String hrefPrefix;
     private final String href;
     private final JSONObject metadata;
     private final Value<T> value;
+    private Object notifiedValue;
 
     /**
      * Initialize the object.
@@ -60,9 +67,16 @@ public class Property<T> {
             this.metadata = metadata;
         }
 
-        // Add the property change observer to notify the Thing about a
+        // Apply any change filter configured in the metadata, unless the value
+        // was created with its own
+        ChangeFilter changeFilter = ChangeFilter.fromMetadata(this.metadata);
+        if (changeFilter != null && this.value.getChangeFilter() == null) {
+            this.value.setChangeFilter(changeFilter);
+        }
+
+        // Add the property change listener to notify the Thing about a
         // property change
-        this.value.addObserver((a, b) -> this.thing.propertyNotify(this));
+        this.value.addListener(v -> this.thing.propertyNotify(this));
     }
 
     /**
@@ -77,11 +91,14 @@ public class Property<T> {
             throw new PropertyError("Read-only property");
         }
 
+        long start = System.nanoTime();
         Schema schema = SchemaLoader.load(this.metadata);
         try {
             schema.validate(value);
         } catch (ValidationException e) {
             throw new PropertyError("Invalid property value");
+        } finally {
+            VALIDATION_TIME.observeNanos(System.nanoTime() - start);
         }
     }
 
@@ -134,6 +151,17 @@ public class Property<T> {
         return this.value.get();
     }
 
+    /**
+     * Append the current property value to a JSON document being built.
+     * <p>
+     * Primitive values are written without boxing.
+     *
+     * @param builder The builder to append to
+     */
+    public void appendValueJson(StringBuilder builder) {
+        this.value.appendJson(builder);
+    }
+
     /**
      * Set the current value of the property.
      *
@@ -141,8 +169,49 @@ public class Property<T> {
      * @throws PropertyError If value could not be set.
      */
     public void setValue(T value) throws PropertyError {
-        this.validateValue(value);
+        FlightEvents flightEvents = FlightEvents.get();
+        Object event = flightEvents.beginPropertyWrite();
+        long start = event == null ? 0 : System.nanoTime();
+        try {
+            this.validateValue(value);
+        } catch (PropertyError e) {
+            if (event != null) {
+                flightEvents.commitPropertyWrite(event,
+                                                 this,
+                                                 System.nanoTime() - start,
+                                                 false);
+            }
+            throw e;
+        }
+
+        long validation = event == null ? 0 : System.nanoTime() - start;
         this.value.set(value);
+        if (event != null) {
+            flightEvents.commitPropertyWrite(event, this, validation, true);
+        }
+    }
+
+    /**
+     * Replace the value last sent to subscribers which receive deltas. Must
+     * be called while holding this property's lock.
+     *
+     * @param value A copy of the value being sent
+     * @return The value sent before, or null if none was.
+     */
+    Object swapNotifiedValue(Object value) {
+        Object previous = this.notifiedValue;
+        this.notifiedValue = value;
+        return previous;
+    }
+
+    /**
+     * Get the number of change notifications suppressed by the value's change
+     * filter.
+     *
+     * @return The number of suppressed notifications.
+     */
+    public long getSuppressedNotifications() {
+        return this.value.getSuppressedNotifications();
     }
 
     /**
@@ -0,0 +1,320 @@
+/**
+ * Write rate limits.
+ */
+package io.webthings.webthing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token-bucket limits on the rate of writes, i.e. property updates and action
+ * requests, from each client and to each thing.
+ * <p>
+ * HTTP clients are told apart by their address, and each websocket connection
+ * is a client of its own. A write is admitted only if both the client's and
+ * the thing's bucket hold a token. A bucket holds up to its burst of tokens,
+ * and refills at its rate.
+ * <p>
+ * To keep memory bounded, only the most recently active client addresses keep
+ * a bucket. A client whose bucket was dropped starts again with a full one,
+ * which it would mostly have refilled to anyway.
+ */
+public class RateLimit {
+    /**
+     * Default number of client addresses which keep a bucket.
+     */
+    public static final int DEFAULT_MAX_CLIENTS = 4096;
+
+    private final double clientRate;
+    private final int clientBurst;
+    private final double thingRate;
+    private final int thingBurst;
+    private final LinkedHashMap<String, Bucket> clients;
+    private final Map<String, Bucket> things;
+
+    /**
+     * Initialize the object, with buckets for up to
+     * {@link #DEFAULT_MAX_CLIENTS} client addresses.
+     *
+     * @param clientRate  Writes per second allowed from each client, or 0
+     *                    for no limit
+     * @param clientBurst Writes a client may make at once
+     * @param thingRate   Writes per second allowed to each thing, or 0 for
+     *                    no limit
+     * @param thingBurst  Writes a thing may receive at once
+     */
+    public RateLimit(double clientRate,
+                     int clientBurst,
+                     double thingRate,
+                     int thingBurst) {
+        this(clientRate, clientBurst, thingRate, thingBurst, DEFAULT_MAX_CLIENTS);
+    }
+
+    /**
+     * Initialize the object.
+     *
+     * @param clientRate  Writes per second allowed from each client, or 0
+     *                    for no limit
+     * @param clientBurst Writes a client may make at once
+     * @param thingRate   Writes per second allowed to each thing, or 0 for
+     *                    no limit
+     * @param thingBurst  Writes a thing may receive at once
+     * @param maxClients  Number of client addresses which keep a bucket
+     */
+    public RateLimit(double clientRate,
+                     int clientBurst,
+                     double thingRate,
+                     int thingBurst,
+                     int maxClients) {
+        if (clientRate < 0 || thingRate < 0) {
+            throw new IllegalArgumentException(
+                    "Rate limits must not be negative.");
+        }
+
+        if ((clientRate > 0 && clientBurst < 1) ||
+                (thingRate > 0 && thingBurst < 1)) {
+            throw new IllegalArgumentException(
+                    "Rate limit bursts must be at least 1.");
+        }
+
+        if (maxClients < 1) {
+            throw new IllegalArgumentException(
+                    "Rate limits must keep at least 1 client.");
+        }
+
+        this.clientRate = clientRate;
+        this.clientBurst = clientBurst;
+        this.thingRate = thingRate;
+        this.thingBurst = thingBurst;
+        this.clients = new LinkedHashMap<String, Bucket>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+                return this.size() > maxClients;
+            }
+        };
+        this.things = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Get the number of writes per second allowed from each client.
+     *
+     * @return The rate, or 0 if there is no limit.
+     */
+    public double getClientRate() {
+        return this.clientRate;
+    }
+
+    /**
+     * Get the number of writes per second allowed to each thing.
+     *
+     * @return The rate, or 0 if there is no limit.
+     */
+    public double getThingRate() {
+        return this.thingRate;
+    }
+
+    /**
+     * Create the bucket of a client which is not told apart by its address,
+     * e.g. a websocket connection.
+     *
+     * @return The bucket, or null if clients are not limited.
+     */
+    Bucket newClientBucket() {
+        return this.clientRate == 0 ?
+               null :
+               new Bucket(this.clientRate, this.clientBurst, System.nanoTime());
+    }
+
+    /**
+     * Admit a write from a client address.
+     *
+     * @param address The client's address
+     * @param thing   The thing written to
+     * @return 0 if the write is admitted, or else the time until it would
+     * be, in nanoseconds.
+     */
+    long admit(String address, Thing thing) {
+        return this.admit(address, thing, System.nanoTime());
+    }
+
+    /**
+     * Admit a write from a client address.
+     *
+     * @param address The client's address
+     * @param thing   The thing written to
+     * @param now     The current time, as given by {@link System#nanoTime()}
+     * @return 0 if the write is admitted, or else the time until it would
+     * be, in nanoseconds.
+     */
+    long admit(String address, Thing thing, long now) {
+        Bucket client = null;
+        if (this.clientRate != 0) {
+            synchronized (this.clients) {
+                client = this.clients.get(address);
+                if (client == null) {
+                    client = new Bucket(this.clientRate, this.clientBurst, now);
+                    this.clients.put(address, client);
+                }
+            }
+        }
+
+        return this.admit(client, thing, now);
+    }
+
+    /**
+     * Admit a write from a client.
+     *
+     * @param client The client's bucket, or null if clients are not limited
+     * @param thing  The thing written to
+     * @return 0 if the write is admitted, or else the time until it would
+     * be, in nanoseconds.
+     */
+    long admit(Bucket client, Thing thing) {
+        return this.admit(client, thing, System.nanoTime());
+    }
+
+    /**
+     * Admit a write from a client.
+     *
+     * @param client The client's bucket, or null if clients are not limited
+     * @param thing  The thing written to
+     * @param now    The current time, as given by {@link System#nanoTime()}
+     * @return 0 if the write is admitted, or else the time until it would
+     * be, in nanoseconds.
+     */
+    long admit(Bucket client, Thing thing, long now) {
+        Bucket target = null;
+        if (this.thingRate != 0) {
+            target = this.things.computeIfAbsent(thing.getId(),
+                                                 id -> new Bucket(this.thingRate,
+                                                                  this.thingBurst,
+                                                                  now));
+        }
+
+        if (client == null) {
+            return target == null ? 0 : target.take(null, now);
+        }
+
+        return client.take(target, now);
+    }
+
+    /**
+     * Get the number of client addresses which keep a bucket.
+     *
+     * @return The number of addresses.
+     */
+    int getClientCount() {
+        synchronized (this.clients) {
+            return this.clients.size();
+        }
+    }
+
+    /**
+     * Convert a wait into a Retry-After value.
+     *
+     * @param nanos The wait, in nanoseconds
+     * @return The wait in whole seconds, rounded up, and at least 1.
+     */
+    static long retryAfterSeconds(long nanos) {
+        return Math.max(1, (nanos + TimeUnit.SECONDS.toNanos(1) - 1) /
+                TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * A token bucket.
+     */
+    static class Bucket {
+        private final double tokensPerNano;
+        private final int burst;
+        private double tokens;
+        private long updated;
+
+        /**
+         * Initialize the object, full.
+         *
+         * @param rate  Tokens added per second
+         * @param burst Tokens the bucket holds
+         * @param now   The current time, as given by
+         *              {@link System#nanoTime()}
+         */
+        Bucket(double rate, int burst, long now) {
+            this.tokensPerNano = rate / TimeUnit.SECONDS.toNanos(1);
+            this.burst = burst;
+            this.tokens = burst;
+            this.updated = now;
+        }
+
+        /**
+         * Take a token from this bucket and another one, only if both hold
+         * one. Buckets are always locked in the order client, then thing.
+         *
+         * @param other The other bucket, or null
+         * @param now   The current time, as given by
+         *              {@link System#nanoTime()}
+         * @return 0 if the tokens were taken, or else the time until they
+         * could be, in nanoseconds.
+         */
+        synchronized long take(Bucket other, long now) {
+            this.refill(now);
+            if (other == null) {
+                return this.takeOne();
+            }
+
+            synchronized (other) {
+                other.refill(now);
+                long wait = Math.max(this.waitFor(), other.waitFor());
+                if (wait == 0) {
+                    --this.tokens;
+                    --other.tokens;
+                }
+                return wait;
+            }
+        }
+
+        /**
+         * Take a token if there is one. Must be called while holding this
+         * bucket's lock.
+         *
+         * @return 0 if the token was taken, or else the time until it could
+         * be, in nanoseconds.
+         */
+        private long takeOne() {
+            long wait = this.waitFor();
+            if (wait == 0) {
+                --this.tokens;
+            }
+            return wait;
+        }
+
+        /**
+         * Get the time until this bucket holds a token. Must be called while
+         * holding this bucket's lock.
+         *
+         * @return The time, in nanoseconds, or 0 if it holds one.
+         */
+        private long waitFor() {
+            if (this.tokens >= 1) {
+                return 0;
+            }
+
+            return (long) Math.ceil((1 - this.tokens) / this.tokensPerNano);
+        }
+
+        /**
+         * Add the tokens accrued since the last update. Must be called while
+         * holding this bucket's lock.
+         *
+         * @param now The current time, as given by {@link System#nanoTime()}
+         */
+        private void refill(long now) {
+            long elapsed = now - this.updated;
+            if (elapsed > 0) {
+                this.tokens = Math.min(this.burst,
+                                       this.tokens + elapsed * this.tokensPerNano);
+                this.updated = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * HTTP response compression settings.
+ */
+package io.webthings.webthing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Settings for compressing HTTP response bodies with gzip or deflate, as
+ * accepted by the client's Accept-Encoding header.
+ * <p>
+ * Bodies smaller than the threshold are sent uncompressed, since compressing
+ * them saves little and costs a deflater per response.
+ */
+public class ResponseCompression {
+    /**
+     * Default size, in bytes, below which bodies are not compressed.
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    /**
+     * The gzip content coding.
+     */
+    public static final String GZIP = "gzip";
+
+    /**
+     * The deflate content coding.
+     */
+    public static final String DEFLATE = "deflate";
+
+    private final int level;
+    private final int threshold;
+
+    /**
+     * Initialize the object with default settings.
+     */
+    public ResponseCompression() {
+        this(Deflater.DEFAULT_COMPRESSION, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Initialize the object.
+     *
+     * @param level     Deflate compression level, 0-9, or -1 for the default
+     *                  level
+     * @param threshold Size, in bytes, below which bodies are not compressed
+     */
+    public ResponseCompression(int level, int threshold) {
+        if (level < Deflater.DEFAULT_COMPRESSION ||
+                level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(
+                    "Compression level must be between -1 and 9.");
+        }
+
+        if (threshold < 0) {
+            throw new IllegalArgumentException(
+                    "Compression threshold must not be negative.");
+        }
+
+        this.level = level;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Get the compression level.
+     *
+     * @return The level.
+     */
+    public int getLevel() {
+        return this.level;
+    }
+
+    /**
+     * Get the size below which bodies are not compressed.
+     *
+     * @return The threshold in bytes.
+     */
+    public int getThreshold() {
+        return this.threshold;
+    }
+
+    /**
+     * Select the content coding for a response body.
+     *
+     * @param acceptEncoding The request's Accept-Encoding header
+     * @param length         Size of the uncompressed body, in bytes
+     * @return {@link #GZIP}, {@link #DEFLATE}, or null to send the body
+     * uncompressed.
+     */
+    public String selectEncoding(String acceptEncoding, int length) {
+        if (acceptEncoding == null || length < this.threshold) {
+            return null;
+        }
+
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            double quality = 1;
+            for (int i = 1; i < params.length; ++i) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+
+            switch (params[0].trim().toLowerCase()) {
+                case GZIP:
+                case "x-gzip":
+                    gzip = quality;
+                    break;
+                case DEFLATE:
+                    deflate = quality;
+                    break;
+                case "*":
+                    any = quality;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // Codings that are not listed are covered by the wildcard
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+
+        if (deflate > 0) {
+            return DEFLATE;
+        }
+
+        return null;
+    }
+
+    /**
+     * Compress a response body.
+     *
+     * @param body     The body
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @return The compressed body.
+     */
+    public byte[] compress(byte[] body, String encoding) {
+        ByteArrayOutputStream out =
+                new ByteArrayOutputStream(body.length / 4 + 64);
+        try (DeflaterOutputStream stream = this.open(out, encoding)) {
+            stream.write(body);
+        } catch (IOException e) {
+            // Writing to a byte array does not fail
+            throw new IllegalStateException(e);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Open a compressing stream at the configured level.
+     *
+     * @param out      The stream to write to
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @return The compressing stream.
+     * @throws IOException On write failure.
+     */
+    private DeflaterOutputStream open(ByteArrayOutputStream out,
+                                      String encoding) throws IOException {
+        int level = this.level;
+
+        // The streams' own deflaters are ended when they are closed, so set
+        // their level rather than passing in deflaters
+        if (GZIP.equals(encoding)) {
+            return new GZIPOutputStream(out) {
+                {
+                    this.def.setLevel(level);
+                }
+            };
+        }
+
+        return new DeflaterOutputStream(out) {
+            {
+                this.def.setLevel(level);
+            }
+        };
+    }
+}
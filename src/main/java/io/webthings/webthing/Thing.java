@@ -10,22 +10,54 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 
+import io.webthings.webthing.errors.ActionError;
 import io.webthings.webthing.errors.PropertyError;
 
 /**
  * A Web Thing.
+ * <p>
+ * A thing is safe for concurrent use by request, websocket, action and
+ * hardware threads. Its properties, actions, events and subscribers are kept
+ * in concurrent collections, so reads never block behind writers:
+ * <ul>
+ * <li>Adding a property, action or event happens-before any read that
+ * observes it. Once {@link #performAction(String, JSONObject)} or
+ * {@link #addEvent(Event)} returns, the action or event is visible to every
+ * later listing.</li>
+ * <li>Listings and descriptions iterate weakly consistent views. They never
+ * throw {@link java.util.ConcurrentModificationException}, and reflect each
+ * entry at most once, but may or may not include entries added or removed
+ * while they are being built.</li>
+ * <li>Metadata objects passed to the thing are not copied and must not be
+ * modified after they have been added.</li>
+ * <li>Websocket notifications are numbered with a {@code sequence} one at a
+ * time, and queued for each subscriber in that order, so every subscriber
+ * receives them in sequence order.</li>
+ * </ul>
  */
 public class Thing {
+    private static final AtomicIntegerFieldUpdater<Thing> DESCRIPTION_VERSION =
+            AtomicIntegerFieldUpdater.newUpdater(Thing.class,
+                                                 "descriptionVersion");
+    private static final ActionQueue UNLIMITED =
+            new ActionQueue(ActionPolicy.unlimited(), 0);
     private final String id;
     private final String context;
     private final JSONArray type;
@@ -34,11 +66,19 @@ public class Thing {
     private final Map<String, Property> properties;
     private final Map<String, AvailableAction> availableActions;
     private final Map<String, AvailableEvent> availableEvents;
-    private final Map<String, List<Action>> actions;
-    private final List<Event> events;
+    private final Map<String, Queue<Action>> actions;
+    private final Queue<Event> events;
     private final Set<WebThingServer.ThingHandler.ThingWebSocket> subscribers;
-    private String hrefPrefix;
-    private String uiHref;
+    private final Set<WebThingServer.ThingHandler.ThingWebSocket>
+            unfilteredPropertySubscribers;
+    private final Map<String, Set<WebThingServer.ThingHandler.ThingWebSocket>>
+            propertySubscribers;
+    private final IdempotencyCache idempotencyKeys;
+    private final NotificationLog notifications;
+    private volatile boolean observed;
+    private volatile String hrefPrefix;
+    private volatile String uiHref;
+    private volatile int descriptionVersion;
 
     /**
      * Initialize the object.
@@ -75,12 +115,16 @@ public class Thing {
         this.context = "https://webthings.io/schemas";
         this.type = type;
         this.description = description;
-        this.properties = new HashMap<>();
-        this.availableActions = new HashMap<>();
-        this.availableEvents = new HashMap<>();
-        this.actions = new HashMap<>();
-        this.events = new ArrayList<>();
-        this.subscribers = new HashSet<>();
+        this.properties = new ConcurrentHashMap<>();
+        this.availableActions = new ConcurrentHashMap<>();
+        this.availableEvents = new ConcurrentHashMap<>();
+        this.actions = new ConcurrentHashMap<>();
+        this.events = new ConcurrentLinkedQueue<>();
+        this.subscribers = ConcurrentHashMap.newKeySet();
+        this.unfilteredPropertySubscribers = ConcurrentHashMap.newKeySet();
+        this.propertySubscribers = new ConcurrentHashMap<>();
+        this.idempotencyKeys = new IdempotencyCache(1024, 60 * 60 * 1000);
+        this.notifications = new NotificationLog(256);
         this.hrefPrefix = "";
         this.uiHref = null;
     }
@@ -94,26 +138,28 @@ public class Thing {
         JSONObject obj = new JSONObject();
         JSONObject actions = new JSONObject();
         JSONObject events = new JSONObject();
+        String hrefPrefix = this.hrefPrefix;
 
+        // Copy the metadata, since descriptions may be built concurrently
         this.availableActions.forEach((name, value) -> {
-            JSONObject metadata = value.getMetadata();
+            JSONObject metadata = copyOf(value.getMetadata());
             JSONArray links = new JSONArray();
             JSONObject link = new JSONObject();
             link.put("rel", "action");
             link.put("href",
-                     String.format("%s/actions/%s", this.hrefPrefix, name));
+                     String.format("%s/actions/%s", hrefPrefix, name));
             links.put(link);
             metadata.put("links", links);
             actions.put(name, metadata);
         });
 
         this.availableEvents.forEach((name, value) -> {
-            JSONObject metadata = value.getMetadata();
+            JSONObject metadata = copyOf(value.getMetadata());
             JSONArray links = new JSONArray();
             JSONObject link = new JSONObject();
             link.put("rel", "event");
             link.put("href",
-                     String.format("%s/events/%s", this.hrefPrefix, name));
+                     String.format("%s/events/%s", hrefPrefix, name));
             links.put(link);
             metadata.put("links", links);
             events.put(name, metadata);
@@ -135,25 +181,26 @@ public class Thing {
             JSONObject propertiesLink = new JSONObject();
             propertiesLink.put("rel", "properties");
             propertiesLink.put("href",
-                               String.format("%s/properties", this.hrefPrefix));
+                               String.format("%s/properties", hrefPrefix));
             obj.accumulate("links", propertiesLink);
 
             JSONObject actionsLink = new JSONObject();
             actionsLink.put("rel", "actions");
             actionsLink.put("href",
-                            String.format("%s/actions", this.hrefPrefix));
+                            String.format("%s/actions", hrefPrefix));
             obj.accumulate("links", actionsLink);
 
             JSONObject eventsLink = new JSONObject();
             eventsLink.put("rel", "events");
-            eventsLink.put("href", String.format("%s/events", this.hrefPrefix));
+            eventsLink.put("href", String.format("%s/events", hrefPrefix));
             obj.accumulate("links", eventsLink);
 
-            if (this.uiHref != null) {
+            String uiHref = this.uiHref;
+            if (uiHref != null) {
                 JSONObject uiLink = new JSONObject();
                 uiLink.put("rel", "alternate");
                 uiLink.put("mediaType", "text/html");
-                uiLink.put("href", this.uiHref);
+                uiLink.put("href", uiHref);
                 obj.accumulate("links", uiLink);
             }
 
@@ -163,14 +210,35 @@ public class Thing {
         }
     }
 
+    /**
+     * Get the version of the thing description, which changes whenever the
+     * description does. Servers use it to cache serialized descriptions.
+     *
+     * @return The version.
+     */
+    int getDescriptionVersion() {
+        return this.descriptionVersion;
+    }
+
+    /**
+     * Discard any cached thing descriptions.
+     * <p>
+     * Call this when overriding {@link #asThingDescription()} with state that
+     * changes over the lifetime of the thing.
+     */
+    protected void invalidateDescription() {
+        DESCRIPTION_VERSION.incrementAndGet(this);
+    }
+
     /**
      * Get this thing's href.
      *
      * @return The href
      */
     public String getHref() {
-        if (this.hrefPrefix.length() > 0) {
-            return this.hrefPrefix;
+        String hrefPrefix = this.hrefPrefix;
+        if (hrefPrefix.length() > 0) {
+            return hrefPrefix;
         }
 
         return "/";
@@ -192,6 +260,7 @@ public class Thing {
      */
     public void setUiHref(String href) {
         this.uiHref = href;
+        this.invalidateDescription();
     }
 
     /**
@@ -201,6 +270,7 @@ public class Thing {
      */
     public void setHrefPrefix(String prefix) {
         this.hrefPrefix = prefix;
+        this.invalidateDescription();
 
         this.properties.forEach((name, value) -> value.setHrefPrefix(prefix));
 
@@ -284,9 +354,11 @@ public class Thing {
         if (actionName == null) {
             this.actions.forEach((name, list) -> list.forEach((action) -> array.put(
                     action.asActionDescription())));
-        } else if (this.actions.containsKey(actionName)) {
-            this.actions.get(actionName)
-                        .forEach((action) -> array.put(action.asActionDescription()));
+        } else {
+            Queue<Action> list = this.actions.get(actionName);
+            if (list != null) {
+                list.forEach((action) -> array.put(action.asActionDescription()));
+            }
         }
 
         return array;
@@ -314,6 +386,70 @@ public class Thing {
         return array;
     }
 
+    /**
+     * Get the thing's actions, serialized as a JSON array.
+     * <p>
+     * This concatenates the cached serialized descriptions of the actions
+     * instead of building a JSONArray.
+     *
+     * @param actionName Optional action name to get descriptions for
+     * @return Action descriptions as a JSON string.
+     */
+    public String getActionDescriptionsJson(String actionName) {
+        StringBuilder builder = new StringBuilder();
+        builder.append('[');
+
+        if (actionName == null) {
+            this.actions.forEach((name, list) -> list.forEach((action) -> appendElement(
+                    builder,
+                    action.asActionDescriptionJson())));
+        } else {
+            Queue<Action> list = this.actions.get(actionName);
+            if (list != null) {
+                list.forEach((action) -> appendElement(builder,
+                                                       action.asActionDescriptionJson()));
+            }
+        }
+
+        return builder.append(']').toString();
+    }
+
+    /**
+     * Get the thing's events, serialized as a JSON array.
+     * <p>
+     * This concatenates the cached serialized descriptions of the events
+     * instead of building a JSONArray.
+     *
+     * @param eventName Optional event name to get descriptions for
+     * @return Event descriptions as a JSON string.
+     */
+    public String getEventDescriptionsJson(String eventName) {
+        StringBuilder builder = new StringBuilder();
+        builder.append('[');
+
+        this.events.forEach((event) -> {
+            if (eventName == null || event.getName().equals(eventName)) {
+                appendElement(builder, event.asEventDescriptionJson());
+            }
+        });
+
+        return builder.append(']').toString();
+    }
+
+    /**
+     * Append an element to a JSON array being built.
+     *
+     * @param builder The builder, holding at least the opening bracket
+     * @param json    The serialized element
+     */
+    private static void appendElement(StringBuilder builder, String json) {
+        if (builder.length() > 1) {
+            builder.append(',');
+        }
+
+        builder.append(json);
+    }
+
     /**
      * Add a property to this thing.
      *
@@ -322,6 +458,7 @@ public class Thing {
     public void addProperty(Property property) {
         property.setHrefPrefix(this.hrefPrefix);
         this.properties.put(property.getName(), property);
+        this.invalidateDescription();
     }
 
     /**
@@ -331,6 +468,8 @@ public class Thing {
      */
     public void removeProperty(Property property) {
         this.properties.remove(property.getName());
+        this.propertySubscribers.remove(property.getName());
+        this.invalidateDescription();
     }
 
     /**
@@ -340,11 +479,11 @@ public class Thing {
      * @return Property if found, else null.
      */
     public Property findProperty(String propertyName) {
-        if (this.properties.containsKey(propertyName)) {
-            return this.properties.get(propertyName);
+        if (propertyName == null) {
+            return null;
         }
 
-        return null;
+        return this.properties.get(propertyName);
     }
 
     /**
@@ -382,7 +521,8 @@ public class Thing {
      * @return Indication of property presence.
      */
     public boolean hasProperty(String propertyName) {
-        return this.properties.containsKey(propertyName);
+        return propertyName != null &&
+                this.properties.containsKey(propertyName);
     }
 
     /**
@@ -409,6 +549,31 @@ public class Thing {
         prop.setValue(value);
     }
 
+    /**
+     * Update a property with a JSON merge patch (RFC 7396), e.g. to change
+     * some members of an object-valued property. Only the resulting value is
+     * validated.
+     * <p>
+     * Patches of a property are applied one at a time, so that concurrent
+     * patches do not undo each other.
+     *
+     * @param propertyName Name of the property to patch
+     * @param patch        The patch
+     * @throws PropertyError If the resulting value could not be set.
+     */
+    public void patchProperty(String propertyName, Object patch)
+            throws PropertyError {
+        Property<Object> prop = this.findProperty(propertyName);
+        if (prop == null) {
+            return;
+        }
+
+        synchronized (prop) {
+            this.setProperty(propertyName,
+                             MergePatch.apply(prop.getValue(), patch));
+        }
+    }
+
     /**
      * Get an action.
      *
@@ -417,11 +582,12 @@ public class Thing {
      * @return The requested action if found, else null.
      */
     public Action getAction(String actionName, String actionId) {
-        if (!this.actions.containsKey(actionName)) {
+        Queue<Action> actions =
+                actionName == null ? null : this.actions.get(actionName);
+        if (actions == null) {
             return null;
         }
 
-        List<Action> actions = this.actions.get(actionName);
         for (Action action : actions) {
             if (actionId.equals(action.getId())) {
                 return action;
@@ -454,6 +620,7 @@ public class Thing {
         }
 
         this.availableEvents.put(name, new AvailableEvent(metadata));
+        this.invalidateDescription();
     }
 
     /**
@@ -461,36 +628,116 @@ public class Thing {
      *
      * @param actionName Name of the action
      * @param input      Any action inputs
-     * @return The action that was created.
+     * @return The action that was created, or null if there is no such
+     * action or the input is invalid.
+     * @throws ActionError If the action could not be created.
      */
     public Action performAction(String actionName, JSONObject input) {
-        if (!this.availableActions.containsKey(actionName)) {
+        AvailableAction actionType =
+                actionName == null ? null : this.availableActions.get(actionName);
+        if (actionType == null) {
             return null;
         }
 
-        AvailableAction actionType = this.availableActions.get(actionName);
         if (!actionType.validateActionInput(input)) {
             return null;
         }
 
-        Class cls = actionType.getCls();
+        Action action;
         try {
-            Constructor constructor =
-                    cls.getConstructor(Thing.class, JSONObject.class);
-            Action action =
-                    (Action)constructor.newInstance(new Object[]{this, input});
-            action.setHrefPrefix(this.hrefPrefix);
-            this.actionNotify(action);
-            this.actions.get(actionName).add(action);
-            return action;
-        } catch (NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException e) {
-            System.out.println(e);
-            return null;
+            action = actionType.getFactory().apply(this, input);
+        } catch (ActionError e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new ActionError("Failed to create action " + actionName, e);
+        }
+
+        if (action == null) {
+            throw new ActionError("Failed to create action " + actionName);
         }
+
+        action.setHrefPrefix(this.hrefPrefix);
+        actionType.attachMetrics(action);
+        action.enqueue();
+        // List the action before notifying of it, so that a snapshot taken
+        // between the two does not miss it
+        this.actions.computeIfAbsent(actionName,
+                                     (name) -> new ConcurrentLinkedQueue<>())
+                    .add(action);
+        this.actionNotify(action);
+        return action;
+    }
+
+    /**
+     * Perform an action on the thing, unless it was already performed with
+     * the same idempotency key.
+     * <p>
+     * Clients send a key with a request so that retrying it, e.g. after a
+     * network timeout, does not start the action again. The thing remembers
+     * up to 1024 keys for an hour by default; see
+     * {@link #setIdempotencyKeyLimits(int, long)}.
+     *
+     * @param actionName     Name of the action
+     * @param input          Any action inputs
+     * @param idempotencyKey Key identifying the request, or null
+     * @return The action that was created, or the action created by an
+     * earlier request with the same key and action name.
+     * @throws ActionError If the action could not be created.
+     */
+    public Action performAction(String actionName,
+                                JSONObject input,
+                                String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return this.performAction(actionName, input);
+        }
+
+        return this.idempotencyKeys.get(actionName + '\n' + idempotencyKey,
+                                        () -> this.performAction(actionName,
+                                                                 input));
     }
 
     /**
-     * Remove an existing action.
+     * Set how many idempotency keys the thing remembers, and for how long.
+     * The limits apply to keys used afterwards.
+     *
+     * @param maxKeys      Number of keys to remember, or 0 to ignore keys
+     * @param expiryMillis Time to remember a key for, in milliseconds
+     * @throws IllegalArgumentException If a limit is negative.
+     */
+    public void setIdempotencyKeyLimits(int maxKeys, long expiryMillis) {
+        this.idempotencyKeys.setLimits(maxKeys, expiryMillis);
+    }
+
+    /**
+     * Run an action on a separate thread, now or once the policy of its
+     * available action allows. An action only runs once, however often this
+     * is called.
+     *
+     * @param action The action, as returned by
+     *               {@link #performAction(String, JSONObject)}
+     * @return Whether this call submitted the action to run.
+     */
+    public boolean runAction(Action action) {
+        if (!action.submit()) {
+            return false;
+        }
+
+        AvailableAction actionType =
+                this.availableActions.get(action.getName());
+        if (actionType == null) {
+            UNLIMITED.submit(action);
+        } else {
+            actionType.attachMetrics(action);
+            actionType.getQueue().submit(action);
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove an existing action, cancelling it if it has not completed. A
+     * running action is interrupted, and its subscribers are sent its
+     * "cancelled" status.
      *
      * @param actionName name of the action
      * @param actionId   ID of the action
@@ -502,9 +749,13 @@ public class Thing {
             return false;
         }
 
-        action.cancel();
-        this.actions.get(actionName).remove(action);
-        return true;
+        AvailableAction actionType = this.availableActions.get(actionName);
+        if (actionType != null) {
+            actionType.getQueue().remove(action);
+        }
+
+        action.abort("cancelled");
+        return this.actions.get(actionName).remove(action);
     }
 
     /**
@@ -513,17 +764,157 @@ public class Thing {
      * @param name     Name of the action
      * @param metadata Action metadata, i.e. type, description, etc., as a
      *                 JSONObject
-     * @param cls      Class to instantiate for this action
+     * @param cls      Class to instantiate for this action, with a public
+     *                 constructor taking the thing and the action input
+     * @throws IllegalArgumentException If the class has no such constructor.
      */
     public void addAvailableAction(String name,
                                    JSONObject metadata,
                                    Class cls) {
+        this.addAvailableAction(name, metadata, cls, ActionPolicy.unlimited());
+    }
+
+    /**
+     * Add an available action, created by a factory, e.g. a constructor
+     * reference such as {@code FadeAction::new}.
+     *
+     * @param name     Name of the action
+     * @param metadata Action metadata, i.e. type, description, etc., as a
+     *                 JSONObject
+     * @param factory  Creator of an action from the thing and the action
+     *                 input
+     */
+    public void addAvailableAction(String name,
+                                   JSONObject metadata,
+                                   BiFunction<Thing, JSONObject, ? extends Action> factory) {
+        this.addAvailableAction(name,
+                                metadata,
+                                factory,
+                                ActionPolicy.unlimited());
+    }
+
+    /**
+     * Add an available action, which runs as the given policy allows.
+     *
+     * @param name     Name of the action
+     * @param metadata Action metadata, i.e. type, description, etc., as a
+     *                 JSONObject
+     * @param cls      Class to instantiate for this action, with a public
+     *                 constructor taking the thing and the action input
+     * @param policy   How many actions of this name may run at once, and in
+     *                 which order the others wait
+     * @throws IllegalArgumentException If the class has no such constructor.
+     */
+    public void addAvailableAction(String name,
+                                   JSONObject metadata,
+                                   Class cls,
+                                   ActionPolicy policy) {
+        this.addAvailableAction(name, metadata, constructorOf(cls), policy);
+    }
+
+    /**
+     * Add an available action, created by a factory, which runs as the given
+     * policy allows.
+     *
+     * @param name     Name of the action
+     * @param metadata Action metadata, i.e. type, description, etc., as a
+     *                 JSONObject
+     * @param factory  Creator of an action from the thing and the action
+     *                 input
+     * @param policy   How many actions of this name may run at once, and in
+     *                 which order the others wait
+     */
+    public void addAvailableAction(String name,
+                                   JSONObject metadata,
+                                   BiFunction<Thing, JSONObject, ? extends Action> factory,
+                                   ActionPolicy policy) {
         if (metadata == null) {
             metadata = new JSONObject();
         }
 
-        this.availableActions.put(name, new AvailableAction(metadata, cls));
-        this.actions.put(name, new ArrayList<>());
+        this.availableActions.put(name,
+                                  new AvailableAction(name,
+                                                      metadata,
+                                                      factory,
+                                                      policy));
+        this.actions.putIfAbsent(name, new ConcurrentLinkedQueue<>());
+        this.invalidateDescription();
+    }
+
+    /**
+     * Get a factory which calls the (Thing, JSONObject) constructor of an
+     * action class, looked up once.
+     *
+     * @param cls The action class
+     * @return The factory.
+     * @throws IllegalArgumentException If the class has no such constructor.
+     */
+    private static BiFunction<Thing, JSONObject, Action> constructorOf(Class<?> cls) {
+        if (cls == null || !Action.class.isAssignableFrom(cls)) {
+            throw new IllegalArgumentException(
+                    "Not an action class: " + cls);
+        }
+
+        MethodHandle constructor;
+        try {
+            constructor =
+                    MethodHandles.publicLookup()
+                                 .findConstructor(cls,
+                                                  MethodType.methodType(void.class,
+                                                                        Thing.class,
+                                                                        JSONObject.class))
+                                 .asType(MethodType.methodType(Action.class,
+                                                               Thing.class,
+                                                               JSONObject.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException(
+                    cls.getName() +
+                            " has no public (Thing, JSONObject) constructor",
+                    e);
+        }
+
+        return (thing, input) -> {
+            try {
+                return (Action) constructor.invokeExact(thing, input);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new ActionError("Failed to create " + cls.getName(), e);
+            }
+        };
+    }
+
+    /**
+     * Get the number of websocket subscribers.
+     *
+     * @return The number of subscribers.
+     */
+    int getSubscriberCount() {
+        return this.subscribers.size();
+    }
+
+    /**
+     * Get the websocket subscribers.
+     *
+     * @return The subscribers.
+     */
+    Collection<WebThingServer.ThingHandler.ThingWebSocket> getSubscribers() {
+        return Collections.unmodifiableSet(this.subscribers);
+    }
+
+    /**
+     * Get the actions which were submitted to run and have not completed.
+     *
+     * @return The actions.
+     */
+    List<Action> getActiveActions() {
+        List<Action> active = new ArrayList<>();
+        this.actions.forEach((name, list) -> list.forEach(action -> {
+            if (action.isActive()) {
+                active.add(action);
+            }
+        }));
+        return active;
     }
 
     /**
@@ -532,7 +923,76 @@ public class Thing {
      * @param ws The websocket
      */
     public void addSubscriber(WebThingServer.ThingHandler.ThingWebSocket ws) {
+        this.observed = true;
         this.subscribers.add(ws);
+        this.unfilteredPropertySubscribers.add(ws);
+    }
+
+    /**
+     * Add a websocket subscriber which reconnected, sending it the
+     * notifications it missed first.
+     * <p>
+     * Like live notifications, events are only replayed to a subscriber of
+     * them. A websocket which has just opened has not subscribed to any, so
+     * it should fetch the events it missed.
+     * <p>
+     * If some of the notifications are no longer kept, or the sequence is not
+     * one of this thing's, e.g. after a restart of the server, the subscriber
+     * is instead sent a {@code snapshot} message with the sequence of the
+     * latest notification, the current property values, and the action and
+     * event descriptions. Either way, it then receives every later
+     * notification, without gaps. Notifications right after a snapshot may
+     * repeat a change it already holds.
+     *
+     * @param ws           The websocket
+     * @param lastSequence Sequence of the last notification it received
+     */
+    public void addSubscriber(WebThingServer.ThingHandler.ThingWebSocket ws,
+                              long lastSequence) {
+        this.observed = true;
+        synchronized (this.notifications) {
+            List<String> missed = this.notifications.since(lastSequence, (name) -> {
+                AvailableEvent event = this.availableEvents.get(name);
+                return event != null && event.getSubscribers().contains(ws);
+            });
+            if (missed == null) {
+                ws.sendMessage("{\"messageType\":\"snapshot\",\"sequence\":" +
+                                       this.notifications.getSequence() +
+                                       ",\"data\":{\"properties\":" +
+                                       this.getProperties() +
+                                       ",\"actions\":" +
+                                       this.getActionDescriptionsJson(null) +
+                                       ",\"events\":" +
+                                       this.getEventDescriptionsJson(null) +
+                                       "}}");
+            } else {
+                ws.sendMessages(missed);
+            }
+
+            this.addSubscriber(ws);
+        }
+    }
+
+    /**
+     * Get the sequence of the latest websocket notification. Notifications
+     * are numbered from the first time a websocket subscribes.
+     *
+     * @return The sequence.
+     */
+    public long getNotificationSequence() {
+        return this.notifications.getSequence();
+    }
+
+    /**
+     * Set how many websocket notifications the thing keeps to replay to
+     * reconnecting subscribers. The default is 256.
+     *
+     * @param size Number of notifications to keep, or 0 to send every
+     *             reconnecting subscriber a snapshot
+     * @throws IllegalArgumentException If the size is negative.
+     */
+    public void setReplayBufferSize(int size) {
+        this.notifications.setCapacity(size);
     }
 
     /**
@@ -542,12 +1002,55 @@ public class Thing {
      */
     public void removeSubscriber(WebThingServer.ThingHandler.ThingWebSocket ws) {
         this.subscribers.remove(ws);
+        this.unfilteredPropertySubscribers.remove(ws);
+
+        this.propertySubscribers.forEach((name, set) -> set.remove(ws));
 
         this.availableEvents.forEach((name, value) -> this.removeEventSubscriber(
                 name,
                 ws));
     }
 
+    /**
+     * Add a websocket subscriber to a property.
+     * <p>
+     * Subscribers receive changes of every property until they subscribe to
+     * one; from then on, they only receive changes of the properties they
+     * subscribed to.
+     *
+     * @param name Name of the property
+     * @param ws   The websocket
+     */
+    public void addPropertySubscriber(String name,
+                                      WebThingServer.ThingHandler.ThingWebSocket ws) {
+        if (!this.hasProperty(name)) {
+            return;
+        }
+
+        this.propertySubscribers.computeIfAbsent(name,
+                                                 (key) -> ConcurrentHashMap.newKeySet())
+                                .add(ws);
+        this.unfilteredPropertySubscribers.remove(ws);
+    }
+
+    /**
+     * Remove a websocket subscriber from a property.
+     * <p>
+     * The subscriber keeps receiving changes of the other properties it
+     * subscribed to only.
+     *
+     * @param name Name of the property
+     * @param ws   The websocket
+     */
+    public void removePropertySubscriber(String name,
+                                         WebThingServer.ThingHandler.ThingWebSocket ws) {
+        Set<WebThingServer.ThingHandler.ThingWebSocket> set =
+                name == null ? null : this.propertySubscribers.get(name);
+        if (set != null) {
+            set.remove(ws);
+        }
+    }
+
     /**
      * Add a new websocket subscriber to an event.
      *
@@ -556,8 +1059,10 @@ public class Thing {
      */
     public void addEventSubscriber(String name,
                                    WebThingServer.ThingHandler.ThingWebSocket ws) {
-        if (this.availableEvents.containsKey(name)) {
-            this.availableEvents.get(name).addSubscriber(ws);
+        AvailableEvent event =
+                name == null ? null : this.availableEvents.get(name);
+        if (event != null) {
+            event.addSubscriber(ws);
         }
     }
 
@@ -569,27 +1074,128 @@ public class Thing {
      */
     public void removeEventSubscriber(String name,
                                       WebThingServer.ThingHandler.ThingWebSocket ws) {
-        if (this.availableEvents.containsKey(name)) {
-            this.availableEvents.get(name).removeSubscriber(ws);
+        AvailableEvent event =
+                name == null ? null : this.availableEvents.get(name);
+        if (event != null) {
+            event.removeSubscriber(ws);
         }
     }
 
     /**
-     * Notify all subscribers of a property change.
+     * Notify the subscribers interested in a property of its change.
      *
      * @param property The property that changed
      */
     public void propertyNotify(Property property) {
-        JSONObject json = new JSONObject();
-        JSONObject inner = new JSONObject();
+        // Until a websocket subscribes, no client can miss a notification
+        if (!this.observed) {
+            return;
+        }
 
-        inner.put(property.getName(), property.getValue());
-        json.put("messageType", "propertyStatus");
-        json.put("data", inner);
+        Set<WebThingServer.ThingHandler.ThingWebSocket> filtered =
+                this.propertySubscribers.get(property.getName());
 
-        String message = json.toString();
+        FlightEvents flightEvents = FlightEvents.get();
+        Object event = flightEvents.beginNotification();
 
-        this.subscribers.forEach((subscriber) -> subscriber.sendMessage(message));
+        if (property.getValue() instanceof JSONObject &&
+                (hasDeltaSubscriber(this.unfilteredPropertySubscribers) ||
+                        (filtered != null && hasDeltaSubscriber(filtered)))) {
+            this.propertyNotifyDeltas(property, filtered);
+        } else {
+            // Read the value and publish it under the property's lock, so
+            // that racing changes of it are numbered in the order of the
+            // values they send, without holding up other properties
+            synchronized (property) {
+                StringBuilder builder = new StringBuilder(32);
+                builder.append('{')
+                       .append(JSONObject.quote(property.getName()))
+                       .append(':');
+                property.appendValueJson(builder);
+                builder.append('}');
+
+                this.notifications.publish("propertyStatus", null, builder.toString(), (message, sequence) -> {
+                    this.unfilteredPropertySubscribers.forEach((subscriber) -> subscriber.sendMessage(
+                            message));
+                    if (filtered != null) {
+                        filtered.forEach((subscriber) -> subscriber.sendMessage(message));
+                    }
+                });
+            }
+        }
+
+        if (event != null) {
+            flightEvents.commitNotification(event,
+                                            this,
+                                            "propertyStatus",
+                                            property.getName(),
+                                            this.unfilteredPropertySubscribers.size() +
+                                                    (filtered == null ?
+                                                     0 :
+                                                     filtered.size()));
+        }
+    }
+
+    /**
+     * Notify the subscribers interested in an object-valued property of its
+     * change, sending a merge patch from the previous value to the
+     * subscribers which asked for deltas and already have that value.
+     * <p>
+     * Notifications of the property are sent one at a time, so that deltas
+     * arrive in the order they apply. Only the full value is kept for
+     * replay, as a reconnecting subscriber has no value to apply a delta to.
+     *
+     * @param property The property that changed
+     * @param filtered Subscribers to this property only, or null
+     */
+    private void propertyNotifyDeltas(Property property,
+                                      Set<WebThingServer.ThingHandler.ThingWebSocket> filtered) {
+        String name = property.getName();
+        synchronized (property) {
+            Object value = property.getValue();
+            Object previous = property.swapNotifiedValue(MergePatch.copy(value));
+            Object patch = previous == null ? null : MergePatch.diff(previous, value);
+
+            String data = "{" + JSONObject.quote(name) + ":" +
+                    JSONObject.valueToString(value) + "}";
+            String deltaData = patch == null ?
+                               null :
+                               "{" + JSONObject.quote(name) + ":" +
+                                       JSONObject.valueToString(patch) + "}";
+
+            this.notifications.publish("propertyStatus", null, data, (full, sequence) -> {
+                String delta = deltaData == null ?
+                               null :
+                               "{\"messageType\":\"propertyDelta\",\"sequence\":" +
+                                       sequence + ",\"data\":" + deltaData + "}";
+                Consumer<WebThingServer.ThingHandler.ThingWebSocket> send =
+                        (subscriber) -> subscriber.sendMessage(
+                                subscriber.useDelta(name) && delta != null ?
+                                delta :
+                                full);
+                this.unfilteredPropertySubscribers.forEach(send);
+                if (filtered != null) {
+                    filtered.forEach(send);
+                }
+            });
+        }
+    }
+
+    /**
+     * Get whether any of some subscribers asked for property deltas.
+     *
+     * @param subscribers The subscribers
+     * @return Whether any asked for deltas.
+     */
+    private static boolean hasDeltaSubscriber(
+            Set<WebThingServer.ThingHandler.ThingWebSocket> subscribers) {
+        for (WebThingServer.ThingHandler.ThingWebSocket subscriber : subscribers) {
+            if (subscriber.isPropertyDeltas()) {
+                return true;
+            }
+        }
+
+        return false;
     }
 
     /**
@@ -598,14 +1204,31 @@ public class Thing {
      * @param action The action whose status changed
      */
     public void actionNotify(Action action) {
-        JSONObject json = new JSONObject();
-
-        json.put("messageType", "actionStatus");
-        json.put("data", action.asActionDescription());
+        if (!this.observed) {
+            return;
+        }
 
-        String message = json.toString();
+        FlightEvents flightEvents = FlightEvents.get();
+        Object event = flightEvents.beginNotification();
+
+        // Racing status changes of the action are numbered in the order of
+        // the statuses they send
+        synchronized (action.getNotificationLock()) {
+            this.notifications.publish("actionStatus",
+                                       null,
+                                       action.asActionDescriptionJson(),
+                                       (message, sequence) -> this.subscribers.forEach(
+                                               (subscriber) -> subscriber.sendMessage(
+                                                       message)));
+        }
 
-        this.subscribers.forEach((subscriber) -> subscriber.sendMessage(message));
+        if (event != null) {
+            flightEvents.commitNotification(event,
+                                            this,
+                                            "actionStatus",
+                                            action.getName(),
+                                            this.subscribers.size());
+        }
     }
 
     /**
@@ -614,22 +1237,43 @@ public class Thing {
      * @param event The event that occurred
      */
     public void eventNotify(Event event) {
-        String eventName = event.getName();
-        if (!this.availableEvents.containsKey(eventName)) {
+        AvailableEvent availableEvent =
+                this.availableEvents.get(event.getName());
+        if (availableEvent == null || !this.observed) {
             return;
         }
 
-        JSONObject json = new JSONObject();
-
-        json.put("messageType", "event");
-        json.put("data", event.asEventDescription());
-
-        String message = json.toString();
+        FlightEvents flightEvents = FlightEvents.get();
+        Object flightEvent = flightEvents.beginNotification();
+
+        Set<WebThingServer.ThingHandler.ThingWebSocket> subscribers =
+                availableEvent.getSubscribers();
+        this.notifications.publish("event",
+                                   event.getName(),
+                                   event.asEventDescriptionJson(),
+                                   (message, sequence) -> subscribers.forEach(
+                                           (subscriber) -> subscriber.sendMessage(
+                                                   message)));
+
+        if (flightEvent != null) {
+            flightEvents.commitNotification(flightEvent,
+                                            this,
+                                            "event",
+                                            event.getName(),
+                                            subscribers.size());
+        }
+    }
 
-        this.availableEvents.get(eventName)
-                            .getSubscribers()
-                            .forEach((subscriber) -> subscriber.sendMessage(
-                                    message));
+    /**
+     * Make a shallow copy of a JSON object.
+     *
+     * @param obj The object to copy
+     * @return The copy.
+     */
+    private static JSONObject copyOf(JSONObject obj) {
+        JSONObject copy = new JSONObject();
+        obj.keySet().forEach((key) -> copy.put(key, obj.opt(key)));
+        return copy;
     }
 
     /**
@@ -647,7 +1291,7 @@ public class Thing {
          */
         public AvailableEvent(JSONObject metadata) {
             this.metadata = metadata;
-            this.subscribers = new HashSet<>();
+            this.subscribers = ConcurrentHashMap.newKeySet();
         }
 
         /**
@@ -691,19 +1335,36 @@ public class Thing {
      * Class to describe an action available to be taken.
      */
     private static class AvailableAction {
+        private static final Metrics.Histogram VALIDATION_TIME =
+                Metrics.getDefault()
+                       .histogram("webthing_schema_validation_seconds",
+                                  "Time spent validating values against schemas.",
+                                  "kind",
+                                  "action");
         private final JSONObject metadata;
-        private final Class cls;
+        private final BiFunction<Thing, JSONObject, ? extends Action> factory;
         private final Schema schema;
+        private final ActionQueue queue;
+        private final Metrics.Gauge queueDepth;
+        private final Metrics.Histogram duration;
 
         /**
          * Initialize the object.
          *
+         * @param name     Name of the action
          * @param metadata The action metadata
-         * @param cls      Class to instantiate for the action
+         * @param factory  Creator of the action
+         * @param policy   The concurrency policy
          */
-        public AvailableAction(JSONObject metadata, Class cls) {
+        public AvailableAction(String name,
+                               JSONObject metadata,
+                               BiFunction<Thing, JSONObject, ? extends Action> factory,
+                               ActionPolicy policy) {
             this.metadata = metadata;
-            this.cls = cls;
+            this.factory = factory;
+            this.queue = new ActionQueue(policy, metadata.optLong("timeout"));
+            this.queueDepth = Action.queueDepthOf(name);
+            this.duration = Action.durationOf(name);
 
             if (metadata.has("input")) {
                 JSONObject rawSchema = metadata.getJSONObject("input");
@@ -723,12 +1384,30 @@ public class Thing {
         }
 
         /**
-         * Get the class to instantiate for the action.
+         * Give an action of this type the metrics it records into.
+         *
+         * @param action The action
+         */
+        public void attachMetrics(Action action) {
+            action.setMetrics(this.queueDepth, this.duration);
+        }
+
+        /**
+         * Get the queue actions run through.
+         *
+         * @return The queue.
+         */
+        public ActionQueue getQueue() {
+            return this.queue;
+        }
+
+        /**
+         * Get the creator of the action.
          *
-         * @return The class.
+         * @return The factory.
          */
-        public Class getCls() {
-            return this.cls;
+        public BiFunction<Thing, JSONObject, ? extends Action> getFactory() {
+            return this.factory;
         }
 
         /**
@@ -746,10 +1425,13 @@ public class Thing {
                 actionInput = new JSONObject();
             }
 
+            long start = System.nanoTime();
             try {
                 this.schema.validate(actionInput);
             } catch (ValidationException e) {
                 return false;
+            } finally {
+                VALIDATION_TIME.observeNanos(System.nanoTime() - start);
             }
 
             return true;
@@ -6,7 +6,10 @@ package io.webthings.webthing;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.time.Clock;
 import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -19,14 +22,76 @@ import java.util.Set;
 import java.util.function.Function;
 
 public class Utils {
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'+00:00'")
+                             .withZone(ZoneOffset.UTC);
+    private static volatile Clock clock = Clock.systemUTC();
+    private static volatile CachedTimestamp cachedTimestamp =
+            new CachedTimestamp(Long.MIN_VALUE, null);
+
+    /**
+     * Get the clock used for timestamps.
+     *
+     * @return The clock.
+     */
+    public static Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Set the clock used for timestamps, e.g. a fixed clock to make tests and
+     * benchmarks deterministic.
+     *
+     * @param newClock The clock to use, or null for the system clock
+     */
+    public static void setClock(Clock newClock) {
+        clock = newClock == null ? Clock.systemUTC() : newClock;
+    }
+
+    /**
+     * Get the current time from the configured clock.
+     *
+     * @return Milliseconds since the epoch.
+     */
+    public static long currentTimeMillis() {
+        return clock.millis();
+    }
+
     /**
      * Get the current time.
      *
      * @return The current time in the form YYYY-mm-ddTHH:MM:SS+00.00
      */
     public static String timestamp() {
-        String now = Instant.now().toString().split("\\.")[0];
-        return now + "+00:00";
+        return timestamp(currentTimeMillis());
+    }
+
+    /**
+     * Format a time.
+     * <p>
+     * The formatted form of the most recent second is cached, so formatting
+     * the current time is usually just a comparison.
+     *
+     * @param epochMillis Milliseconds since the epoch
+     * @return The time in the form YYYY-mm-ddTHH:MM:SS+00.00
+     */
+    public static String timestamp(long epochMillis) {
+        long second = Math.floorDiv(epochMillis, 1000L);
+        CachedTimestamp cached = cachedTimestamp;
+        if (cached.second == second) {
+            return cached.formatted;
+        }
+
+        String formatted =
+                TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(second));
+
+        // Only move the cache forward, so formatting old times, e.g. when
+        // listing past actions, does not evict the current second.
+        if (second > cached.second) {
+            cachedTimestamp = new CachedTimestamp(second, formatted);
+        }
+
+        return formatted;
     }
 
     /**
@@ -91,4 +156,24 @@ public class Utils {
         }
         return Optional.empty();
     }
+
+    /**
+     * A formatted second, replaced as a whole so readers never see a torn
+     * pair.
+     */
+    private static class CachedTimestamp {
+        private final long second;
+        private final String formatted;
+
+        /**
+         * Initialize the object.
+         *
+         * @param second    Seconds since the epoch
+         * @param formatted The formatted second
+         */
+        CachedTimestamp(long second, String formatted) {
+            this.second = second;
+            this.formatted = formatted;
+        }
+    }
 }
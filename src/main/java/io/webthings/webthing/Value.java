@@ -1,7 +1,12 @@
 package io.webthings.webthing;
 
+import org.json.JSONObject;
+
+import java.util.Arrays;
 import java.util.Objects;
-import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.function.Consumer;
 
 /**
@@ -10,13 +15,58 @@ import java.util.function.Consumer;
  * This is used for communicating between the Thing representation and the
  * actual physical thing implementation.
  * <p>
- * Notifies all observers when the underlying value changes through an external
+ * Notifies all listeners when the underlying value changes through an external
  * update (command to turn the light off) or if the underlying sensor reports a
  * new value.
+ * <p>
+ * A value may be updated concurrently, e.g. by a hardware thread and by HTTP
+ * request threads. New values are published with a compare-and-set, so every
+ * change is detected exactly once, and listeners are kept in a lock-free
+ * copy-on-write array. Listeners always read the latest value, so the last
+ * notification reflects the final state even when updates race. Observers
+ * are handed the value each change stored, so racing changes are each
+ * delivered once.
+ * <p>
+ * A {@link ChangeFilter} can suppress insignificant notifications, e.g. sensor
+ * jitter, while the stored value is still always updated.
+ * <p>
+ * For numeric and boolean readings, prefer the primitive specializations
+ * {@link IntValue}, {@link LongValue}, {@link DoubleValue} and
+ * {@link BooleanValue}, which store, compare and serialize the reading without
+ * boxing.
  *
  * @author Tim Hinkes (timmeey@timmeey.de)
  */
-public class Value<T> extends Observable {
+public class Value<T> {
+    private static final Listener[] NO_LISTENERS = new Listener[0];
+    private static final AtomicReferenceFieldUpdater<Value, Object>
+            LAST_VALUE = AtomicReferenceFieldUpdater.newUpdater(Value.class,
+                                                                Object.class,
+                                                                "lastValue");
+    private static final AtomicReferenceFieldUpdater<Value, Listener[]>
+            LISTENERS = AtomicReferenceFieldUpdater.newUpdater(Value.class,
+                                                               Listener[].class,
+                                                               "listeners");
+    private static final AtomicLongFieldUpdater<Value> SUPPRESSED =
+            AtomicLongFieldUpdater.newUpdater(Value.class,
+                                              "suppressedNotifications");
+
+    /**
+     * Listener informed whenever the value changes.
+     * <p>
+     * Unlike an {@link java.util.Observer}, a listener is not handed the new
+     * value, so primitive values can notify it without boxing. Read the value
+     * back from the source if needed.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Called after the value changed.
+         *
+         * @param value The value that changed
+         */
+        void valueChanged(Value<?> value);
+    }
 
     static class BaseTypeHelper
     {
@@ -28,7 +78,13 @@ public class Value<T> extends Observable {
 
     private final Consumer<T> valueForwarder;
     private final Class<T> baseType;
-    private T lastValue;
+    private volatile T lastValue;
+    private volatile Listener[] listeners = NO_LISTENERS;
+    private volatile ChangeFilter changeFilter;
+    private volatile boolean notifiedBefore;
+    private volatile long lastNotifiedTime;
+    private volatile double lastNotifiedValue;
+    private volatile long suppressedNotifications;
 
     /**
      * Create a read only value that can only be updated by a Thing's reading.
@@ -93,10 +149,31 @@ public class Value<T> extends Observable {
      *                       thing
      */
     public Value(final Class<T> baseType, final T initialValue, final Consumer<T> valueForwarder) {
+        this(baseType, initialValue, valueForwarder, null);
+    }
+
+    /**
+     * Create a writable value whose change notifications are filtered.
+     * <p>
+     * Example: A temperature sensor that should only notify about changes of
+     * more than 0.1 degrees.
+     *
+     * @param baseType       The Class of the values base type
+     * @param initialValue   The initial value
+     * @param valueForwarder The method that updates the actual value on the
+     *                       thing, or null for a read only value
+     * @param changeFilter   The filter deciding which changes are notified,
+     *                       or null to notify all changes
+     */
+    public Value(final Class<T> baseType,
+                 final T initialValue,
+                 final Consumer<T> valueForwarder,
+                 final ChangeFilter changeFilter) {
         Objects.requireNonNull(baseType, "The base type of a value must not be null.");
         this.baseType = baseType;
         this.lastValue = initialValue;
         this.valueForwarder = valueForwarder;
+        this.setChangeFilter(changeFilter);
     }
 
     /**
@@ -116,7 +193,7 @@ public class Value<T> extends Observable {
      *
      * @param value Value to set
      */
-    public final void set(T value) {
+    public void set(T value) {
         if (valueForwarder != null) {
             valueForwarder.accept(value);
         }
@@ -131,7 +208,7 @@ public class Value<T> extends Observable {
      *
      * @return The value.
      */
-    public final T get() {
+    public T get() {
         return this.lastValue;
     }
 
@@ -143,11 +220,304 @@ public class Value<T> extends Observable {
      *
      * @param value the newly reported value
      */
-    public final void notifyOfExternalUpdate(T value) {
-        if (value != null && !value.equals(this.lastValue)) {
-            this.setChanged();
-            this.lastValue = value;
-            notifyObservers(value);
+    public void notifyOfExternalUpdate(T value) {
+        if (value == null) {
+            return;
+        }
+
+        Object current;
+        do {
+            current = this.lastValue;
+            if (value.equals(current)) {
+                this.valueUnchanged();
+                return;
+            }
+        } while (!LAST_VALUE.compareAndSet(this, current, value));
+
+        this.fireValueChanged(value);
+    }
+
+    /**
+     * Append the current value to a JSON document being built.
+     *
+     * @param builder The builder to append to
+     */
+    public void appendJson(StringBuilder builder) {
+        builder.append(JSONObject.valueToString(this.get()));
+    }
+
+    /**
+     * Get the current value as a number, for deadband filtering.
+     *
+     * @return The value, or NaN if it is not numeric.
+     */
+    protected double doubleValue() {
+        T value = this.get();
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+
+        return Double.NaN;
+    }
+
+    /**
+     * Get the filter deciding which changes are notified.
+     *
+     * @return The filter, or null if all changes are notified.
+     */
+    public ChangeFilter getChangeFilter() {
+        return this.changeFilter;
+    }
+
+    /**
+     * Set the filter deciding which changes are notified.
+     *
+     * @param changeFilter The filter, or null to notify all changes
+     */
+    public void setChangeFilter(ChangeFilter changeFilter) {
+        this.notifiedBefore = false;
+        this.lastNotifiedTime = System.nanoTime();
+        this.lastNotifiedValue = Double.NaN;
+        this.changeFilter = changeFilter;
+    }
+
+    /**
+     * Get the number of change notifications suppressed by the change
+     * filter.
+     *
+     * @return The number of suppressed notifications.
+     */
+    public long getSuppressedNotifications() {
+        return this.suppressedNotifications;
+    }
+
+    /**
+     * Add a listener to be informed about value changes.
+     *
+     * @param listener The listener to add
+     */
+    public void addListener(Listener listener) {
+        Objects.requireNonNull(listener, "The listener must not be null.");
+        Listener[] current;
+        Listener[] updated;
+        do {
+            current = this.listeners;
+            updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = listener;
+        } while (!LISTENERS.compareAndSet(this, current, updated));
+    }
+
+    /**
+     * Remove a previously added listener.
+     *
+     * @param listener The listener to remove
+     */
+    public void removeListener(Listener listener) {
+        Listener[] current;
+        Listener[] updated;
+        do {
+            current = this.listeners;
+            int index = -1;
+            for (int i = 0; i < current.length; ++i) {
+                if (current[i].equals(listener)) {
+                    index = i;
+                    break;
+                }
+            }
+
+            if (index < 0) {
+                return;
+            }
+
+            updated = new Listener[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current,
+                             index + 1,
+                             updated,
+                             index,
+                             current.length - index - 1);
+        } while (!LISTENERS.compareAndSet(this, current, updated));
+    }
+
+    /**
+     * Add an observer to be informed about value changes.
+     * <p>
+     * Kept for compatibility with code written when values were
+     * {@link java.util.Observable}. The observer is called with a null
+     * observable, as a value is no longer one, and the value each change
+     * stored as argument. Prefer
+     * {@link #addListener(Listener)}, which does not box primitive values.
+     *
+     * @param observer The observer to add
+     */
+    public void addObserver(Observer observer) {
+        this.addListener(new ObserverListener(observer));
+    }
+
+    /**
+     * Remove a previously added observer.
+     *
+     * @param observer The observer to remove
+     */
+    public void deleteObserver(Observer observer) {
+        this.removeListener(new ObserverListener(observer));
+    }
+
+    /**
+     * Get the number of registered listeners, including observers.
+     *
+     * @return The number of listeners.
+     */
+    public int countListeners() {
+        return this.listeners.length;
+    }
+
+    /**
+     * Inform all listeners that the value changed, unless the change filter
+     * suppresses the notification. Observers are handed the value read at
+     * dispatch; prefer {@link #fireValueChanged(Object)}.
+     * <p>
+     * Listeners are dispatched from an array snapshot without locking or
+     * allocating.
+     */
+    protected final void fireValueChanged() {
+        Listener[] listeners = this.changedListeners();
+        if (listeners != null) {
+            this.dispatchValueChanged(listeners, this.get());
+        }
+    }
+
+    /**
+     * Inform all listeners that the value changed, unless the change filter
+     * suppresses the notification.
+     *
+     * @param value The value the change stored, which observers are handed
+     */
+    protected final void fireValueChanged(T value) {
+        Listener[] listeners = this.changedListeners();
+        if (listeners != null) {
+            this.dispatchValueChanged(listeners, value);
+        }
+    }
+
+    /**
+     * Decide whether a change is notified, recording it if so.
+     *
+     * @return The listeners to inform, or null if the change filter
+     * suppresses the notification.
+     */
+    final Listener[] changedListeners() {
+        ChangeFilter filter = this.changeFilter;
+        if (filter != null) {
+            long now = System.nanoTime();
+            double current = this.doubleValue();
+            if (!filter.isSignificant(this.notifiedBefore,
+                                      now - this.lastNotifiedTime,
+                                      this.lastNotifiedValue,
+                                      current)) {
+                SUPPRESSED.incrementAndGet(this);
+                return null;
+            }
+
+            this.notifiedSince(now, current);
+        }
+
+        return this.listeners;
+    }
+
+    /**
+     * Called when a reported reading equals the stored value. Sends a
+     * heartbeat notification if the change filter's maximum interval has
+     * passed.
+     */
+    protected final void valueUnchanged() {
+        ChangeFilter filter = this.changeFilter;
+        if (filter == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (filter.isHeartbeatDue(now - this.lastNotifiedTime)) {
+            this.notifiedSince(now, this.doubleValue());
+            this.dispatchValueChanged(this.listeners, this.get());
+        }
+    }
+
+    /**
+     * Record the state at the time of a notification.
+     *
+     * @param now   The current time, in nanoseconds
+     * @param value The notified value
+     */
+    private void notifiedSince(long now, double value) {
+        this.lastNotifiedTime = now;
+        this.lastNotifiedValue = value;
+        this.notifiedBefore = true;
+    }
+
+    /**
+     * Dispatch a change notification to listeners.
+     *
+     * @param listeners The listeners
+     * @param value     The value handed to observers
+     */
+    final void dispatchValueChanged(Listener[] listeners, Object value) {
+        for (Listener listener : listeners) {
+            if (listener instanceof ObserverListener) {
+                ((ObserverListener) listener).observer.update(null, value);
+            } else {
+                listener.valueChanged(this);
+            }
+        }
+    }
+
+    /**
+     * Get whether any of some listeners is an observer, which needs the
+     * value boxed.
+     *
+     * @param listeners The listeners
+     * @return Whether one is an observer.
+     */
+    static boolean hasObserver(Listener[] listeners) {
+        for (Listener listener : listeners) {
+            if (listener instanceof ObserverListener) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Adapter dispatching value changes to a {@link java.util.Observer}.
+     */
+    private static class ObserverListener implements Listener {
+        private final Observer observer;
+
+        /**
+         * Initialize the object.
+         *
+         * @param observer The observer to dispatch to
+         */
+        ObserverListener(Observer observer) {
+            this.observer = Objects.requireNonNull(observer,
+                                                   "The observer must not be null.");
+        }
+
+        @Override
+        public void valueChanged(Value<?> value) {
+            this.observer.update(null, value.get());
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ObserverListener &&
+                    ((ObserverListener) other).observer.equals(this.observer);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.observer.hashCode();
         }
     }
 }
@@ -0,0 +1,187 @@
+/**
+ * Websocket compression settings.
+ */
+package io.webthings.webthing;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Settings for the permessage-deflate websocket extension (RFC 7692).
+ * <p>
+ * With context takeover, a connection keeps its compression window between
+ * messages, which compresses repetitive status messages best but pins a
+ * deflater and an inflater to the connection. To keep memory bounded, only a
+ * limited number of connections are granted context takeover; any further
+ * connections negotiate no context takeover in both directions and borrow
+ * deflaters and inflaters from a small shared pool for each message.
+ * <p>
+ * Messages smaller than the threshold are sent uncompressed.
+ */
+public class WebSocketCompression {
+    /**
+     * Default size, in bytes, below which messages are not compressed.
+     */
+    public static final int DEFAULT_THRESHOLD = 64;
+
+    /**
+     * Default number of connections granted context takeover.
+     */
+    public static final int DEFAULT_MAX_CONTEXTS = 64;
+
+    private final int level;
+    private final int threshold;
+    private final int maxContexts;
+    private final Semaphore contexts;
+    private final Queue<Deflater> deflaters;
+    private final Queue<Inflater> inflaters;
+
+    /**
+     * Initialize the object with default settings.
+     */
+    public WebSocketCompression() {
+        this(Deflater.DEFAULT_COMPRESSION,
+             DEFAULT_THRESHOLD,
+             DEFAULT_MAX_CONTEXTS);
+    }
+
+    /**
+     * Initialize the object.
+     *
+     * @param level       Deflate compression level, 0-9, or -1 for the
+     *                    default level
+     * @param threshold   Size, in bytes, below which messages are not
+     *                    compressed
+     * @param maxContexts Maximum number of connections granted context
+     *                    takeover; 0 disables context takeover
+     */
+    public WebSocketCompression(int level, int threshold, int maxContexts) {
+        if (level < Deflater.DEFAULT_COMPRESSION ||
+                level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(
+                    "Compression level must be between -1 and 9.");
+        }
+
+        if (threshold < 0 || maxContexts < 0) {
+            throw new IllegalArgumentException(
+                    "Compression settings must not be negative.");
+        }
+
+        this.level = level;
+        this.threshold = threshold;
+        this.maxContexts = maxContexts;
+        this.contexts = new Semaphore(maxContexts);
+
+        int poolSize = Runtime.getRuntime().availableProcessors();
+        this.deflaters = new ArrayBlockingQueue<>(poolSize);
+        this.inflaters = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    /**
+     * Get the compression level.
+     *
+     * @return The level.
+     */
+    public int getLevel() {
+        return this.level;
+    }
+
+    /**
+     * Get the size below which messages are not compressed.
+     *
+     * @return The threshold in bytes.
+     */
+    public int getThreshold() {
+        return this.threshold;
+    }
+
+    /**
+     * Get the maximum number of connections granted context takeover.
+     *
+     * @return The number of connections.
+     */
+    public int getMaxContexts() {
+        return this.maxContexts;
+    }
+
+    /**
+     * Get the number of connections currently holding context takeover.
+     *
+     * @return The number of connections.
+     */
+    public int getActiveContexts() {
+        return this.maxContexts - this.contexts.availablePermits();
+    }
+
+    /**
+     * Try to grant context takeover to a connection.
+     *
+     * @return Whether the connection may keep its own compression context.
+     */
+    boolean acquireContext() {
+        return this.contexts.tryAcquire();
+    }
+
+    /**
+     * Give back the context takeover granted to a connection.
+     */
+    void releaseContext() {
+        this.contexts.release();
+    }
+
+    /**
+     * Create a deflater for a connection with context takeover.
+     *
+     * @return The deflater.
+     */
+    Deflater newDeflater() {
+        return new Deflater(this.level, true);
+    }
+
+    /**
+     * Borrow a pooled deflater for a single message.
+     *
+     * @return The deflater.
+     */
+    Deflater borrowDeflater() {
+        Deflater deflater = this.deflaters.poll();
+        return deflater == null ? this.newDeflater() : deflater;
+    }
+
+    /**
+     * Return a borrowed deflater to the pool.
+     *
+     * @param deflater The deflater
+     */
+    void returnDeflater(Deflater deflater) {
+        deflater.reset();
+        if (!this.deflaters.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Borrow a pooled inflater for a single message.
+     *
+     * @return The inflater.
+     */
+    Inflater borrowInflater() {
+        Inflater inflater = this.inflaters.poll();
+        return inflater == null ? new Inflater(true) : inflater;
+    }
+
+    /**
+     * Return a borrowed inflater to the pool.
+     *
+     * @param inflater The inflater
+     */
+    void returnInflater(Inflater inflater) {
+        inflater.reset();
+        if (!this.inflaters.offer(inflater)) {
+            inflater.end();
+        }
+    }
+}
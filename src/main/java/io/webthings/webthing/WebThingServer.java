@@ -6,16 +6,38 @@ package io.webthings.webthing;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 import javax.jmdns.JmDNS;
 import javax.jmdns.ServiceInfo;
@@ -24,6 +46,7 @@ import javax.net.ssl.SSLServerSocketFactory;
 import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.NanoWSD;
 import fi.iki.elonen.router.RouterNanoHTTPD;
+import io.webthings.webthing.errors.ActionError;
 import io.webthings.webthing.errors.PropertyError;
 
 /**
@@ -32,15 +55,81 @@ import io.webthings.webthing.errors.PropertyError;
 public class WebThingServer extends RouterNanoHTTPD {
     private static final int SOCKET_READ_TIMEOUT = 30 * 1000;
     private static final int WEBSOCKET_PING_INTERVAL = 20 * 1000;
+    private static final int BODY_CACHE_SIZE = 64;
+    private static final long MDNS_RETRY_MIN_MILLIS = 1000;
+    private static final long MDNS_RETRY_MAX_MILLIS = 60 * 1000;
+    private static final long NETWORK_CHECK_INTERVAL_MILLIS = 30 * 1000;
+    private static final long DRAIN_POLL_MILLIS = 10;
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final int MAX_QUEUED_MESSAGES = 1024;
+    private static final long MAX_BATCH_INTERVAL = 10 * 1000;
+    private static final ScheduledExecutorService SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "webthing-websocket");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final AtomicInteger WRITER_THREADS = new AtomicInteger();
+    private static final ExecutorService WRITERS =
+            Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable,
+                                           "webthing-websocket-writer-" +
+                                                   WRITER_THREADS.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final ThreadLocal<Class<?>> HANDLER = new ThreadLocal<>();
+    private static final Map<RequestKind, RequestMetrics> REQUEST_METRICS =
+            new ConcurrentHashMap<>();
+    private static final Metrics.Counter RATE_LIMITED_HTTP =
+            Metrics.getDefault()
+                   .counter("webthing_rate_limited_total",
+                            "Writes rejected by the rate limit.",
+                            "transport",
+                            "http");
+    private static final Metrics.Counter RATE_LIMITED_WEBSOCKET =
+            Metrics.getDefault()
+                   .counter("webthing_rate_limited_total",
+                            "Writes rejected by the rate limit.",
+                            "transport",
+                            "websocket");
+    private static final Metrics.Counter MDNS_FAILURES =
+            Metrics.getDefault()
+                   .counter("webthing_mdns_registration_failures_total",
+                            "Failed attempts to advertise the server over mDNS.");
+    private static final Metrics.Counter NETWORK_CHANGES =
+            Metrics.getDefault()
+                   .counter("webthing_network_address_changes_total",
+                            "Changes of the network addresses the server is advertised on.");
+    private static final Metrics.Gauge CONNECTIONS =
+            Metrics.getDefault()
+                   .gauge("webthing_http_connections",
+                          "Open HTTP connections, including websockets.");
     private final int port;
     private final ThingsType things;
     private final String name;
     private String hostname;
     private final boolean disableHostValidation;
     private final String basePath;
-    private final List<String> hosts;
+    private final AllowedHosts hosts;
     private final boolean isTls;
-    private JmDNS jmdns;
+    private volatile WebSocketCompression webSocketCompression;
+    private volatile ResponseCompression responseCompression;
+    private final Map<String, CachedBody> bodyCache;
+    private volatile boolean metricsEnabled;
+    private final ThingRoutePrioritizer routes;
+    private int metricsRouteIndex;
+    private UriResource metricsRoute;
+    private volatile RateLimit rateLimit;
+    private final CompletableFuture<Void> ready;
+    private final CompletableFuture<Void> advertised;
+    private volatile long networkCheckIntervalMillis;
+    private volatile ScheduledExecutorService network;
+    private volatile JmDNS jmdns;
+    private long advertisement;
+    private volatile ServerSocket serverSocket;
+    private volatile boolean draining;
+    private final AtomicInteger inFlight;
 
     /**
      * Initialize the WebThingServer on port 80.
@@ -179,20 +268,23 @@ public class WebThingServer extends RouterNanoHTTPD {
         this.hostname = hostname;
         this.basePath = basePath.replaceAll("/$", "");
         this.disableHostValidation = disableHostValidation;
+        this.webSocketCompression = new WebSocketCompression();
+        this.responseCompression = new ResponseCompression();
+        this.bodyCache = new ConcurrentHashMap<>();
 
-        this.hosts = new ArrayList<>();
-        this.hosts.add("localhost");
-        this.hosts.add(String.format("localhost:%d", this.port));
+        this.ready = new CompletableFuture<>();
+        this.advertised = new CompletableFuture<>();
 
-        for (String address : Utils.getAddresses()) {
-            this.hosts.add(address);
-            this.hosts.add(String.format("%s:%d", address, this.port));
-        }
+        this.networkCheckIntervalMillis = NETWORK_CHECK_INTERVAL_MILLIS;
+        this.inFlight = new AtomicInteger();
+
+        // The interface addresses are added when the server starts
+        this.hosts = new AllowedHosts(this.port);
+        this.hosts.addName("localhost");
 
         if (this.hostname != null) {
             this.hostname = this.hostname.toLowerCase();
-            this.hosts.add(this.hostname);
-            this.hosts.add(String.format("%s:%d", this.hostname, this.port));
+            this.hosts.addName(this.hostname);
         }
 
         if (this.isTls) {
@@ -200,7 +292,17 @@ public class WebThingServer extends RouterNanoHTTPD {
                              sslOptions.getProtocols());
         }
 
-        this.setRoutePrioritizer(new InsertionOrderRoutePrioritizer());
+        // Keep the listening socket, so that a drain can stop accepting
+        // connections without closing the open ones
+        ServerSocketFactory serverSocketFactory = this.getServerSocketFactory();
+        this.setServerSocketFactory(() -> {
+            ServerSocket socket = serverSocketFactory.create();
+            this.serverSocket = socket;
+            return socket;
+        });
+
+        this.routes = new ThingRoutePrioritizer();
+        this.setRoutePrioritizer(this.routes);
 
         if (additionalRoutes != null && additionalRoutes.size() > 0) {
             additionalRoutes.forEach(o -> addRoute(this.basePath + o.url,
@@ -208,6 +310,10 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                    o.parameters));
         }
 
+        // /metrics is inserted here once enabled, after the additional
+        // routes and before the thing routes which would match it
+        this.metricsRouteIndex = this.routes.getPrioritizedRoutes().size();
+
         if (MultipleThings.class.isInstance(things)) {
             List<Thing> list = things.getThings();
             for (int i = 0; i < list.size(); ++i) {
@@ -216,161 +322,791 @@ public class WebThingServer extends RouterNanoHTTPD {
             }
 
             // These are matched in the order they are added.
-            addRoute(this.basePath + "/:thingId/properties/:propertyName",
-                     PropertyHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
-            addRoute(this.basePath + "/:thingId/properties",
-                     PropertiesHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
-            addRoute(this.basePath + "/:thingId/actions/:actionName/:actionId",
-                     ActionIDHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
-            addRoute(this.basePath + "/:thingId/actions/:actionName",
-                     ActionHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
-            addRoute(this.basePath + "/:thingId/actions",
-                     ActionsHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
-            addRoute(this.basePath + "/:thingId/events/:eventName",
-                     EventHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
-            addRoute(this.basePath + "/:thingId/events",
-                     EventsHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
-            addRoute(this.basePath + "/:thingId",
-                     ThingHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
-            addRoute(this.basePath + "/",
-                     ThingsHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
+            this.addThingRoute(this.basePath + "/:thingId/properties/:propertyName",
+                               PropertyHandler.class);
+            this.addThingRoute(this.basePath + "/:thingId/properties",
+                               PropertiesHandler.class);
+            this.addThingRoute(this.basePath + "/:thingId/actions/:actionName/:actionId",
+                               ActionIDHandler.class);
+            this.addThingRoute(this.basePath + "/:thingId/actions/:actionName",
+                               ActionHandler.class);
+            this.addThingRoute(this.basePath + "/:thingId/actions",
+                               ActionsHandler.class);
+            this.addThingRoute(this.basePath + "/:thingId/events/:eventName",
+                               EventHandler.class);
+            this.addThingRoute(this.basePath + "/:thingId/events",
+                               EventsHandler.class);
+            this.addThingRoute(this.basePath + "/:thingId",
+                               ThingHandler.class);
+            this.addThingRoute(this.basePath + "/",
+                               ThingsHandler.class);
         } else {
             things.getThing(0).setHrefPrefix(this.basePath);
 
             // These are matched in the order they are added.
-            addRoute(this.basePath + "/properties/:propertyName",
-                     PropertyHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
-            addRoute(this.basePath + "/properties",
-                     PropertiesHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
-            addRoute(this.basePath + "/actions/:actionName/:actionId",
-                     ActionIDHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
-            addRoute(this.basePath + "/actions/:actionName",
-                     ActionHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
-            addRoute(this.basePath + "/actions",
-                     ActionsHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
-            addRoute(this.basePath + "/events/:eventName",
-                     EventHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
-            addRoute(this.basePath + "/events",
-                     EventsHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
-            addRoute(this.basePath + "/",
-                     ThingHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls,
-                     this.disableHostValidation);
+            this.addThingRoute(this.basePath + "/properties/:propertyName",
+                               PropertyHandler.class);
+            this.addThingRoute(this.basePath + "/properties",
+                               PropertiesHandler.class);
+            this.addThingRoute(this.basePath + "/actions/:actionName/:actionId",
+                               ActionIDHandler.class);
+            this.addThingRoute(this.basePath + "/actions/:actionName",
+                               ActionHandler.class);
+            this.addThingRoute(this.basePath + "/actions",
+                               ActionsHandler.class);
+            this.addThingRoute(this.basePath + "/events/:eventName",
+                               EventHandler.class);
+            this.addThingRoute(this.basePath + "/events",
+                               EventsHandler.class);
+            this.addThingRoute(this.basePath + "/",
+                               ThingHandler.class);
         }
 
         setNotFoundHandler(Error404UriHandler.class);
     }
 
+    /**
+     * Add a route served by one of the thing handlers, passing them the
+     * server state they need.
+     *
+     * @param url     The URL pattern
+     * @param handler The handler class
+     */
+    private void addThingRoute(String url, Class<?> handler) {
+        addRoute(url,
+                 handler,
+                 this.things,
+                 this.hosts,
+                 this.isTls,
+                 this.disableHostValidation,
+                 this);
+    }
+
+    /**
+     * Get the websocket compression settings.
+     *
+     * @return The settings, or null if compression is disabled.
+     */
+    public WebSocketCompression getWebSocketCompression() {
+        return this.webSocketCompression;
+    }
+
+    /**
+     * Set the websocket compression settings. This applies to websockets
+     * opened afterwards.
+     *
+     * @param compression The settings, or null to disable compression
+     */
+    public void setWebSocketCompression(WebSocketCompression compression) {
+        this.webSocketCompression = compression;
+    }
+
+    /**
+     * Get the HTTP response compression settings.
+     *
+     * @return The settings, or null if compression is disabled.
+     */
+    public ResponseCompression getResponseCompression() {
+        return this.responseCompression;
+    }
+
+    /**
+     * Set the HTTP response compression settings.
+     *
+     * @param compression The settings, or null to disable compression
+     */
+    public void setResponseCompression(ResponseCompression compression) {
+        this.responseCompression = compression;
+        this.bodyCache.clear();
+    }
+
+    /**
+     * Get whether metrics are exported at /metrics.
+     *
+     * @return Whether metrics are exported.
+     */
+    public boolean isMetricsEnabled() {
+        return this.metricsEnabled;
+    }
+
+    /**
+     * Set whether metrics from {@link Metrics#getDefault()} are exported at
+     * /metrics, in the Prometheus text format. They are not by default.
+     *
+     * @param enabled Whether metrics are exported
+     */
+    public synchronized void setMetricsEnabled(boolean enabled) {
+        this.metricsEnabled = enabled;
+        if (enabled && this.metricsRoute == null) {
+            this.metricsRoute =
+                    this.routes.insertRoute(this.metricsRouteIndex,
+                                            this.basePath + "/metrics",
+                                            MetricsHandler.class,
+                                            this.things,
+                                            this.hosts,
+                                            this.isTls,
+                                            this.disableHostValidation,
+                                            this);
+        } else if (!enabled && this.metricsRoute != null) {
+            this.routes.removeRoute(this.metricsRoute);
+            this.metricsRoute = null;
+        }
+    }
+
+    /**
+     * Get the limits on the rate of property writes and action requests.
+     *
+     * @return The limits, or null if writes are not limited.
+     */
+    public RateLimit getRateLimit() {
+        return this.rateLimit;
+    }
+
+    /**
+     * Set the limits on the rate of property writes and action requests, over
+     * HTTP and websockets. Writes are not limited by default. This applies to
+     * websockets opened afterwards.
+     *
+     * @param rateLimit The limits, or null to not limit writes
+     */
+    public void setRateLimit(RateLimit rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * Serve a request, recording its count and duration by handler, method
+     * and status.
+     *
+     * @param session The HTTP session
+     * @return The response.
+     */
+    @Override
+    public Response serve(IHTTPSession session) {
+        HANDLER.remove();
+        long start = System.nanoTime();
+        Response response;
+        this.inFlight.incrementAndGet();
+        try {
+            if (this.draining) {
+                response = newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE,
+                                                  NanoHTTPD.MIME_PLAINTEXT,
+                                                  "Server is shutting down");
+                response.addHeader("Connection", "close");
+            } else {
+                response = super.serve(session);
+            }
+        } finally {
+            this.inFlight.decrementAndGet();
+        }
+        long duration = System.nanoTime() - start;
+
+        RequestMetrics metrics = REQUEST_METRICS.computeIfAbsent(
+                new RequestKind(HANDLER.get(),
+                                session.getMethod(),
+                                response == null ?
+                                0 :
+                                response.getStatus().getRequestStatus()),
+                RequestMetrics::new);
+        metrics.requests.increment();
+        metrics.duration.observeNanos(duration);
+        return response;
+    }
+
+    /**
+     * Create the handler for an accepted connection, with Nagle's algorithm
+     * disabled.
+     * <p>
+     * NanoHTTPD writes the headers and body of a response separately, so with
+     * Nagle's algorithm the body waits for the client's delayed ACK of the
+     * headers, which stalls every request after the first on a kept-alive
+     * connection by about 40ms.
+     *
+     * @param socket      The accepted socket
+     * @param inputStream The socket's input stream
+     * @return The handler.
+     */
+    @Override
+    protected ClientHandler createClientHandler(Socket socket,
+                                                InputStream inputStream) {
+        try {
+            socket.setTcpNoDelay(true);
+        } catch (SocketException e) {
+            // The connection is still usable, just slower
+        }
+
+        return new ClientHandler(inputStream, socket) {
+            @Override
+            public void run() {
+                CONNECTIONS.increment();
+                try {
+                    super.run();
+                } finally {
+                    CONNECTIONS.decrement();
+                }
+            }
+        };
+    }
+
+    /**
+     * Leave the compression of the thing handlers' responses to them.
+     * <p>
+     * NanoHTTPD would otherwise gzip every JSON response on the fly,
+     * regardless of its size.
+     *
+     * @param response The response
+     * @return Whether NanoHTTPD should gzip the response.
+     */
+    @Override
+    protected boolean useGzipWhenAccepted(Response response) {
+        return response.getHeader("Vary") == null &&
+                super.useGzipWhenAccepted(response);
+    }
+
+    /**
+     * Create a JSON response, compressed as accepted by the client.
+     *
+     * @param session The HTTP session
+     * @param body    The body
+     * @return The response.
+     */
+    Response jsonResponse(IHTTPSession session, String body) {
+        return this.encodedResponse(session,
+                                    Response.Status.OK,
+                                    Codec.JSON,
+                                    body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Create a response with an encoded body, compressed as accepted by the
+     * client.
+     * <p>
+     * The response varies with the Accept header, which the codec was
+     * negotiated with.
+     *
+     * @param session The HTTP session
+     * @param status  The response status
+     * @param codec   The codec the body is encoded with
+     * @param body    The body
+     * @return The response.
+     */
+    Response encodedResponse(IHTTPSession session,
+                             Response.Status status,
+                             Codec codec,
+                             byte[] body) {
+        ResponseCompression compression = this.responseCompression;
+        String encoding = selectEncoding(compression, session, body.length);
+        if (encoding != null) {
+            body = compression.compress(body, encoding);
+        }
+
+        return encodedResponse(status,
+                               codec.getMediaType(),
+                               body,
+                               encoding,
+                               "Accept, Accept-Encoding");
+    }
+
+    /**
+     * Create a JSON response for a body that only changes with its version,
+     * compressed as accepted by the client.
+     * <p>
+     * The body is serialized and compressed once per version and encoding.
+     *
+     * @param session The HTTP session
+     * @param key     Key identifying the body
+     * @param version Version of the body
+     * @param body    Supplier of the body
+     * @return The response.
+     */
+    Response cachedJsonResponse(IHTTPSession session,
+                                String key,
+                                long version,
+                                Supplier<String> body) {
+        CachedBody cached = this.bodyCache.get(key);
+        if (cached == null || cached.version != version) {
+            if (this.bodyCache.size() >= BODY_CACHE_SIZE) {
+                this.bodyCache.clear();
+            }
+
+            cached = new CachedBody(version,
+                                    body.get().getBytes(StandardCharsets.UTF_8));
+            this.bodyCache.put(key, cached);
+        }
+
+        ResponseCompression compression = this.responseCompression;
+        String encoding =
+                selectEncoding(compression, session, cached.identity.length);
+        return encodedResponse(Response.Status.OK,
+                               Codec.JSON.getMediaType(),
+                               cached.encode(compression, encoding),
+                               encoding,
+                               "Accept-Encoding");
+    }
+
+    /**
+     * Select the content coding for a response body.
+     *
+     * @param compression The compression settings, or null
+     * @param session     The HTTP session
+     * @param length      Size of the uncompressed body
+     * @return The content coding, or null to send the body uncompressed.
+     */
+    private static String selectEncoding(ResponseCompression compression,
+                                         IHTTPSession session,
+                                         int length) {
+        if (compression == null) {
+            return null;
+        }
+
+        return compression.selectEncoding(session.getHeaders()
+                                                 .get("accept-encoding"),
+                                          length);
+    }
+
+    /**
+     * Create a response from an encoded body.
+     *
+     * @param status   The response status
+     * @param mimeType The media type of the body
+     * @param body     The body
+     * @param encoding The content coding of the body, or null
+     * @param vary     The request headers the response varies with
+     * @return The response.
+     */
+    private static Response encodedResponse(Response.Status status,
+                                            String mimeType,
+                                            byte[] body,
+                                            String encoding,
+                                            String vary) {
+        Response response =
+                NanoHTTPD.newFixedLengthResponse(status,
+                                                 mimeType,
+                                                 new ByteArrayInputStream(body),
+                                                 body.length);
+        if (encoding != null) {
+            response.addHeader("Content-Encoding", encoding);
+        }
+        response.addHeader("Vary", vary);
+        return response;
+    }
+
+    /**
+     * Get the interval at which network addresses are checked for changes.
+     *
+     * @return The interval, in milliseconds, or 0 if they are not checked.
+     */
+    public long getNetworkCheckInterval() {
+        return this.networkCheckIntervalMillis;
+    }
+
+    /**
+     * Set the interval at which network addresses are checked for changes,
+     * e.g. after a new DHCP lease. When they change, requests are accepted
+     * for the new addresses and the server is advertised over mDNS again. The
+     * default is 30 seconds. This applies when the server is started.
+     *
+     * @param intervalMillis The interval, in milliseconds, or 0 to only
+     *                       check when the server starts
+     * @throws IllegalArgumentException If the interval is negative.
+     */
+    public void setNetworkCheckInterval(long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException(
+                    "Network check interval must not be negative");
+        }
+
+        this.networkCheckIntervalMillis = intervalMillis;
+    }
+
     /**
      * Start listening for incoming connections.
+     * <p>
+     * The port is open, and requests for every network address are
+     * accepted, when this returns. The server is then advertised over mDNS
+     * in the background, retrying with backoff until it succeeds; see
+     * {@link #whenAdvertised()}. The interfaces are checked again at the
+     * {@link #setNetworkCheckInterval(long) network check interval}.
      *
      * @param daemon Whether or not to daemonize the server
      * @throws IOException on failure to listen on port
      */
     public void start(boolean daemon) throws IOException {
-        this.jmdns = JmDNS.create(hostname == null ?
-                                  InetAddress.getLocalHost() :
-                                  InetAddress.getByName(hostname));
+        for (Thing thing : this.things.getThings()) {
+            Metrics.getDefault()
+                   .gauge("webthing_websocket_subscribers",
+                          "Websockets subscribed to a thing.",
+                          thing::getSubscriberCount,
+                          "thing",
+                          thing.getId());
+        }
 
-        String systemHostname = this.jmdns.getHostName();
-        if (systemHostname.endsWith(".")) {
-            systemHostname =
-                    systemHostname.substring(0, systemHostname.length() - 1);
+        // Allow the addresses before the port opens, so that no request is
+        // refused for its Host header
+        this.hosts.setAddresses(Utils.getAddresses());
+        super.start(WebThingServer.SOCKET_READ_TIMEOUT, daemon);
+        this.ready.complete(null);
+
+        ScheduledThreadPoolExecutor network =
+                new ScheduledThreadPoolExecutor(1, runnable -> {
+                    Thread thread = new Thread(runnable, "webthing-network");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        network.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.network = network;
+        network.execute(() -> this.advertise(network,
+                                             ++this.advertisement,
+                                             MDNS_RETRY_MIN_MILLIS));
+
+        long interval = this.networkCheckIntervalMillis;
+        if (interval > 0) {
+            network.scheduleWithFixedDelay(() -> this.checkNetwork(network),
+                                           interval,
+                                           interval,
+                                           TimeUnit.MILLISECONDS);
         }
-        this.hosts.add(systemHostname);
-        this.hosts.add(String.format("%s:%d", systemHostname, this.port));
+    }
 
-        Map txt = new HashMap();
-        txt.put("path", "/");
+    /**
+     * Get a future which completes once the server accepts requests for all
+     * of its network addresses, i.e. once {@link #start(boolean)} returns.
+     *
+     * @return The future.
+     */
+    public CompletableFuture<Void> whenReady() {
+        return this.ready;
+    }
 
-        if (this.isTls) {
-            txt.put("tls", "1");
+    /**
+     * Get a future which completes once the server is advertised over mDNS.
+     *
+     * @return The future.
+     */
+    public CompletableFuture<Void> whenAdvertised() {
+        return this.advertised;
+    }
+
+    /**
+     * Refresh the allowed hosts from the network addresses and, if they
+     * changed, advertise the server over mDNS again on the new addresses.
+     *
+     * @param network The executor this runs on
+     */
+    private void checkNetwork(ScheduledExecutorService network) {
+        if (!this.hosts.setAddresses(Utils.getAddresses())) {
+            return;
         }
 
-        ServiceInfo serviceInfo = ServiceInfo.create("_webthing._tcp.local",
-                                                     this.name,
-                                                     null,
-                                                     this.port,
-                                                     0,
-                                                     0,
-                                                     txt);
-        this.jmdns.registerService(serviceInfo);
+        NETWORK_CHANGES.increment();
+        this.closeJmDNS();
+        this.advertise(network, ++this.advertisement, MDNS_RETRY_MIN_MILLIS);
+    }
 
-        super.start(WebThingServer.SOCKET_READ_TIMEOUT, daemon);
+    /**
+     * Advertise the server over mDNS, scheduling another attempt if it
+     * fails.
+     *
+     * @param network       The executor to retry on
+     * @param advertisement Number of this advertisement; retries stop once
+     *                      a newer one starts
+     * @param delay         Time to wait before retrying, in milliseconds
+     */
+    private void advertise(ScheduledExecutorService network,
+                           long advertisement,
+                           long delay) {
+        if (advertisement != this.advertisement) {
+            return;
+        }
+
+        try {
+            if (this.jmdns == null) {
+                this.jmdns = JmDNS.create(hostname == null ?
+                                          InetAddress.getLocalHost() :
+                                          InetAddress.getByName(hostname));
+
+                String systemHostname = this.jmdns.getHostName();
+                if (systemHostname.endsWith(".")) {
+                    systemHostname =
+                            systemHostname.substring(0,
+                                                     systemHostname.length() - 1);
+                }
+                this.hosts.addName(systemHostname.toLowerCase());
+            }
+
+            Map txt = new HashMap();
+            txt.put("path", "/");
+
+            if (this.isTls) {
+                txt.put("tls", "1");
+            }
+
+            ServiceInfo serviceInfo =
+                    ServiceInfo.create("_webthing._tcp.local",
+                                       this.name,
+                                       null,
+                                       this.port,
+                                       0,
+                                       0,
+                                       txt);
+            this.jmdns.registerService(serviceInfo);
+            this.advertised.complete(null);
+        } catch (IOException | RuntimeException e) {
+            if (network.isShutdown()) {
+                return;
+            }
+
+            MDNS_FAILURES.increment();
+            network.schedule(() -> this.advertise(network,
+                                                  advertisement,
+                                                  Math.min(delay * 2,
+                                                           MDNS_RETRY_MAX_MILLIS)),
+                             delay,
+                             TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Close JmDNS, which unregisters the service, if it was created.
+     */
+    private void closeJmDNS() {
+        JmDNS jmdns = this.jmdns;
+        if (jmdns != null) {
+            try {
+                jmdns.close();
+            } catch (IOException e) {
+                // pass
+            }
+            this.jmdns = null;
+        }
+    }
+
+    /**
+     * Stop the server gracefully.
+     * <p>
+     * The server stops advertising itself and accepting connections, and
+     * answers new requests and websocket messages with 503 Service
+     * Unavailable. In-flight requests and actions are then given until the
+     * deadline to finish, while websockets still receive their notifications.
+     * Actions still waiting or running at the deadline are cancelled.
+     * Websockets are then sent a close frame once the messages queued for
+     * them are written, and the server stops.
+     * <p>
+     * A tenth of the timeout, up to a second, is kept for websockets to
+     * acknowledge the close, so that they are not abandoned when the actions
+     * take the whole time.
+     *
+     * @param timeout Time to wait for work to finish
+     * @return What was abandoned at the deadline.
+     */
+    public DrainReport stop(Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        long workDeadline = deadline - Math.min(timeout.toNanos() / 10,
+                                                TimeUnit.SECONDS.toNanos(1));
+        this.draining = true;
+
+        // Stop advertising while draining, so that clients look elsewhere
+        ScheduledExecutorService network = this.network;
+        if (network != null && !network.isShutdown()) {
+            network.execute(() -> {
+                ++this.advertisement;
+                this.closeJmDNS();
+            });
+            network.shutdown();
+        }
+
+        ServerSocket serverSocket = this.serverSocket;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // pass
+            }
+        }
+
+        List<Thing> things = this.things.getThings();
+        awaitDeadline(workDeadline, () -> {
+            if (this.inFlight.get() != 0) {
+                return false;
+            }
+
+            for (Thing thing : things) {
+                if (!thing.getActiveActions().isEmpty()) {
+                    return false;
+                }
+            }
+
+            return true;
+        });
+
+        int abandonedRequests = this.inFlight.get();
+        List<Action> abandonedActions = new ArrayList<>();
+        for (Thing thing : things) {
+            for (Action action : thing.getActiveActions()) {
+                if (action.abort("cancelled")) {
+                    abandonedActions.add(action);
+                }
+            }
+        }
+
+        for (Thing thing : things) {
+            for (ThingHandler.ThingWebSocket ws : thing.getSubscribers()) {
+                ws.flush();
+                ws.awaitWritten(deadline);
+                try {
+                    ws.close(NanoWSD.WebSocketFrame.CloseCode.GoingAway,
+                             "Server shutting down",
+                             false);
+                } catch (IOException e) {
+                    // The connection is closed below
+                }
+            }
+        }
+
+        awaitDeadline(deadline, () -> {
+            for (Thing thing : things) {
+                if (thing.getSubscriberCount() != 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        });
+
+        int unclosedWebSockets = 0;
+        for (Thing thing : things) {
+            unclosedWebSockets += thing.getSubscriberCount();
+        }
+
+        this.stop();
+        return new DrainReport(abandonedRequests,
+                               abandonedActions,
+                               unclosedWebSockets);
+    }
+
+    /**
+     * Wait until a condition holds or a deadline passes.
+     *
+     * @param deadline The deadline, as given by {@link System#nanoTime()}
+     * @param done     The condition
+     */
+    private static void awaitDeadline(long deadline, BooleanSupplier done) {
+        while (!done.getAsBoolean()) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline -
+                                                                   System.nanoTime());
+            if (remaining <= 0) {
+                return;
+            }
+
+            try {
+                Thread.sleep(Math.min(remaining, DRAIN_POLL_MILLIS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
     }
 
     /**
-     * Stop listening.
+     * Stop listening, and stop advertising the server. Open connections,
+     * including websockets, are closed at once; see {@link #stop(Duration)}
+     * to let them finish.
      */
     public void stop() {
-        this.jmdns.unregisterAllServices();
+        ScheduledExecutorService network = this.network;
+        if (network != null) {
+            network.shutdownNow();
+            try {
+                network.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        this.closeJmDNS();
         super.stop();
+
+        // Stop exporting the things, and let them be collected
+        for (Thing thing : this.things.getThings()) {
+            Metrics.getDefault()
+                   .remove("webthing_websocket_subscribers",
+                           "thing",
+                           thing.getId());
+        }
+    }
+
+    /**
+     * The labels requests are counted by: the handler, method and status.
+     */
+    private static class RequestKind {
+        private final Class<?> handler;
+        private final Method method;
+        private final int status;
+
+        /**
+         * Initialize the object.
+         *
+         * @param handler The handler class, or null if no route matched
+         * @param method  The request method
+         * @param status  The response status, or 0 if there was no response
+         */
+        RequestKind(Class<?> handler, Method method, int status) {
+            this.handler = handler;
+            this.method = method;
+            this.status = status;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof RequestKind)) {
+                return false;
+            }
+
+            RequestKind kind = (RequestKind) other;
+            return this.handler == kind.handler &&
+                    this.method == kind.method &&
+                    this.status == kind.status;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(this.handler) * 31 +
+                    Objects.hashCode(this.method)) * 31 + this.status;
+        }
+    }
+
+    /**
+     * The metrics of one kind of request, looked up once.
+     */
+    private static class RequestMetrics {
+        private final Metrics.Counter requests;
+        private final Metrics.Histogram duration;
+
+        /**
+         * Initialize the object.
+         *
+         * @param kind The kind of request
+         */
+        RequestMetrics(RequestKind kind) {
+            String[] labels = {
+                    "handler",
+                    kind.handler == null ?
+                    "none" :
+                    kind.handler.getSimpleName(),
+                    "method",
+                    kind.method == null ? "" : kind.method.name(),
+                    "status",
+                    kind.status == 0 ? "" : Integer.toString(kind.status)
+            };
+            Metrics metrics = Metrics.getDefault();
+            this.requests = metrics.counter("webthing_http_requests_total",
+                                            "HTTP requests served.",
+                                            labels);
+            this.duration = metrics.histogram(
+                    "webthing_http_request_duration_seconds",
+                    "Time to handle HTTP requests, excluding sending the " +
+                            "body.",
+                    labels);
+        }
     }
 
     interface ThingsType {
@@ -398,25 +1134,48 @@ public class WebThingServer extends RouterNanoHTTPD {
     }
 
     /**
-     * Thread to perform an action.
+     * A serialized response body, with its compressed forms.
      */
-    private static class ActionRunner extends Thread {
-        private final Action action;
+    private static class CachedBody {
+        private final long version;
+        private final byte[] identity;
+        private volatile byte[] gzip;
+        private volatile byte[] deflate;
 
         /**
          * Initialize the object.
          *
-         * @param action The action to perform
+         * @param version  Version of the body
+         * @param identity The uncompressed body
          */
-        public ActionRunner(Action action) {
-            this.action = action;
+        CachedBody(long version, byte[] identity) {
+            this.version = version;
+            this.identity = identity;
         }
 
         /**
-         * Perform the action.
+         * Get the body in a content coding, compressing it on first use.
+         *
+         * @param compression The compression settings
+         * @param encoding    The content coding, or null
+         * @return The encoded body.
          */
-        public void run() {
-            this.action.start();
+        byte[] encode(ResponseCompression compression, String encoding) {
+            if (ResponseCompression.GZIP.equals(encoding)) {
+                if (this.gzip == null) {
+                    this.gzip = compression.compress(this.identity, encoding);
+                }
+                return this.gzip;
+            }
+
+            if (ResponseCompression.DEFLATE.equals(encoding)) {
+                if (this.deflate == null) {
+                    this.deflate = compression.compress(this.identity, encoding);
+                }
+                return this.deflate;
+            }
+
+            return this.identity;
         }
     }
 
@@ -480,6 +1239,11 @@ public class WebThingServer extends RouterNanoHTTPD {
      * Allowed.
      */
     public static class BaseHandler implements UriResponder {
+        {
+            // Handlers are created per request, on the thread serving it
+            HANDLER.set(this.getClass());
+        }
+
         /**
          * Add necessary CORS headers to response.
          *
@@ -489,9 +1253,44 @@ public class WebThingServer extends RouterNanoHTTPD {
         public Response corsResponse(Response response) {
             response.addHeader("Access-Control-Allow-Origin", "*");
             response.addHeader("Access-Control-Allow-Headers",
-                               "Origin, X-Requested-With, Content-Type, Accept");
+                               "Origin, X-Requested-With, Content-Type, Accept, Idempotency-Key");
             response.addHeader("Access-Control-Allow-Methods",
-                               "GET, HEAD, PUT, POST, DELETE");
+                               "GET, HEAD, PUT, PATCH, POST, DELETE");
+            response.addHeader("Access-Control-Expose-Headers", "Retry-After");
+            return response;
+        }
+
+        /**
+         * Admit a write from the client of a request, as the server's rate
+         * limit allows.
+         *
+         * @param uriResource The URI resource that was matched
+         * @param session     The HTTP session
+         * @param thing       The thing written to
+         * @return null if the write is admitted, or else a 429 Too Many
+         * Requests response with a Retry-After header.
+         */
+        public Response checkRateLimit(UriResource uriResource,
+                                       IHTTPSession session,
+                                       Thing thing) {
+            WebThingServer server = this.getServer(uriResource);
+            RateLimit rateLimit = server == null ? null : server.rateLimit;
+            if (rateLimit == null) {
+                return null;
+            }
+
+            long wait = rateLimit.admit(session.getRemoteIpAddress(), thing);
+            if (wait == 0) {
+                return null;
+            }
+
+            RATE_LIMITED_HTTP.increment();
+            Response response =
+                    NanoHTTPD.newFixedLengthResponse(Response.Status.TOO_MANY_REQUESTS,
+                                                     NanoHTTPD.MIME_PLAINTEXT,
+                                                     "Too many requests");
+            response.addHeader("Retry-After",
+                               Long.toString(RateLimit.retryAfterSeconds(wait)));
             return response;
         }
 
@@ -600,23 +1399,53 @@ public class WebThingServer extends RouterNanoHTTPD {
         }
 
         /**
-         * Parse a JSON body.
+         * Parse a JSON or CBOR body, as given by the Content-Type header.
          *
          * @param session The HTTP session
-         * @return The parsed JSON body as a JSONObject, or null on error.
+         * @return The parsed body as a JSONObject, or null on error.
          */
         public JSONObject parseBody(IHTTPSession session) {
-            int contentLength = Integer.parseInt(session.getHeaders()
-                                                        .get("content-length"));
+            Map<String, String> headers = session.getHeaders();
+            int contentLength = Integer.parseInt(headers.get("content-length"));
             byte[] buffer = new byte[contentLength];
             try {
-                session.getInputStream().read(buffer, 0, contentLength);
-                return new JSONObject(new String(buffer));
-            } catch (IOException e) {
+                InputStream in = session.getInputStream();
+                int offset = 0;
+                while (offset < contentLength) {
+                    int count = in.read(buffer, offset, contentLength - offset);
+                    if (count < 0) {
+                        return null;
+                    }
+                    offset += count;
+                }
+
+                Object body = Codec.forContentType(headers.get("content-type"))
+                                   .decode(buffer);
+                return body instanceof JSONObject ? (JSONObject) body : null;
+            } catch (IOException | JSONException e) {
                 return null;
             }
         }
 
+        /**
+         * Get the idempotency key of an action request, from the
+         * Idempotency-Key header, or else the idempotencyKey field of the
+         * action's parameters.
+         *
+         * @param session The HTTP session
+         * @param params  The action's parameters
+         * @return The key, or null if the request has none.
+         */
+        public String getIdempotencyKey(IHTTPSession session,
+                                        JSONObject params) {
+            String key = session.getHeaders().get("idempotency-key");
+            if (key == null) {
+                key = params.optString("idempotencyKey", null);
+            }
+
+            return key;
+        }
+
         /**
          * Get the thing this request is for.
          *
@@ -654,7 +1483,8 @@ public class WebThingServer extends RouterNanoHTTPD {
                 return true;
             }
 
-            List<String> hosts = uriResource.initParameter(1, List.class);
+            AllowedHosts hosts =
+                    uriResource.initParameter(1, AllowedHosts.class);
 
             String host = session.getHeaders().get("host");
             return (host != null && hosts.contains(host.toLowerCase()));
@@ -669,6 +1499,179 @@ public class WebThingServer extends RouterNanoHTTPD {
         public boolean isSecure(UriResource uriResource) {
             return uriResource.initParameter(2, Boolean.class);
         }
+
+        /**
+         * Get the server this request was routed by.
+         *
+         * @param uriResource The URI resource that was matched
+         * @return The server, or null if the route was not added by the
+         * server.
+         */
+        public WebThingServer getServer(UriResource uriResource) {
+            return uriResource.initParameter(4, WebThingServer.class);
+        }
+
+        /**
+         * Create a JSON response, compressed as accepted by the client.
+         *
+         * @param uriResource The URI resource that was matched
+         * @param session     The HTTP session
+         * @param body        The body
+         * @return The response.
+         */
+        public Response jsonResponse(UriResource uriResource,
+                                     IHTTPSession session,
+                                     String body) {
+            WebThingServer server = this.getServer(uriResource);
+            if (server == null) {
+                return NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
+                                                        "application/json",
+                                                        body);
+            }
+
+            return server.jsonResponse(session, body);
+        }
+
+        /**
+         * Get the codec to encode the response with, as accepted by the
+         * client.
+         *
+         * @param session The HTTP session
+         * @return The codec.
+         */
+        public Codec getResponseCodec(IHTTPSession session) {
+            return Codec.forAccept(session.getHeaders().get("accept"));
+        }
+
+        /**
+         * Create a response encoded as accepted by the client.
+         *
+         * @param uriResource The URI resource that was matched
+         * @param session     The HTTP session
+         * @param status      The response status
+         * @param body        The body, as org.json values
+         * @return The response.
+         */
+        public Response encodedResponse(UriResource uriResource,
+                                        IHTTPSession session,
+                                        Response.Status status,
+                                        Object body) {
+            return this.encodedResponse(uriResource,
+                                        session,
+                                        status,
+                                        () -> body,
+                                        () -> JSONObject.valueToString(body));
+        }
+
+        /**
+         * Create a response encoded as accepted by the client, for a body
+         * which can be serialized as JSON directly.
+         *
+         * @param uriResource The URI resource that was matched
+         * @param session     The HTTP session
+         * @param status      The response status
+         * @param body        Supplier of the body, as org.json values
+         * @param json        Supplier of the body serialized as JSON, used
+         *                    when the client accepts JSON
+         * @return The response.
+         */
+        public Response encodedResponse(UriResource uriResource,
+                                        IHTTPSession session,
+                                        Response.Status status,
+                                        Supplier<Object> body,
+                                        Supplier<String> json) {
+            Codec codec = this.getResponseCodec(session);
+            byte[] bytes = codec == Codec.JSON ?
+                           codec.encodeJson(json.get()) :
+                           codec.encode(body.get());
+
+            WebThingServer server = this.getServer(uriResource);
+            if (server == null) {
+                return NanoHTTPD.newFixedLengthResponse(status,
+                                                        codec.getMediaType(),
+                                                        new ByteArrayInputStream(
+                                                                bytes),
+                                                        bytes.length);
+            }
+
+            return server.encodedResponse(session, status, codec, bytes);
+        }
+    }
+
+    /**
+     * Routes matched in the order they are added, which can also be inserted
+     * at a position and removed while requests are being routed.
+     */
+    private static class ThingRoutePrioritizer
+            extends InsertionOrderRoutePrioritizer {
+        @Override
+        protected Collection<UriResource> newMappingCollection() {
+            return new CopyOnWriteArrayList<>();
+        }
+
+        /**
+         * Insert a route.
+         *
+         * @param index         Position to insert the route at
+         * @param url           The URL pattern
+         * @param handler       The handler class
+         * @param initParameter Parameters passed to the handler
+         * @return The route.
+         */
+        UriResource insertRoute(int index,
+                                String url,
+                                Class<?> handler,
+                                Object... initParameter) {
+            UriResource route =
+                    new UriResource(url, 100 + index, handler, initParameter);
+            ((List<UriResource>) this.mappings).add(index, route);
+            return route;
+        }
+
+        /**
+         * Remove a route, leaving other routes with the same URL pattern.
+         *
+         * @param route The route
+         */
+        void removeRoute(UriResource route) {
+            this.mappings.remove(route);
+        }
+    }
+
+    /**
+     * Handle a request to /metrics.
+     */
+    public static class MetricsHandler extends BaseHandler {
+        /**
+         * Handle a GET request.
+         *
+         * @param uriResource The URI resource that was matched
+         * @param urlParams   Map of URL parameters
+         * @param session     The HTTP session
+         * @return The appropriate response.
+         */
+        @Override
+        public Response get(UriResource uriResource,
+                            Map<String, String> urlParams,
+                            IHTTPSession session) {
+            WebThingServer server = this.getServer(uriResource);
+            if (server == null || !server.isMetricsEnabled()) {
+                return NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
+                                                        null,
+                                                        null);
+            }
+
+            if (!validateHost(uriResource, session)) {
+                return NanoHTTPD.newFixedLengthResponse(Response.Status.FORBIDDEN,
+                                                        null,
+                                                        null);
+            }
+
+            return NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
+                                                    "text/plain; version=0.0.4; charset=utf-8",
+                                                    Metrics.getDefault()
+                                                           .export());
+        }
     }
 
     /**
@@ -693,14 +1696,51 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                         null);
             }
 
+            ThingsType things = uriResource.initParameter(0, ThingsType.class);
+            WebThingServer server = this.getServer(uriResource);
+            if (server == null) {
+                return corsResponse(this.jsonResponse(uriResource,
+                                                      session,
+                                                      this.describeThings(
+                                                              uriResource,
+                                                              session,
+                                                              things)));
+            }
+
+            long version = 0;
+            for (Thing thing : things.getThings()) {
+                version += thing.getDescriptionVersion();
+            }
+
+            String key = String.format("things|%s|%s",
+                                       session.getHeaders().get("host"),
+                                       this.isSecure(uriResource));
+            return corsResponse(server.cachedJsonResponse(session,
+                                                          key,
+                                                          version,
+                                                          () -> this.describeThings(
+                                                                  uriResource,
+                                                                  session,
+                                                                  things)));
+        }
+
+        /**
+         * Build the descriptions of all things.
+         *
+         * @param uriResource The URI resource that was matched
+         * @param session     The HTTP session
+         * @param things      The things
+         * @return The descriptions, serialized as a JSON array.
+         */
+        private String describeThings(UriResource uriResource,
+                                      IHTTPSession session,
+                                      ThingsType things) {
             String wsHref = String.format("%s://%s",
                                           this.isSecure(uriResource) ?
                                           "wss" :
                                           "ws",
                                           session.getHeaders().get("host"));
 
-            ThingsType things = uriResource.initParameter(0, ThingsType.class);
-
             JSONArray list = new JSONArray();
             for (Thing thing : things.getThings()) {
                 JSONObject description = thing.asThingDescription();
@@ -729,9 +1769,7 @@ public class WebThingServer extends RouterNanoHTTPD {
                 list.put(description);
             }
 
-            return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                 "application/json",
-                                                                 list.toString()));
+            return list.toString();
         }
     }
 
@@ -782,7 +1820,9 @@ public class WebThingServer extends RouterNanoHTTPD {
                 }
 
                 final NanoWSD.WebSocket webSocket =
-                        new ThingWebSocket(thing, session);
+                        new ThingWebSocket(thing,
+                                           session,
+                                           this.getServer(uriResource));
                 Response handshakeResponse = webSocket.getHandshakeResponse();
                 try {
                     handshakeResponse.addHeader(NanoWSD.HEADER_WEBSOCKET_ACCEPT,
@@ -794,29 +1834,51 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                                "The SHA-1 Algorithm required for websockets is not available on the server."));
                 }
 
-                if (headers.containsKey(NanoWSD.HEADER_WEBSOCKET_PROTOCOL)) {
+                if (headers.containsKey(NanoWSD.HEADER_WEBSOCKET_PROTOCOL) &&
+                        handshakeResponse.getHeader(NanoWSD.HEADER_WEBSOCKET_PROTOCOL) ==
+                                null) {
                     handshakeResponse.addHeader(NanoWSD.HEADER_WEBSOCKET_PROTOCOL,
                                                 headers.get(NanoWSD.HEADER_WEBSOCKET_PROTOCOL)
                                                        .split(",")[0]);
                 }
 
-                final Timer timer = new Timer();
-                timer.scheduleAtFixedRate(new TimerTask() {
-                                              @Override
-                                              public void run() {
-                                                  try {
-                                                      webSocket.ping(new byte[0]);
-                                                  } catch (IOException e) {
-                                                      timer.cancel();
-                                                  }
-                                              }
-                                          },
-                                          WebThingServer.WEBSOCKET_PING_INTERVAL,
-                                          WebThingServer.WEBSOCKET_PING_INTERVAL);
-
                 return handshakeResponse;
             }
 
+            WebThingServer server = this.getServer(uriResource);
+            if (server == null) {
+                return corsResponse(this.jsonResponse(uriResource,
+                                                      session,
+                                                      this.describeThing(
+                                                              uriResource,
+                                                              session,
+                                                              thing)));
+            }
+
+            String key = String.format("thing|%s|%s|%s",
+                                       thing.getId(),
+                                       session.getHeaders().get("host"),
+                                       this.isSecure(uriResource));
+            return corsResponse(server.cachedJsonResponse(session,
+                                                          key,
+                                                          thing.getDescriptionVersion(),
+                                                          () -> this.describeThing(
+                                                                  uriResource,
+                                                                  session,
+                                                                  thing)));
+        }
+
+        /**
+         * Build the description of a thing.
+         *
+         * @param uriResource The URI resource that was matched
+         * @param session     The HTTP session
+         * @param thing       The thing
+         * @return The description, serialized as JSON.
+         */
+        private String describeThing(UriResource uriResource,
+                                     IHTTPSession session,
+                                     Thing thing) {
             String wsHref = String.format("%s://%s%s",
                                           this.isSecure(uriResource) ?
                                           "wss" :
@@ -843,9 +1905,7 @@ public class WebThingServer extends RouterNanoHTTPD {
             description.put("securityDefinitions", securityDefinitions);
             description.put("security", "nosec_sc");
 
-            return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                 "application/json",
-                                                                 description.toString()));
+            return description.toString();
         }
 
         /**
@@ -883,6 +1943,28 @@ public class WebThingServer extends RouterNanoHTTPD {
          */
         public static class ThingWebSocket extends NanoWSD.WebSocket {
             private final Thing thing;
+            private final PerMessageDeflate compression;
+            private final Codec codec;
+            private final Metrics.Counter sent;
+            private final Metrics.Counter dropped;
+            private final WebThingServer server;
+            private final RateLimit rateLimit;
+            private final RateLimit.Bucket bucket;
+            private static final Object PING = new Object();
+            private static final Object OVERFLOW = new Object();
+            private final List<String> pending = new ArrayList<>();
+            private final ArrayDeque<Object> outbound = new ArrayDeque<>();
+            private volatile ScheduledFuture<?> ping;
+            private volatile long batchInterval;
+            private ScheduledFuture<?> flush;
+            private int queued;
+            private boolean writing;
+            private boolean closed;
+            private List<String> held;
+            private volatile boolean propertyDeltas;
+            private final Set<String> deltaBaselines =
+                    ConcurrentHashMap.newKeySet();
+            private final Long lastSequence;
 
             /**
              * Initialize the object.
@@ -891,8 +1973,155 @@ public class WebThingServer extends RouterNanoHTTPD {
              * @param handshakeRequest The initial handshake request
              */
             public ThingWebSocket(Thing thing, IHTTPSession handshakeRequest) {
-                super(handshakeRequest);
+                this(thing, handshakeRequest, null, (PerMessageDeflate) null);
+            }
+
+            /**
+             * Initialize the object, negotiating the permessage-deflate
+             * extension if the client offers it.
+             * <p>
+             * Messages are sent as CBOR in binary frames if the client offers
+             * the {@link Codec#CBOR_WEBSOCKET_PROTOCOL} subprotocol.
+             *
+             * @param thing            The Thing managed by the server
+             * @param handshakeRequest The initial handshake request
+             * @param compression      The compression settings, or null to
+             *                         disable compression
+             */
+            public ThingWebSocket(Thing thing,
+                                  IHTTPSession handshakeRequest,
+                                  WebSocketCompression compression) {
+                this(thing,
+                     handshakeRequest,
+                     null,
+                     negotiate(handshakeRequest, compression));
+            }
+
+            /**
+             * Initialize the object with the settings of a server, which
+             * rejects messages while it is draining.
+             *
+             * @param thing            The Thing managed by the server
+             * @param handshakeRequest The initial handshake request
+             * @param server           The server, or null
+             */
+            public ThingWebSocket(Thing thing,
+                                  IHTTPSession handshakeRequest,
+                                  WebThingServer server) {
+                this(thing,
+                     handshakeRequest,
+                     server,
+                     server == null ?
+                     null :
+                     negotiate(handshakeRequest,
+                               server.getWebSocketCompression()));
+            }
+
+            /**
+             * Initialize the object.
+             *
+             * @param thing            The Thing managed by the server
+             * @param handshakeRequest The initial handshake request
+             * @param server           The server, or null
+             * @param compression      The negotiated extension, or null
+             */
+            private ThingWebSocket(Thing thing,
+                                   IHTTPSession handshakeRequest,
+                                   WebThingServer server,
+                                   PerMessageDeflate compression) {
+                super(compression == null ?
+                      handshakeRequest :
+                      compression.wrap(handshakeRequest));
                 this.thing = thing;
+                this.server = server;
+                this.rateLimit = server == null ? null : server.rateLimit;
+                this.bucket = this.rateLimit == null ?
+                              null :
+                              this.rateLimit.newClientBucket();
+                this.compression = compression;
+                this.lastSequence = lastSequence(handshakeRequest);
+                this.sent = Metrics.getDefault()
+                                   .counter("webthing_websocket_messages_sent_total",
+                                            "Messages sent to websockets.",
+                                            "thing",
+                                            thing.getId());
+                this.dropped = Metrics.getDefault()
+                                      .counter("webthing_websocket_messages_dropped_total",
+                                               "Messages which failed to send to websockets.",
+                                               "thing",
+                                               thing.getId());
+
+                Map<String, String> headers = handshakeRequest.getHeaders();
+                this.codec = headers == null ?
+                             Codec.JSON :
+                             Codec.forWebSocketProtocols(headers.get(
+                                     NanoWSD.HEADER_WEBSOCKET_PROTOCOL));
+
+                if (compression != null) {
+                    this.getHandshakeResponse()
+                        .addHeader("Sec-WebSocket-Extensions",
+                                   compression.getResponseHeader());
+                }
+
+                if (this.codec != Codec.JSON) {
+                    this.getHandshakeResponse()
+                        .addHeader("Sec-WebSocket-Protocol",
+                                   Codec.CBOR_WEBSOCKET_PROTOCOL);
+                }
+            }
+
+            /**
+             * Negotiate the permessage-deflate extension.
+             *
+             * @param handshakeRequest The initial handshake request
+             * @param compression      The compression settings, or null to
+             *                         disable compression
+             * @return The negotiated extension, or null.
+             */
+            private static PerMessageDeflate negotiate(IHTTPSession handshakeRequest,
+                                                       WebSocketCompression compression) {
+                if (compression == null) {
+                    return null;
+                }
+
+                return PerMessageDeflate.negotiate(handshakeRequest.getHeaders()
+                                                                   .get(PerMessageDeflate.HEADER_WEBSOCKET_EXTENSIONS),
+                                                   compression);
+            }
+
+            /**
+             * Get the sequence of the last notification a reconnecting client
+             * received, from the {@code lastSequence} query parameter.
+             *
+             * @param handshakeRequest The initial handshake request
+             * @return The sequence, -1 if it is not a number, or null if the
+             * client did not send one.
+             */
+            private static Long lastSequence(IHTTPSession handshakeRequest) {
+                Map<String, List<String>> parameters =
+                        handshakeRequest.getParameters();
+                List<String> values = parameters == null ?
+                                      null :
+                                      parameters.get("lastSequence");
+                if (values == null || values.isEmpty()) {
+                    return null;
+                }
+
+                try {
+                    return Long.parseLong(values.get(0));
+                } catch (NumberFormatException e) {
+                    // Send the client a snapshot
+                    return -1L;
+                }
+            }
+
+            /**
+             * Get the codec messages are encoded with.
+             *
+             * @return The codec.
+             */
+            public Codec getCodec() {
+                return this.codec;
             }
 
             /**
@@ -900,7 +2129,25 @@ public class WebThingServer extends RouterNanoHTTPD {
              */
             @Override
             protected void onOpen() {
-                this.thing.addSubscriber(this);
+                if (this.lastSequence == null) {
+                    this.thing.addSubscriber(this);
+                } else {
+                    this.thing.addSubscriber(this, this.lastSequence);
+                }
+                this.ping = SCHEDULER.scheduleAtFixedRate(() -> this.queue(PING, 0),
+                                                      WEBSOCKET_PING_INTERVAL,
+                                                      WEBSOCKET_PING_INTERVAL,
+                                                      TimeUnit.MILLISECONDS);
+            }
+
+            /**
+             * Stop pinging the client.
+             */
+            private void cancelPing() {
+                ScheduledFuture<?> ping = this.ping;
+                if (ping != null) {
+                    ping.cancel(false);
+                }
             }
 
             /**
@@ -916,6 +2163,25 @@ public class WebThingServer extends RouterNanoHTTPD {
                                    String reason,
                                    boolean initiatedByRemote) {
                 this.thing.removeSubscriber(this);
+                this.cancelPing();
+                synchronized (this.pending) {
+                    if (this.flush != null) {
+                        this.flush.cancel(false);
+                        this.flush = null;
+                    }
+                    this.dropped.add(this.pending.size());
+                    this.pending.clear();
+                }
+                synchronized (this.outbound) {
+                    this.closed = true;
+                    this.dropped.add(this.queued);
+                    this.outbound.clear();
+                    this.queued = 0;
+                }
+
+                if (this.compression != null) {
+                    this.compression.release();
+                }
             }
 
             /**
@@ -926,15 +2192,77 @@ public class WebThingServer extends RouterNanoHTTPD {
             @Override
             protected void onMessage(NanoWSD.WebSocketFrame message) {
                 message.setUnmasked();
-                String data = message.getTextPayload();
-                JSONObject json = new JSONObject(data);
+                Object decoded = null;
+                try {
+                    decoded = message.getOpCode() ==
+                                      NanoWSD.WebSocketFrame.OpCode.Binary ?
+                              Codec.CBOR.decode(message.getBinaryPayload()) :
+                              new JSONTokener(message.getTextPayload()).nextValue();
+                } catch (JSONException e) {
+                    // Reported as an invalid message below
+                }
+
+                if (!(decoded instanceof JSONArray)) {
+                    this.handleMessage(decoded);
+                    return;
+                }
+
+                // Handle a batch in order, and send the replies it causes
+                // together. Notifications sent meanwhile are held with them,
+                // so that they still arrive in sequence order.
+                JSONArray batch = (JSONArray) decoded;
+                synchronized (this.pending) {
+                    this.held = new ArrayList<>();
+                }
+                try {
+                    for (int i = 0; i < batch.length(); ++i) {
+                        this.handleMessage(batch.get(i));
+                    }
+                } finally {
+                    synchronized (this.pending) {
+                        List<String> held = this.held;
+                        this.held = null;
+                        if (this.batchInterval > 0) {
+                            held.forEach(this::enqueue);
+                        } else if (!held.isEmpty()) {
+                            this.queue(held, held.size());
+                        }
+                    }
+                }
+            }
+
+            /**
+             * Handle a single incoming message.
+             *
+             * @param decoded The decoded message, or null if it could not be
+             *                decoded
+             */
+            private void handleMessage(Object decoded) {
+                JSONObject json = decoded instanceof JSONObject ?
+                                  (JSONObject) decoded :
+                                  null;
+                if (json == null ||
+                        !json.has("messageType") ||
+                        !json.has("data")) {
+                    JSONObject error = new JSONObject();
+                    JSONObject inner = new JSONObject();
+
+                    inner.put("status", "400 Bad Request");
+                    inner.put("message", "Invalid message");
+                    error.put("messageType", "error");
+                    error.put("data", inner);
+
+                    this.sendMessage(error.toString());
+
+                    return;
+                }
 
-                if (!json.has("messageType") || !json.has("data")) {
+                if (this.server != null && this.server.draining) {
                     JSONObject error = new JSONObject();
                     JSONObject inner = new JSONObject();
 
-                    inner.put("status", "400 Bad Request");
-                    inner.put("message", "Invalid message");
+                    inner.put("status", "503 Service Unavailable");
+                    inner.put("message", "Server is shutting down");
                     error.put("messageType", "error");
                     error.put("data", inner);
 
@@ -945,6 +2273,29 @@ public class WebThingServer extends RouterNanoHTTPD {
 
                 String messageType = json.getString("messageType");
                 JSONObject messageData = json.getJSONObject("data");
+                if (this.rateLimit != null &&
+                        (messageType.equals("setProperty") ||
+                                messageType.equals("requestAction"))) {
+                    long wait = this.rateLimit.admit(this.bucket, this.thing);
+                    if (wait != 0) {
+                        RATE_LIMITED_WEBSOCKET.increment();
+
+                        JSONObject error = new JSONObject();
+                        JSONObject inner = new JSONObject();
+
+                        inner.put("status", "429 Too Many Requests");
+                        inner.put("message", "Too many requests");
+                        inner.put("retryAfter",
+                                  RateLimit.retryAfterSeconds(wait));
+                        error.put("messageType", "error");
+                        error.put("data", inner);
+
+                        this.sendMessage(error.toString());
+
+                        return;
+                    }
+                }
+
                 switch (messageType) {
                     case "setProperty":
                         JSONArray propertyNames = messageData.names();
@@ -967,7 +2318,7 @@ public class WebThingServer extends RouterNanoHTTPD {
                                 error.put("messageType", "error");
                                 error.put("data", inner);
 
-                                this.sendMessage(e.getMessage());
+                                this.sendMessage(error.toString());
                             }
                         }
                         break;
@@ -986,10 +2337,31 @@ public class WebThingServer extends RouterNanoHTTPD {
                                 input = params.getJSONObject("input");
                             }
 
-                            Action action =
-                                    this.thing.performAction(actionName, input);
+                            String key = params.optString("idempotencyKey",
+                                                          null);
+                            Action action = null;
+                            try {
+                                if (key == null ||
+                                        key.length() <= IdempotencyCache.MAX_KEY_LENGTH) {
+                                    action = this.thing.performAction(actionName,
+                                                                      input,
+                                                                      key);
+                                }
+                            } catch (ActionError e) {
+                                JSONObject error = new JSONObject();
+                                JSONObject inner = new JSONObject();
+
+                                inner.put("status", "500 Internal Server Error");
+                                inner.put("message", e.getMessage());
+                                error.put("messageType", "error");
+                                error.put("data", inner);
+
+                                this.sendMessage(error.toString());
+                                continue;
+                            }
+
                             if (action != null) {
-                                (new ActionRunner(action)).start();
+                                this.thing.runAction(action);
                             } else {
                                 JSONObject error = new JSONObject();
                                 JSONObject inner = new JSONObject();
@@ -1014,6 +2386,58 @@ public class WebThingServer extends RouterNanoHTTPD {
                             this.thing.addEventSubscriber(eventName, this);
                         }
                         break;
+                    case "addPropertySubscription":
+                        JSONArray subscribedNames = messageData.names();
+                        if (subscribedNames == null) {
+                            break;
+                        }
+
+                        for (int i = 0; i < subscribedNames.length(); ++i) {
+                            String propertyName = subscribedNames.getString(i);
+                            this.thing.addPropertySubscriber(propertyName, this);
+                        }
+
+                        // Properties this socket stops receiving may change
+                        // unseen, so deltas start again from full values
+                        this.deltaBaselines.clear();
+                        break;
+                    case "removePropertySubscription":
+                        JSONArray unsubscribedNames = messageData.names();
+                        if (unsubscribedNames == null) {
+                            break;
+                        }
+
+                        for (int i = 0; i < unsubscribedNames.length(); ++i) {
+                            String propertyName = unsubscribedNames.getString(i);
+                            this.thing.removePropertySubscriber(propertyName,
+                                                                this);
+                        }
+                        this.deltaBaselines.clear();
+                        break;
+                    case "setPropertyDeltas":
+                        this.deltaBaselines.clear();
+                        this.propertyDeltas = messageData.optBoolean("enabled");
+                        break;
+                    case "setNotificationBatching":
+                        long interval = messageData.optLong("interval", -1);
+                        if (interval < 0 || interval > MAX_BATCH_INTERVAL) {
+                            JSONObject error = new JSONObject();
+                            JSONObject inner = new JSONObject();
+
+                            inner.put("status", "400 Bad Request");
+                            inner.put("message",
+                                      "Batching interval must be between 0 " +
+                                              "and " + MAX_BATCH_INTERVAL +
+                                              " milliseconds");
+                            error.put("messageType", "error");
+                            error.put("data", inner);
+
+                            this.sendMessage(error.toString());
+                            break;
+                        }
+
+                        this.setBatchInterval(interval);
+                        break;
                     default:
                         JSONObject error = new JSONObject();
                         JSONObject inner = new JSONObject();
@@ -1037,11 +2461,330 @@ public class WebThingServer extends RouterNanoHTTPD {
             protected void onException(IOException exception) {
             }
 
+            /**
+             * Send a message, encoded with the negotiated codec.
+             * <p>
+             * Messages are queued and written in order by a writer thread, so
+             * that a slow client does not hold up the caller. A client which
+             * falls more than 1024 messages behind is closed with Policy
+             * Violation, and can reconnect with its last sequence to receive
+             * the notifications it missed.
+             * <p>
+             * Messages are held while a batch from the client is handled, and
+             * sent together with its replies once it is. If the client
+             * enabled notification batching, messages are held until the
+             * next flush.
+             *
+             * @param message The message, as JSON
+             */
             public void sendMessage(String message) {
+                // Decide and queue under the lock, so that messages are sent
+                // in the order they arrive however they are held
+                synchronized (this.pending) {
+                    if (this.held != null) {
+                        this.held.add(message);
+                    } else if (this.batchInterval > 0) {
+                        this.enqueue(message);
+                    } else {
+                        this.queue(message, 1);
+                    }
+                }
+            }
+
+            /**
+             * Send messages together, in one frame unless notification
+             * batching is enabled.
+             *
+             * @param messages The messages, as JSON
+             */
+            void sendMessages(List<String> messages) {
+                synchronized (this.pending) {
+                    if (messages.size() == 1 ||
+                            this.held != null ||
+                            this.batchInterval > 0) {
+                        messages.forEach(this::sendMessage);
+                    } else if (!messages.isEmpty()) {
+                        this.queue(messages, messages.size());
+                    }
+                }
+            }
+
+            /**
+             * Queue a frame for writing, starting a writer if none is running.
+             *
+             * @param frame A message, a list of messages to send in one frame,
+             *              or a ping
+             * @param count The number of messages in the frame
+             */
+            private void queue(Object frame, int count) {
+                synchronized (this.outbound) {
+                    if (this.closed) {
+                        this.dropped.add(count);
+                        return;
+                    }
+
+                    if (this.queued + count > MAX_QUEUED_MESSAGES) {
+                        // Rather than hold ever more messages for a client
+                        // which does not keep up, close it so that it resumes
+                        // from its last sequence
+                        this.dropped.add(this.queued + count);
+                        this.outbound.clear();
+                        this.outbound.add(OVERFLOW);
+                        this.queued = 0;
+                        this.closed = true;
+                    } else {
+                        this.outbound.add(frame);
+                        this.queued += count;
+                    }
+
+                    if (!this.writing) {
+                        this.writing = true;
+                        WRITERS.execute(this::writeQueued);
+                    }
+                }
+            }
+
+            /**
+             * Write queued frames until none are left. At most one writer
+             * runs per socket.
+             */
+            @SuppressWarnings("unchecked")
+            private void writeQueued() {
+                while (true) {
+                    Object frame;
+                    synchronized (this.outbound) {
+                        frame = this.outbound.poll();
+                        if (frame == null) {
+                            this.writing = false;
+                            this.outbound.notifyAll();
+                            return;
+                        }
+
+                        if (frame instanceof String) {
+                            --this.queued;
+                        } else if (frame instanceof List) {
+                            this.queued -= ((List<String>) frame).size();
+                        }
+                    }
+
+                    boolean written = false;
+                    try {
+                        if (frame == PING) {
+                            try {
+                                this.ping(new byte[0]);
+                            } catch (IOException e) {
+                                this.cancelPing();
+                            }
+                        } else if (frame == OVERFLOW) {
+                            try {
+                                this.close(NanoWSD.WebSocketFrame.CloseCode.PolicyViolation,
+                                           "Too many messages queued",
+                                           false);
+                            } catch (IOException e) {
+                                // pass
+                            }
+                        } else if (frame instanceof List) {
+                            this.deliver((List<String>) frame);
+                        } else {
+                            this.deliver((String) frame, 1);
+                        }
+                        written = true;
+                    } finally {
+                        if (!written) {
+                            synchronized (this.outbound) {
+                                this.writing = false;
+                                this.outbound.notifyAll();
+                            }
+                        }
+                    }
+                }
+            }
+
+            /**
+             * Wait until the messages queued so far are written.
+             *
+             * @param deadline The deadline, as given by
+             *                 {@link System#nanoTime()}
+             * @return Whether they were written before the deadline.
+             */
+            boolean awaitWritten(long deadline) {
+                synchronized (this.outbound) {
+                    while (this.writing) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+
+                        try {
+                            this.outbound.wait(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        }
+                    }
+
+                    return true;
+                }
+            }
+
+            /**
+             * Send messages together in one frame, as a JSON array.
+             *
+             * @param messages The messages, as JSON
+             */
+            private void deliver(List<String> messages) {
+                StringBuilder frame = new StringBuilder("[");
+                for (String message : messages) {
+                    if (frame.length() > 1) {
+                        frame.append(',');
+                    }
+                    frame.append(message);
+                }
+                frame.append(']');
+
+                this.deliver(frame.toString(), messages.size());
+            }
+
+            /**
+             * Send a frame, counting the messages in it.
+             *
+             * @param frame The frame, as JSON
+             * @param count The number of messages in the frame
+             */
+            private void deliver(String frame, int count) {
+                FlightEvents flightEvents = FlightEvents.get();
+                Object event = flightEvents.beginWebSocketSend();
+                boolean sent = false;
                 try {
-                    this.send(message);
+                    this.write(frame);
+                    this.sent.add(count);
+                    sent = true;
                 } catch (IOException e) {
-                    // pass
+                    this.dropped.add(count);
+                }
+
+                if (event != null) {
+                    flightEvents.commitWebSocketSend(event,
+                                                     this.thing,
+                                                     frame.length(),
+                                                     sent);
+                }
+            }
+
+            /**
+             * Get whether this client asked for changes of object-valued
+             * properties as merge patches.
+             *
+             * @return Whether the client asked for deltas.
+             */
+            boolean isPropertyDeltas() {
+                return this.propertyDeltas;
+            }
+
+            /**
+             * Decide whether to send a property change to this client as a
+             * delta, which it can only apply once it has seen a full value.
+             * Must be called while holding the property's lock, for the
+             * change about to be sent.
+             *
+             * @param propertyName Name of the property
+             * @return Whether to send a delta rather than the full value.
+             */
+            boolean useDelta(String propertyName) {
+                if (!this.propertyDeltas) {
+                    return false;
+                }
+
+                return !this.deltaBaselines.add(propertyName);
+            }
+
+            /**
+             * Set the interval at which messages are sent to this client in
+             * batches. Messages held so far are sent when batching is
+             * disabled.
+             *
+             * @param intervalMillis The interval, in milliseconds, or 0 to
+             *                       send each message at once
+             */
+            void setBatchInterval(long intervalMillis) {
+                this.batchInterval = intervalMillis;
+                if (intervalMillis == 0) {
+                    this.flush();
+                }
+            }
+
+            /**
+             * Hold a message until the next flush.
+             *
+             * @param message The message, as JSON
+             */
+            private void enqueue(String message) {
+                boolean full;
+                synchronized (this.pending) {
+                    this.pending.add(message);
+                    full = this.pending.size() >= MAX_BATCH_SIZE;
+                    if (!full && this.flush == null) {
+                        this.flush = SCHEDULER.schedule(this::flush,
+                                                        this.batchInterval,
+                                                        TimeUnit.MILLISECONDS);
+                    }
+                }
+
+                if (full) {
+                    this.flush();
+                }
+            }
+
+            /**
+             * Send the messages held for batching, if any, in one frame.
+             */
+            void flush() {
+                // Queue while holding the lock, so that concurrent flushes
+                // queue their batches in order
+                synchronized (this.pending) {
+                    if (this.flush != null) {
+                        this.flush.cancel(false);
+                        this.flush = null;
+                    }
+
+                    if (this.pending.isEmpty()) {
+                        return;
+                    }
+
+                    this.queue(new ArrayList<>(this.pending), this.pending.size());
+                    this.pending.clear();
+                }
+            }
+
+            /**
+             * Encode and send a message.
+             *
+             * @param message The message, as JSON
+             * @throws IOException If sending failed.
+             */
+            void write(String message) throws IOException {
+                if (this.codec.isBinary()) {
+                    byte[] payload = this.codec.encodeJson(message);
+                    if (this.compression == null) {
+                        this.send(payload);
+                        return;
+                    }
+
+                    synchronized (this) {
+                        this.sendFrame(this.compression.binaryFrame(payload));
+                    }
+                    return;
+                }
+
+                if (this.compression == null) {
+                    this.send(message);
+                    return;
+                }
+
+                // Compress and send under the socket's lock, so that frames go
+                // out in the order their compression contexts depend on
+                synchronized (this) {
+                    this.sendFrame(this.compression.textFrame(message));
                 }
             }
         }
@@ -1076,10 +2819,10 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                                      null));
             }
 
-            return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                 "application/json",
-                                                                 thing.getProperties()
-                                                                      .toString()));
+            return corsResponse(this.encodedResponse(uriResource,
+                                                     session,
+                                                     Response.Status.OK,
+                                                     thing.getProperties()));
         }
     }
 
@@ -1131,23 +2874,29 @@ public class WebThingServer extends RouterNanoHTTPD {
             }
 
             String propertyName = this.getPropertyName(uriResource, session);
-            if (!thing.hasProperty(propertyName)) {
+            Property property = thing.findProperty(propertyName);
+            if (property == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
                                                                      null));
             }
 
-            JSONObject obj = new JSONObject();
             try {
-                Object value = thing.getProperty(propertyName);
-                if (value == null) {
-                    obj.put(propertyName, JSONObject.NULL);
-                } else {
-                    obj.putOpt(propertyName, value);
-                }
-                return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                     "application/json",
-                                                                     obj.toString()));
+                return corsResponse(this.encodedResponse(
+                        uriResource,
+                        session,
+                        Response.Status.OK,
+                        () -> new JSONObject().putOpt(propertyName,
+                                                      property.getValue()),
+                        () -> {
+                            StringBuilder body = new StringBuilder(64);
+                            body.append('{')
+                                .append(JSONObject.quote(propertyName))
+                                .append(':');
+                            property.appendValueJson(body);
+                            body.append('}');
+                            return body.toString();
+                        }));
             } catch (JSONException e) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.INTERNAL_ERROR,
                                                                      null,
@@ -1187,6 +2936,13 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                                      null));
             }
 
+            Response limited = this.checkRateLimit(uriResource,
+                                                   session,
+                                                   thing);
+            if (limited != null) {
+                return corsResponse(limited);
+            }
+
             JSONObject json = this.parseBody(session);
             if (json == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST,
@@ -1205,9 +2961,102 @@ public class WebThingServer extends RouterNanoHTTPD {
 
                 JSONObject obj = new JSONObject();
                 obj.putOpt(propertyName, thing.getProperty(propertyName));
-                return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                     "application/json",
-                                                                     obj.toString()));
+                return corsResponse(this.encodedResponse(uriResource,
+                                                         session,
+                                                         Response.Status.OK,
+                                                         obj));
+            } catch (JSONException e) {
+                return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.INTERNAL_ERROR,
+                                                                     null,
+                                                                     null));
+            } catch (PropertyError e) {
+                return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST,
+                                                                     null,
+                                                                     null));
+            }
+        }
+
+        /**
+         * Handle a request with a method without its own handler, i.e.
+         * PATCH.
+         *
+         * @param method      The request method
+         * @param uriResource The URI resource that was matched
+         * @param urlParams   Map of URL parameters
+         * @param session     The HTTP session
+         * @return The appropriate response.
+         */
+        @Override
+        public Response other(String method,
+                              UriResource uriResource,
+                              Map<String, String> urlParams,
+                              IHTTPSession session) {
+            if (method.equals("PATCH")) {
+                return this.patch(uriResource, urlParams, session);
+            }
+
+            return super.other(method, uriResource, urlParams, session);
+        }
+
+        /**
+         * Handle a PATCH request, which updates the property with a JSON
+         * merge patch (RFC 7396) of its representation, e.g.
+         * {"schedule": {"monday": null}}.
+         *
+         * @param uriResource The URI resource that was matched
+         * @param urlParams   Map of URL parameters
+         * @param session     The HTTP session
+         * @return The appropriate response.
+         */
+        public Response patch(UriResource uriResource,
+                              Map<String, String> urlParams,
+                              IHTTPSession session) {
+            if (!validateHost(uriResource, session)) {
+                return NanoHTTPD.newFixedLengthResponse(Response.Status.FORBIDDEN,
+                                                        null,
+                                                        null);
+            }
+
+            Thing thing = this.getThing(uriResource, session);
+            if (thing == null) {
+                return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
+                                                                     null,
+                                                                     null));
+            }
+
+            String propertyName = this.getPropertyName(uriResource, session);
+            if (!thing.hasProperty(propertyName)) {
+                return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
+                                                                     null,
+                                                                     null));
+            }
+
+            Response limited = this.checkRateLimit(uriResource,
+                                                   session,
+                                                   thing);
+            if (limited != null) {
+                return corsResponse(limited);
+            }
+
+            JSONObject json = this.parseBody(session);
+            if (json == null ||
+                    json.length() != 1 ||
+                    !json.has(propertyName) ||
+                    json.get(propertyName) == JSONObject.NULL) {
+                return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST,
+                                                                     null,
+                                                                     null));
+            }
+
+            try {
+                thing.patchProperty(propertyName, json.get(propertyName));
+
+                JSONObject obj = new JSONObject();
+                obj.putOpt(propertyName, thing.getProperty(propertyName));
+                return corsResponse(this.encodedResponse(uriResource,
+                                                         session,
+                                                         Response.Status.OK,
+                                                         obj));
             } catch (JSONException e) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.INTERNAL_ERROR,
                                                                      null,
@@ -1249,11 +3098,13 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                                      null));
             }
 
-            return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                 "application/json",
-                                                                 thing.getActionDescriptions(
-                                                                         null)
-                                                                      .toString()));
+            return corsResponse(this.encodedResponse(uriResource,
+                                                     session,
+                                                     Response.Status.OK,
+                                                     () -> thing.getActionDescriptions(
+                                                             null),
+                                                     () -> thing.getActionDescriptionsJson(
+                                                             null)));
         }
 
         /**
@@ -1281,6 +3132,13 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                                      null));
             }
 
+            Response limited = this.checkRateLimit(uriResource,
+                                                   session,
+                                                   thing);
+            if (limited != null) {
+                return corsResponse(limited);
+            }
+
             JSONObject json = this.parseBody(session);
             if (json == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST,
@@ -1304,26 +3162,37 @@ public class WebThingServer extends RouterNanoHTTPD {
                     input = params.getJSONObject("input");
                 }
 
-                Action action = thing.performAction(actionName, input);
-                if (action != null) {
-                    JSONObject response = new JSONObject();
-                    response.put(actionName,
-                                 action.asActionDescription()
-                                       .getJSONObject(actionName));
-
-                    (new ActionRunner(action)).start();
-
+                String key = this.getIdempotencyKey(session, params);
+                if (key != null &&
+                        key.length() > IdempotencyCache.MAX_KEY_LENGTH) {
                     return corsResponse(NanoHTTPD.newFixedLengthResponse(
-                            Response.Status.CREATED,
-                            "application/json",
-                            response.toString()));
+                            Response.Status.BAD_REQUEST,
+                            null,
+                            null));
+                }
+
+                Action action = thing.performAction(actionName, input, key);
+                if (action != null) {
+                    Response response =
+                            this.encodedResponse(uriResource,
+                                                 session,
+                                                 Response.Status.CREATED,
+                                                 action::asActionDescription,
+                                                 action::asActionDescriptionJson);
+
+                    // A retried request gets the action it created before
+                    if (!thing.runAction(action)) {
+                        response.setStatus(Response.Status.OK);
+                    }
+
+                    return corsResponse(response);
                 } else {
                     return corsResponse(NanoHTTPD.newFixedLengthResponse(
                             Response.Status.BAD_REQUEST,
                             null,
                             null));
                 }
-            } catch (JSONException e) {
+            } catch (JSONException | ActionError e) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.INTERNAL_ERROR,
                                                                      null,
                                                                      null));
@@ -1378,13 +3247,14 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                                      null));
             }
 
-            return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                 "application/json",
-                                                                 thing.getActionDescriptions(
-                                                                         this.getActionName(
-                                                                                 uriResource,
-                                                                                 session))
-                                                                      .toString()));
+            String actionName = this.getActionName(uriResource, session);
+            return corsResponse(this.encodedResponse(uriResource,
+                                                     session,
+                                                     Response.Status.OK,
+                                                     () -> thing.getActionDescriptions(
+                                                             actionName),
+                                                     () -> thing.getActionDescriptionsJson(
+                                                             actionName)));
         }
 
         /**
@@ -1412,6 +3282,13 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                                      null));
             }
 
+            Response limited = this.checkRateLimit(uriResource,
+                                                   session,
+                                                   thing);
+            if (limited != null) {
+                return corsResponse(limited);
+            }
+
             JSONObject json = this.parseBody(session);
             if (json == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST,
@@ -1444,26 +3321,37 @@ public class WebThingServer extends RouterNanoHTTPD {
                     input = params.getJSONObject("input");
                 }
 
-                Action action = thing.performAction(name, input);
-                if (action != null) {
-                    JSONObject response = new JSONObject();
-                    response.put(name,
-                                 action.asActionDescription()
-                                       .getJSONObject(name));
-
-                    (new ActionRunner(action)).start();
-
+                String key = this.getIdempotencyKey(session, params);
+                if (key != null &&
+                        key.length() > IdempotencyCache.MAX_KEY_LENGTH) {
                     return corsResponse(NanoHTTPD.newFixedLengthResponse(
-                            Response.Status.CREATED,
-                            "application/json",
-                            response.toString()));
+                            Response.Status.BAD_REQUEST,
+                            null,
+                            null));
+                }
+
+                Action action = thing.performAction(name, input, key);
+                if (action != null) {
+                    Response response =
+                            this.encodedResponse(uriResource,
+                                                 session,
+                                                 Response.Status.CREATED,
+                                                 action::asActionDescription,
+                                                 action::asActionDescriptionJson);
+
+                    // A retried request gets the action it created before
+                    if (!thing.runAction(action)) {
+                        response.setStatus(Response.Status.OK);
+                    }
+
+                    return corsResponse(response);
                 } else {
                     return corsResponse(NanoHTTPD.newFixedLengthResponse(
                             Response.Status.BAD_REQUEST,
                             null,
                             null));
                 }
-            } catch (JSONException e) {
+            } catch (JSONException | ActionError e) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.INTERNAL_ERROR,
                                                                      null,
                                                                      null));
@@ -1546,10 +3434,11 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                                      null));
             }
 
-            return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                 "application/json",
-                                                                 action.asActionDescription()
-                                                                       .toString()));
+            return corsResponse(this.encodedResponse(uriResource,
+                                                     session,
+                                                     Response.Status.OK,
+                                                     action::asActionDescription,
+                                                     action::asActionDescriptionJson));
         }
 
         /**
@@ -1652,11 +3541,13 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                                      null));
             }
 
-            return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                 "application/json",
-                                                                 thing.getEventDescriptions(
-                                                                         null)
-                                                                      .toString()));
+            return corsResponse(this.encodedResponse(uriResource,
+                                                     session,
+                                                     Response.Status.OK,
+                                                     () -> thing.getEventDescriptions(
+                                                             null),
+                                                     () -> thing.getEventDescriptionsJson(
+                                                             null)));
         }
     }
 
@@ -1707,13 +3598,14 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                                      null));
             }
 
-            return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                 "application/json",
-                                                                 thing.getEventDescriptions(
-                                                                         this.getEventName(
-                                                                                 uriResource,
-                                                                                 session))
-                                                                      .toString()));
+            String eventName = this.getEventName(uriResource, session);
+            return corsResponse(this.encodedResponse(uriResource,
+                                                     session,
+                                                     Response.Status.OK,
+                                                     () -> thing.getEventDescriptions(
+                                                             eventName),
+                                                     () -> thing.getEventDescriptionsJson(
+                                                             eventName)));
         }
     }
 
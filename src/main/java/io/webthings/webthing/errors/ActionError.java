@@ -0,0 +1,15 @@
+package io.webthings.webthing.errors;
+
+public class ActionError extends RuntimeException {
+    public ActionError() {
+        super("General action error");
+    }
+
+    public ActionError(String message) {
+        super(message);
+    }
+
+    public ActionError(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -4,12 +4,15 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 
 import io.webthings.webthing.Action;
+import io.webthings.webthing.ActionPolicy;
+import io.webthings.webthing.DoubleValue;
 import io.webthings.webthing.Event;
 import io.webthings.webthing.Property;
 import io.webthings.webthing.Thing;
@@ -37,7 +40,10 @@ public class MultipleThings {
                                                                          "LightAndTempDevice"),
                                        8888);
 
-            Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+            // Let running requests and actions finish before exiting
+            Runtime.getRuntime()
+                   .addShutdownHook(new Thread(() -> System.out.println(
+                           server.stop(Duration.ofSeconds(10)))));
 
             server.start(false);
         } catch (IOException e) {
@@ -117,7 +123,11 @@ public class MultipleThings {
             fadeProperties.put("duration", fadeDuration);
             fadeInput.put("properties", fadeProperties);
             fadeMetadata.put("input", fadeInput);
-            this.addAvailableAction("fade", fadeMetadata, FadeAction.class);
+            // Only the latest fade waits while one is running
+            this.addAvailableAction("fade",
+                                    fadeMetadata,
+                                    FadeAction::new,
+                                    ActionPolicy.latestWins());
 
             JSONObject overheatedMetadata = new JSONObject();
             overheatedMetadata.put("description",
@@ -145,7 +155,8 @@ public class MultipleThings {
                 try {
                     Thread.sleep(input.getInt("duration"));
                 } catch (InterruptedException e) {
-                    // pass
+                    // Cancelled, or timed out
+                    return;
                 }
 
                 try {
@@ -162,7 +173,7 @@ public class MultipleThings {
      * A humidity sensor which updates its measurement every few seconds.
      */
     public static class FakeGpioHumiditySensor extends Thing {
-        private final Value<Double> level;
+        private final DoubleValue level;
 
         public FakeGpioHumiditySensor() {
             super("urn:dev:ops:my-humidity-sensor-1234",
@@ -179,7 +190,7 @@ public class MultipleThings {
             levelDescription.put("maximum", 100);
             levelDescription.put("unit", "percent");
             levelDescription.put("readOnly", true);
-            this.level = new Value<>(0.0);
+            this.level = new DoubleValue(0.0);
             this.addProperty(new Property(this,
                                           "level",
                                           level,
@@ -4,10 +4,12 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.UUID;
 
 import io.webthings.webthing.Action;
+import io.webthings.webthing.ActionPolicy;
 import io.webthings.webthing.Event;
 import io.webthings.webthing.Property;
 import io.webthings.webthing.Thing;
@@ -68,7 +70,11 @@ public class SingleThing {
         fadeProperties.put("duration", fadeDuration);
         fadeInput.put("properties", fadeProperties);
         fadeMetadata.put("input", fadeInput);
-        thing.addAvailableAction("fade", fadeMetadata, FadeAction.class);
+        // Only the latest fade waits while one is running
+        thing.addAvailableAction("fade",
+                                 fadeMetadata,
+                                 FadeAction::new,
+                                 ActionPolicy.latestWins());
 
         JSONObject overheatedMetadata = new JSONObject();
         overheatedMetadata.put("description",
@@ -90,7 +96,10 @@ public class SingleThing {
             server = new WebThingServer(new WebThingServer.SingleThing(thing),
                                         8888);
 
-            Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+            // Let running requests and actions finish before exiting
+            Runtime.getRuntime()
+                   .addShutdownHook(new Thread(() -> System.out.println(
+                           server.stop(Duration.ofSeconds(10)))));
 
             server.start(false);
         } catch (IOException e) {
@@ -117,7 +126,8 @@ public class SingleThing {
             try {
                 Thread.sleep(input.getInt("duration"));
             } catch (InterruptedException e) {
-                // pass
+                // Cancelled, or timed out
+                return;
             }
 
             try {
@@ -0,0 +1,37 @@
+package io.webthings.webthing;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class AllowedHostsTest
+{
+    @Test
+    public void itReplacesAddressesAndKeepsNames()
+    {
+        AllowedHosts hosts = new AllowedHosts(8888);
+        hosts.addName("localhost");
+        assertTrue(hosts.contains("localhost"));
+        assertTrue(hosts.contains("localhost:8888"));
+        assertFalse(hosts.contains("localhost:8080"));
+
+        assertTrue(hosts.setAddresses(Arrays.asList("192.168.1.10",
+                                                    "[fd00::10]")));
+        assertTrue(hosts.contains("192.168.1.10:8888"));
+        assertTrue(hosts.contains("[fd00::10]"));
+
+        // Unchanged addresses are reported as such
+        assertFalse(hosts.setAddresses(Arrays.asList("[fd00::10]",
+                                                     "192.168.1.10")));
+
+        // A new lease replaces the old address, but not the names
+        assertTrue(hosts.setAddresses(Arrays.asList("192.168.1.20")));
+        assertFalse(hosts.contains("192.168.1.10"));
+        assertFalse(hosts.contains("[fd00::10]:8888"));
+        assertTrue(hosts.contains("192.168.1.20:8888"));
+        assertTrue(hosts.contains("localhost:8888"));
+    }
+}
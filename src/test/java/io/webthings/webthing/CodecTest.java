@@ -0,0 +1,126 @@
+package io.webthings.webthing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class CodecTest
+{
+    @Test
+    public void itEncodesCbor()
+    {
+        // Examples from RFC 8949, appendix A
+        assertCbor("00", 0);
+        assertCbor("17", 23);
+        assertCbor("1818", 24);
+        assertCbor("1903e8", 1000);
+        assertCbor("1b000000e8d4a51000", 1000000000000L);
+        assertCbor("3903e7", -1000);
+        assertCbor("c249010000000000000000", new BigInteger("18446744073709551616"));
+        assertCbor("fa47c35000", 100000.0);
+        assertCbor("fb3ff199999999999a", 1.1);
+        assertCbor("f4", false);
+        assertCbor("f6", JSONObject.NULL);
+        assertCbor("6449455446", "IETF");
+        assertCbor("83010203", new JSONArray("[1, 2, 3]"));
+        assertCbor("a161616131", new JSONObject("{\"a\": \"1\"}"));
+    }
+
+    @Test
+    public void itDecodesCbor()
+    {
+        assertEquals(1000000000000L, Codec.CBOR.decode(hex("1b000000e8d4a51000")));
+        assertEquals(new BigInteger("-18446744073709551617"),
+                     Codec.CBOR.decode(hex("c349010000000000000000")));
+        assertEquals(-4.0, Codec.CBOR.decode(hex("f9c400")));
+        assertEquals(5.960464477539063e-8, Codec.CBOR.decode(hex("f90001")));
+        assertEquals("streaming",
+                     Codec.CBOR.decode(hex("7f657374726561646d696e67ff")));
+
+        // Indefinite length map and array: {"a": 1, "b": [2, 3]}
+        JSONObject object =
+                (JSONObject) Codec.CBOR.decode(hex("bf61610161629f0203ffff"));
+        assertEquals(1, object.getInt("a"));
+        assertEquals(3, object.getJSONArray("b").getInt(1));
+
+        for (String malformed : new String[]{"", "18", "62616", "9b00ffffffffffffff", "0000", "1c"}) {
+            try {
+                Codec.CBOR.decode(hex(malformed));
+                throw new AssertionError("Decoded " + malformed);
+            } catch (JSONException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void itRoundTripsThingDescriptions()
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        JSONObject description = thing.asThingDescription();
+        description.put("temperature", 21.5);
+        description.put("precise", 0.1);
+        description.put("counter", Long.MAX_VALUE);
+
+        byte[] cbor = Codec.CBOR.encode(description);
+        assertTrue(cbor.length < Codec.JSON.encode(description).length);
+        assertTrue(description.similar(Codec.CBOR.decode(cbor)));
+
+        String json = description.toString();
+        assertArrayEquals(cbor, Codec.CBOR.encodeJson(json));
+        assertSame(Codec.CBOR.encodeJson(json), Codec.CBOR.encodeJson(json));
+        assertTrue(description.similar(Codec.JSON.decode(Codec.JSON.encode(description))));
+    }
+
+    @Test
+    public void itNegotiatesCodecs()
+    {
+        assertSame(Codec.JSON, Codec.forAccept(null));
+        assertSame(Codec.JSON, Codec.forAccept("*/*"));
+        assertSame(Codec.JSON, Codec.forAccept("application/json, application/cbor;q=0.5"));
+        assertSame(Codec.CBOR, Codec.forAccept("application/cbor"));
+        assertSame(Codec.CBOR, Codec.forAccept("application/cbor, */*"));
+        assertSame(Codec.CBOR, Codec.forAccept("application/json;q=0.5, application/cbor"));
+
+        assertSame(Codec.CBOR, Codec.forContentType("application/cbor"));
+        assertSame(Codec.JSON, Codec.forContentType("application/json; charset=utf-8"));
+        assertSame(Codec.JSON, Codec.forContentType(null));
+
+        assertSame(Codec.CBOR, Codec.forWebSocketProtocols("webthing, webthing+cbor"));
+        assertSame(Codec.JSON, Codec.forWebSocketProtocols("webthing"));
+    }
+
+    private static void assertCbor(String expected, Object value)
+    {
+        byte[] encoded = Codec.CBOR.encode(value);
+        assertArrayEquals(hex(expected), encoded);
+
+        Object decoded = Codec.CBOR.decode(encoded);
+        if (value instanceof JSONObject || value instanceof JSONArray) {
+            assertTrue(new JSONArray().put(value)
+                                      .similar(new JSONArray().put(decoded)));
+        } else if (value instanceof Number) {
+            assertEquals(value.toString(), decoded.toString());
+        } else {
+            assertEquals(value, decoded);
+        }
+    }
+
+    private static byte[] hex(String hex)
+    {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+
+        return bytes;
+    }
+}
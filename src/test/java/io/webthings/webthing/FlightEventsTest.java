@@ -0,0 +1,96 @@
+package io.webthings.webthing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import io.webthings.webthing.errors.PropertyError;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class FlightEventsTest
+{
+    @Test
+    public void itRecordsEventsOnlyWhileEnabled() throws Exception
+    {
+        Thing thing = new Thing("urn:dev:jfr-test", "Flight");
+        Property<Integer> level =
+                new Property<>(thing,
+                               "level",
+                               new Value<>(0),
+                               new JSONObject().put("type", "integer")
+                                               .put("maximum", 10));
+        thing.addProperty(level);
+        thing.addAvailableAction("flightTestAction",
+                                 new JSONObject(),
+                                 TestAction.class);
+
+        // Nothing is recorded, or allocated, before a recording starts
+        assertEquals(null, FlightEvents.get().beginPropertyWrite());
+
+        List<RecordedEvent> events;
+        Path file = Files.createTempFile("webthing", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("io.webthings.webthing.PropertyWrite");
+            recording.enable("io.webthings.webthing.Action");
+            recording.start();
+
+            level.setValue(5);
+            try {
+                level.setValue(11);
+                throw new AssertionError("Set an invalid value");
+            } catch (PropertyError e) {
+                // Expected
+            }
+            thing.performAction("flightTestAction", null).start();
+
+            recording.stop();
+            recording.dump(file);
+            events = RecordingFile.readAllEvents(file);
+        } finally {
+            Files.delete(file);
+        }
+
+        List<RecordedEvent> writes = events.stream()
+                                           .filter(e -> e.getEventType()
+                                                         .getName()
+                                                         .equals("io.webthings.webthing.PropertyWrite"))
+                                           .collect(Collectors.toList());
+        assertEquals(2, writes.size());
+        assertEquals("urn:dev:jfr-test", writes.get(0).getString("thing"));
+        assertEquals("level", writes.get(0).getString("property"));
+        assertTrue(writes.get(0).getBoolean("valid"));
+        assertFalse(writes.get(1).getBoolean("valid"));
+        assertTrue(writes.get(0).getDuration("validation").toNanos() > 0);
+
+        List<RecordedEvent> actions = events.stream()
+                                            .filter(e -> e.getEventType()
+                                                          .getName()
+                                                          .equals("io.webthings.webthing.Action"))
+                                            .collect(Collectors.toList());
+        assertEquals(1, actions.size());
+        assertEquals("flightTestAction", actions.get(0).getString("action"));
+        assertEquals("completed", actions.get(0).getString("status"));
+    }
+
+    public static class TestAction extends Action
+    {
+        public TestAction(Thing thing, JSONObject input)
+        {
+            super(UUID.randomUUID().toString(),
+                  thing,
+                  "flightTestAction",
+                  input);
+        }
+    }
+}
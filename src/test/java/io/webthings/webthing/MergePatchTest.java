@@ -0,0 +1,78 @@
+package io.webthings.webthing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.junit.Test;
+
+public class MergePatchTest
+{
+    private static Object json(String text)
+    {
+        return new JSONTokener(text).nextValue();
+    }
+
+    private static void assertApplies(String target,
+                                      String patch,
+                                      String expected)
+    {
+        Object result = MergePatch.apply(json(target), json(patch));
+        Object wanted = json(expected);
+        if (wanted instanceof JSONObject) {
+            assertTrue(result.toString(), ((JSONObject) wanted).similar(result));
+        } else if (wanted instanceof JSONArray) {
+            assertTrue(result.toString(), ((JSONArray) wanted).similar(result));
+        } else {
+            assertEquals(wanted, result);
+        }
+    }
+
+    @Test
+    public void itAppliesTheRfcExamples()
+    {
+        assertApplies("{\"a\":\"b\"}", "{\"a\":\"c\"}", "{\"a\":\"c\"}");
+        assertApplies("{\"a\":\"b\"}", "{\"b\":\"c\"}", "{\"a\":\"b\",\"b\":\"c\"}");
+        assertApplies("{\"a\":\"b\"}", "{\"a\":null}", "{}");
+        assertApplies("{\"a\":\"b\",\"b\":\"c\"}", "{\"a\":null}", "{\"b\":\"c\"}");
+        assertApplies("{\"a\":[\"b\"]}", "{\"a\":\"c\"}", "{\"a\":\"c\"}");
+        assertApplies("{\"a\":\"c\"}", "{\"a\":[\"b\"]}", "{\"a\":[\"b\"]}");
+        assertApplies("{\"a\":{\"b\":\"c\"}}",
+                      "{\"a\":{\"b\":\"d\",\"c\":null}}",
+                      "{\"a\":{\"b\":\"d\"}}");
+        assertApplies("{\"a\":[{\"b\":\"c\"}]}", "{\"a\":[1]}", "{\"a\":[1]}");
+        assertApplies("[\"a\",\"b\"]", "[\"c\",\"d\"]", "[\"c\",\"d\"]");
+        assertApplies("{\"a\":\"b\"}", "[\"c\"]", "[\"c\"]");
+        assertApplies("{\"e\":null}", "{\"a\":1}", "{\"e\":null,\"a\":1}");
+        assertApplies("[1,2]", "{\"a\":\"b\",\"c\":null}", "{\"a\":\"b\"}");
+        assertApplies("{}", "{\"a\":{\"bb\":{\"ccc\":null}}}", "{\"a\":{\"bb\":{}}}");
+    }
+
+    @Test
+    public void itLeavesTheTargetUnchanged()
+    {
+        JSONObject target = new JSONObject("{\"a\":{\"b\":1}}");
+        MergePatch.apply(target, json("{\"a\":{\"b\":2}}"));
+        assertEquals(1, target.getJSONObject("a").getInt("b"));
+    }
+
+    @Test
+    public void itDiffsValuesIntoPatches()
+    {
+        Object from = json("{\"a\":1,\"b\":{\"c\":2,\"d\":3},\"e\":[1],\"f\":\"x\"}");
+        Object to = json("{\"a\":1,\"b\":{\"c\":2,\"d\":4},\"e\":[1,2],\"g\":true}");
+
+        Object patch = MergePatch.diff(from, to);
+        assertTrue(patch.toString(),
+                   new JSONObject("{\"b\":{\"d\":4},\"e\":[1,2],\"f\":null,\"g\":true}")
+                           .similar(patch));
+        assertTrue(((JSONObject) to).similar(MergePatch.apply(from, patch)));
+
+        // Null members cannot be set by a merge patch
+        assertNull(MergePatch.diff(from, json("{\"a\":null}")));
+        assertEquals(5, MergePatch.diff(from, 5));
+    }
+}
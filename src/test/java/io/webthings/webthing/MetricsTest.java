@@ -0,0 +1,133 @@
+package io.webthings.webthing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class MetricsTest
+{
+    @Test
+    public void itExportsCountersAndGauges()
+    {
+        Metrics metrics = new Metrics();
+        Metrics.Counter counter =
+                metrics.counter("requests_total", "Requests.", "path", "a\"b\\c\nd");
+        counter.increment();
+        counter.add(2);
+        assertSame(counter,
+                   metrics.counter("requests_total", "Requests.", "path", "a\"b\\c\nd"));
+
+        metrics.gauge("open", "Open things.").increment();
+        metrics.gauge("size", "Size.", () -> 2.5, "kind", "x");
+
+        assertEquals("# HELP open Open things.\n" +
+                             "# TYPE open gauge\n" +
+                             "open 1\n" +
+                             "# HELP requests_total Requests.\n" +
+                             "# TYPE requests_total counter\n" +
+                             "requests_total{path=\"a\\\"b\\\\c\\nd\"} 3\n" +
+                             "# HELP size Size.\n" +
+                             "# TYPE size gauge\n" +
+                             "size{kind=\"x\"} 2.5\n",
+                     metrics.export());
+
+        metrics.remove("size", "kind", "x");
+        assertTrue(!metrics.export().contains("size"));
+
+        try {
+            metrics.gauge("requests_total", "Requests.");
+            throw new AssertionError("Changed the type of a metric");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void itExportsCumulativeHistogramBuckets()
+    {
+        Metrics metrics = new Metrics();
+        Metrics.Histogram histogram =
+                metrics.histogram("latency_seconds", "Latency.", "op", "get");
+        histogram.observeNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        histogram.observeNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        histogram.observeNanos(TimeUnit.MILLISECONDS.toNanos(3));
+        histogram.observeNanos(TimeUnit.SECONDS.toNanos(20));
+
+        String export = metrics.export();
+        assertTrue(export.contains("latency_seconds_bucket{op=\"get\",le=\"0.0001\"} 2\n"));
+        assertTrue(export.contains("latency_seconds_bucket{op=\"get\",le=\"0.0025\"} 2\n"));
+        assertTrue(export.contains("latency_seconds_bucket{op=\"get\",le=\"0.005\"} 3\n"));
+        assertTrue(export.contains("latency_seconds_bucket{op=\"get\",le=\"10\"} 3\n"));
+        assertTrue(export.contains("latency_seconds_bucket{op=\"get\",le=\"+Inf\"} 4\n"));
+        assertTrue(export.contains("latency_seconds_sum{op=\"get\"} 20.00315\n"));
+        assertTrue(export.contains("latency_seconds_count{op=\"get\"} 4\n"));
+    }
+
+    @Test
+    public void itRecordsActionsAndValidation() throws Exception
+    {
+        Thing thing = new Thing("urn:dev:metrics-test", "Metrics");
+        JSONObject metadata = new JSONObject();
+        metadata.put("input",
+                     new JSONObject().put("type", "object")
+                                     .put("properties",
+                                          new JSONObject().put("level",
+                                                               new JSONObject().put(
+                                                                       "type",
+                                                                       "integer"))));
+        thing.addAvailableAction("metricsTestAction", metadata, TestAction.class);
+
+        Metrics metrics = Metrics.getDefault();
+        Metrics.Gauge queueDepth =
+                metrics.gauge("webthing_action_queue_depth",
+                              "Actions requested and not yet started.",
+                              "action",
+                              "metricsTestAction");
+        long validations =
+                metrics.histogram("webthing_schema_validation_seconds",
+                                  "Time spent validating values against schemas.",
+                                  "kind",
+                                  "action")
+                       .getCount();
+
+        Action action = thing.performAction("metricsTestAction",
+                                            new JSONObject().put("level", 1));
+        assertEquals(1, queueDepth.get());
+        action.start();
+        assertEquals(0, queueDepth.get());
+        assertEquals(1,
+                     metrics.histogram("webthing_action_duration_seconds",
+                                       "Time from starting to finishing actions.",
+                                       "action",
+                                       "metricsTestAction")
+                            .getCount());
+        assertEquals(validations + 1,
+                     metrics.histogram("webthing_schema_validation_seconds",
+                                       "Time spent validating values against schemas.",
+                                       "kind",
+                                       "action")
+                            .getCount());
+
+        Action queued = thing.performAction("metricsTestAction", new JSONObject());
+        assertEquals(1, queueDepth.get());
+        assertTrue(thing.removeAction("metricsTestAction", queued.getId()));
+        assertEquals(0, queueDepth.get());
+    }
+
+    public static class TestAction extends Action
+    {
+        public TestAction(Thing thing, JSONObject input)
+        {
+            super(UUID.randomUUID().toString(),
+                  thing,
+                  "metricsTestAction",
+                  input);
+        }
+    }
+}
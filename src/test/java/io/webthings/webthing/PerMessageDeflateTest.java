@@ -0,0 +1,224 @@
+package io.webthings.webthing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoWSD;
+
+public class PerMessageDeflateTest
+{
+    private static final String MESSAGE =
+            "{\"messageType\":\"propertyStatus\",\"data\":{\"temperature\":21.5," +
+                    "\"humidity\":48.25,\"pressure\":1013.2}}";
+
+    @Test
+    public void itNegotiatesContextTakeoverWithinTheBudget()
+    {
+        WebSocketCompression settings = new WebSocketCompression(-1, 0, 1);
+
+        PerMessageDeflate first = PerMessageDeflate.negotiate(
+                "permessage-deflate; client_max_window_bits",
+                settings);
+        assertEquals("permessage-deflate", first.getResponseHeader());
+        assertTrue(first.isServerContextTakeover());
+        assertEquals(1, settings.getActiveContexts());
+
+        PerMessageDeflate second =
+                PerMessageDeflate.negotiate("permessage-deflate", settings);
+        assertEquals("permessage-deflate; server_no_context_takeover; " +
+                             "client_no_context_takeover",
+                     second.getResponseHeader());
+        assertFalse(second.isClientContextTakeover());
+
+        first.release();
+        first.release();
+        second.release();
+        assertEquals(0, settings.getActiveContexts());
+    }
+
+    @Test
+    public void itDeclinesOffersItCanNotHonour()
+    {
+        WebSocketCompression settings = new WebSocketCompression();
+
+        assertNull(PerMessageDeflate.negotiate("x-webkit-deflate-frame",
+                                               settings));
+        assertNull(PerMessageDeflate.negotiate(
+                "permessage-deflate; server_max_window_bits=10",
+                settings));
+        assertNull(PerMessageDeflate.negotiate("permessage-deflate", null));
+        assertEquals("permessage-deflate; server_max_window_bits=15",
+                     PerMessageDeflate.negotiate(
+                             "permessage-deflate; server_max_window_bits=10, " +
+                                     "permessage-deflate; server_max_window_bits=15",
+                             settings).getResponseHeader());
+    }
+
+    @Test
+    public void itCompressesMessagesAboveTheThreshold() throws Exception
+    {
+        PerMessageDeflate compression = PerMessageDeflate.negotiate(
+                "permessage-deflate",
+                new WebSocketCompression(-1, 64, 1));
+
+        NanoWSD.WebSocketFrame small = compression.textFrame("{\"a\":1}");
+        assertEquals("{\"a\":1}", small.getTextPayload());
+
+        // With context takeover, the client inflates every message with the
+        // same inflater
+        Inflater inflater = new Inflater(true);
+        NanoWSD.WebSocketFrame first = compression.textFrame(MESSAGE);
+        NanoWSD.WebSocketFrame second = compression.textFrame(MESSAGE);
+        assertEquals(MESSAGE, inflate(inflater, first.getBinaryPayload()));
+        assertEquals(MESSAGE, inflate(inflater, second.getBinaryPayload()));
+        assertTrue(second.getBinaryPayload().length <
+                           first.getBinaryPayload().length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        first.write(out);
+        assertEquals(0x80 | 0x40 | 0x01, out.toByteArray()[0] & 0xFF);
+
+        compression.release();
+    }
+
+    @Test
+    public void itDecompressesIncomingFrames() throws Exception
+    {
+        PerMessageDeflate compression = PerMessageDeflate.negotiate(
+                "permessage-deflate",
+                new WebSocketCompression());
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        client.write(maskedFrame(0x80 | 0x40 | 0x01,
+                                 deflate(deflater, MESSAGE)));
+        client.write(maskedFrame(0x80 | 0x09, new byte[0]));
+        client.write(maskedFrame(0x80 | 0x40 | 0x01,
+                                 deflate(deflater, MESSAGE)));
+        client.write(maskedFrame(0x80 | 0x01, "plain".getBytes("UTF-8")));
+
+        InputStream in = compression.wrap(session(
+                new ByteArrayInputStream(client.toByteArray())))
+                                    .getInputStream();
+        assertEquals(MESSAGE, NanoWSD.WebSocketFrame.read(in).getTextPayload());
+        assertEquals(NanoWSD.WebSocketFrame.OpCode.Ping,
+                     NanoWSD.WebSocketFrame.read(in).getOpCode());
+        assertEquals(MESSAGE, NanoWSD.WebSocketFrame.read(in).getTextPayload());
+        assertEquals("plain", NanoWSD.WebSocketFrame.read(in).getTextPayload());
+        assertEquals(-1, in.read());
+
+        compression.release();
+    }
+
+    @Test
+    public void itLimitsTheSizeOfWholeFragmentedMessages() throws Exception
+    {
+        PerMessageDeflate compression = PerMessageDeflate.negotiate(
+                "permessage-deflate",
+                new WebSocketCompression());
+
+        // Each fragment is under the limit, but the message is not
+        String fragment = new String(new char[300 * 1024]).replace('\0', 'a');
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        client.write(maskedFrame(0x40 | 0x01,
+                                 deflate(deflater, fragment, false)));
+        for (int i = 0; i < 3; ++i) {
+            client.write(maskedFrame(0x00, deflate(deflater, fragment, false)));
+        }
+
+        InputStream in = compression.wrap(session(
+                new ByteArrayInputStream(client.toByteArray())))
+                                    .getInputStream();
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(fragment.length(),
+                         NanoWSD.WebSocketFrame.read(in)
+                                               .getBinaryPayload().length);
+        }
+        NanoWSD.WebSocketException e =
+                assertThrows(NanoWSD.WebSocketException.class,
+                             () -> NanoWSD.WebSocketFrame.read(in));
+        assertEquals(NanoWSD.WebSocketFrame.CloseCode.MessageTooBig,
+                     e.getCode());
+
+        compression.release();
+    }
+
+    private static String inflate(Inflater inflater, byte[] payload)
+            throws Exception
+    {
+        byte[] input = Arrays.copyOf(payload, payload.length + 4);
+        input[payload.length + 2] = (byte) 0xff;
+        input[payload.length + 3] = (byte) 0xff;
+        inflater.setInput(input);
+
+        byte[] buffer = new byte[1024];
+        int length = inflater.inflate(buffer);
+        return new String(buffer, 0, length, "UTF-8");
+    }
+
+    private static byte[] deflate(Deflater deflater, String message)
+            throws Exception
+    {
+        return deflate(deflater, message, true);
+    }
+
+    private static byte[] deflate(Deflater deflater,
+                                  String message,
+                                  boolean fin)
+            throws Exception
+    {
+        deflater.setInput(message.getBytes("UTF-8"));
+
+        byte[] buffer = new byte[4096];
+        int length = deflater.deflate(buffer, 0, buffer.length,
+                                      Deflater.SYNC_FLUSH);
+        return Arrays.copyOf(buffer, fin ? length - 4 : length);
+    }
+
+    private static byte[] maskedFrame(int head, byte[] payload)
+    {
+        byte[] mask = {1, 2, 3, 4};
+        int header = payload.length <= 125 ? 2 : 4;
+        byte[] frame = new byte[header + 4 + payload.length];
+        frame[0] = (byte) head;
+        if (header == 2) {
+            frame[1] = (byte) (0x80 | payload.length);
+        } else {
+            frame[1] = (byte) (0x80 | 126);
+            frame[2] = (byte) (payload.length >>> 8);
+            frame[3] = (byte) payload.length;
+        }
+        System.arraycopy(mask, 0, frame, header, 4);
+        for (int i = 0; i < payload.length; ++i) {
+            frame[header + 4 + i] = (byte) (payload[i] ^ mask[i % 4]);
+        }
+
+        return frame;
+    }
+
+    private static NanoHTTPD.IHTTPSession session(InputStream in)
+    {
+        return (NanoHTTPD.IHTTPSession) Proxy.newProxyInstance(
+                NanoHTTPD.IHTTPSession.class.getClassLoader(),
+                new Class<?>[]{NanoHTTPD.IHTTPSession.class},
+                (proxy, method, args) -> method.getName()
+                                               .equals("getInputStream") ?
+                                         in :
+                                         null);
+    }
+}
@@ -0,0 +1,77 @@
+package io.webthings.webthing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RateLimitTest
+{
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void itLimitsEachClientAddress()
+    {
+        RateLimit limit = new RateLimit(2, 2, 0, 0);
+        Thing thing = new Thing("urn:dev:rate-test", "Rate");
+
+        assertEquals(0, limit.admit("10.0.0.1", thing, 0));
+        assertEquals(0, limit.admit("10.0.0.1", thing, 0));
+        assertEquals(SECOND / 2, limit.admit("10.0.0.1", thing, 0));
+        assertEquals(SECOND / 4, limit.admit("10.0.0.1", thing, SECOND / 4));
+
+        // Other clients have buckets of their own
+        assertEquals(0, limit.admit("10.0.0.2", thing, SECOND / 4));
+
+        assertEquals(0, limit.admit("10.0.0.1", thing, SECOND / 2));
+        assertEquals(1, RateLimit.retryAfterSeconds(SECOND / 2));
+        assertEquals(2, RateLimit.retryAfterSeconds(SECOND + 1));
+    }
+
+    @Test
+    public void itLimitsEachThingAcrossClients()
+    {
+        RateLimit limit = new RateLimit(10, 10, 1, 2);
+        Thing thing = new Thing("urn:dev:rate-test", "Rate");
+        RateLimit.Bucket socket = limit.newClientBucket();
+
+        assertEquals(0, limit.admit("10.0.0.1", thing, 0));
+        assertEquals(0, limit.admit(socket, thing, 0));
+        assertEquals(SECOND, limit.admit("10.0.0.2", thing, 0));
+
+        // A rejected write takes no token from the client
+        assertEquals(SECOND, limit.admit(socket, thing, 0));
+        for (int i = 0; i < 9; ++i) {
+            assertEquals(0, limit.admit(socket,
+                                        new Thing("urn:dev:other-" + i, "Other"),
+                                        0));
+        }
+
+        // Another thing is not limited by the first one
+        assertTrue(limit.admit(socket,
+                               new Thing("urn:dev:another", "Another"),
+                               0) > 0);
+    }
+
+    @Test
+    public void itBoundsTheNumberOfClients()
+    {
+        RateLimit limit = new RateLimit(1, 1, 0, 0, 2);
+        Thing thing = new Thing("urn:dev:rate-test", "Rate");
+
+        limit.admit("10.0.0.1", thing, 0);
+        limit.admit("10.0.0.2", thing, 0);
+        limit.admit("10.0.0.1", thing, 0);
+        limit.admit("10.0.0.3", thing, 0);
+        assertEquals(2, limit.getClientCount());
+
+        // The least recently active client was dropped
+        assertEquals(0, limit.admit("10.0.0.2", thing, 0));
+        assertTrue(limit.admit("10.0.0.3", thing, 0) > 0);
+
+        assertNull(new RateLimit(0, 0, 1, 1).newClientBucket());
+    }
+}
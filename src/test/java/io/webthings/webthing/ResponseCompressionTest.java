@@ -0,0 +1,83 @@
+package io.webthings.webthing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+public class ResponseCompressionTest
+{
+    @Test
+    public void itSelectsTheAcceptedEncoding()
+    {
+        ResponseCompression compression = new ResponseCompression(-1, 100);
+
+        assertEquals("gzip", compression.selectEncoding("gzip, deflate, br", 100));
+        assertEquals("deflate", compression.selectEncoding("deflate", 100));
+        assertEquals("deflate",
+                     compression.selectEncoding("gzip;q=0.5, deflate", 100));
+        assertEquals("deflate", compression.selectEncoding("gzip;q=0, *", 100));
+        assertEquals("gzip", compression.selectEncoding("*", 100));
+        assertNull(compression.selectEncoding("identity", 100));
+        assertNull(compression.selectEncoding("*;q=0", 100));
+        assertNull(compression.selectEncoding(null, 100));
+        assertNull(compression.selectEncoding("gzip", 99));
+    }
+
+    @Test
+    public void itCompressesBodies() throws Exception
+    {
+        ResponseCompression compression = new ResponseCompression();
+        JSONArray list = new JSONArray();
+        for (int i = 0; i < 100; ++i) {
+            list.put(new Thing("urn:dev:test-" + i, "My TestThing")
+                             .asThingDescription());
+        }
+        byte[] body = list.toString().getBytes(StandardCharsets.UTF_8);
+
+        byte[] gzip = compression.compress(body, "gzip");
+        assertTrue(gzip.length < body.length / 4);
+        assertArrayEquals(body,
+                          readAll(new GZIPInputStream(new ByteArrayInputStream(gzip))));
+
+        byte[] deflate = compression.compress(body, "deflate");
+        assertArrayEquals(body,
+                          readAll(new InflaterInputStream(new ByteArrayInputStream(deflate))));
+    }
+
+    @Test
+    public void itVersionsThingDescriptions() throws Exception
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        int version = thing.getDescriptionVersion();
+
+        thing.addProperty(new Property<>(thing, "on", new BooleanValue(false)));
+        assertTrue(thing.getDescriptionVersion() != version);
+
+        version = thing.getDescriptionVersion();
+        thing.setProperty("on", true);
+        assertEquals(version, thing.getDescriptionVersion());
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+
+        return out.toByteArray();
+    }
+}
@@ -2,17 +2,35 @@ package io.webthings.webthing;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.lang.reflect.Proxy;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoWSD;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Test;
 
+import io.webthings.webthing.errors.ActionError;
 import io.webthings.webthing.errors.PropertyError;
 
 public class ThingTest {
@@ -214,4 +232,855 @@ public class ThingTest {
         thing.setProperty("p", simulateHttpPutProperty("p", "{\"p\":true}"));
         assertTrue(value.get());
     }
+
+    @Test
+    public void itTimestampsActionsAndEventsWithThePluggableClock()
+    {
+        Utils.setClock(Clock.fixed(Instant.parse("2021-01-05T10:20:30Z"),
+                                   ZoneOffset.UTC));
+        try {
+            Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+
+            Action action = new Action("1", thing, "fade");
+            assertEquals("2021-01-05T10:20:30+00:00", action.getTimeRequested());
+            assertNull(action.getTimeCompleted());
+            assertFalse(action.asActionDescription()
+                              .getJSONObject("fade")
+                              .has("timeCompleted"));
+
+            Utils.setClock(Clock.fixed(Instant.parse("2021-01-05T10:20:31.999Z"),
+                                       ZoneOffset.UTC));
+            action.finish();
+            assertEquals("2021-01-05T10:20:31+00:00", action.getTimeCompleted());
+            assertEquals(1609842031999L, action.getTimeCompletedMillis());
+
+            Event<Integer> event = new Event<>(thing, "overheated", 102);
+            assertEquals("2021-01-05T10:20:31+00:00",
+                         event.asEventDescription()
+                              .getJSONObject("overheated")
+                              .getString("timestamp"));
+        } finally {
+            Utils.setClock(null);
+        }
+    }
+
+    @Test
+    public void itCachesSerializedDescriptionsUntilTheyChange()
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+
+        Action action = new Action("1", thing, "fade");
+        String pending = action.asActionDescriptionJson();
+        assertTrue(pending == action.asActionDescriptionJson());
+        assertEquals(action.asActionDescription().toString(), pending);
+
+        action.finish();
+        String completed = action.asActionDescriptionJson();
+        assertFalse(pending.equals(completed));
+        assertEquals("completed",
+                     new JSONObject(completed).getJSONObject("fade")
+                                              .getString("status"));
+
+        thing.addEvent(new Event<>(thing, "overheated", 102));
+        thing.addEvent(new Event<>(thing, "cooled"));
+        assertEquals(thing.getEventDescriptions(null).toString(),
+                     thing.getEventDescriptionsJson(null));
+        assertEquals(thing.getEventDescriptions("cooled").toString(),
+                     thing.getEventDescriptionsJson("cooled"));
+        assertEquals("[]", thing.getActionDescriptionsJson("fade"));
+    }
+
+    @Test
+    public void itKeepsEveryActionAndEventUnderConcurrentWriters()
+            throws Exception
+    {
+        final int writers = 4;
+        final int perWriter = 500;
+
+        // Repeat the race a few times, as jcstress would, to vary interleavings
+        for (int round = 0; round < 5; round++) {
+            Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+            thing.addAvailableAction("count", null, CountAction.class);
+            thing.addAvailableEvent("counted", null);
+            thing.addProperty(new Property<>(thing,
+                                             "level",
+                                             new IntValue(0)));
+
+            ExecutorService executor =
+                    Executors.newFixedThreadPool(writers + 2);
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicBoolean writing = new AtomicBoolean(true);
+            List<Future<?>> results = new ArrayList<>();
+
+            try {
+                List<Future<?>> writes = new ArrayList<>();
+                for (int w = 0; w < writers; w++) {
+                    writes.add(executor.submit(() -> {
+                        start.await();
+                        for (int i = 0; i < perWriter; i++) {
+                            Action action = thing.performAction("count", null);
+                            // The action must be visible as soon as it was
+                            // performed
+                            assertTrue(action == thing.getAction("count",
+                                                                 action.getId()));
+                            thing.addEvent(new Event<>(thing, "counted", i));
+                            thing.setProperty("level", i);
+                        }
+                        return null;
+                    }));
+                }
+
+                // Readers build listings and descriptions while the writers
+                // run; they must always see well-formed documents
+                for (int r = 0; r < 2; r++) {
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        while (writing.get()) {
+                            new JSONArray(thing.getActionDescriptionsJson(null));
+                            new JSONArray(thing.getEventDescriptionsJson("counted"));
+                            thing.getActionDescriptions("count");
+                            thing.asThingDescription();
+                            thing.getProperties();
+                        }
+                        return null;
+                    }));
+                }
+
+                start.countDown();
+                for (Future<?> write : writes) {
+                    write.get(30, TimeUnit.SECONDS);
+                }
+                writing.set(false);
+                for (Future<?> result : results) {
+                    result.get(30, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            assertEquals(writers * perWriter,
+                         thing.getActionDescriptions("count").length());
+            assertEquals(writers * perWriter,
+                         new JSONArray(thing.getEventDescriptionsJson(null)).length());
+        }
+    }
+
+    @Test
+    public void itOnlySendsSubscribedPropertiesToFilteredSockets()
+            throws Exception
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        IntValue level = new IntValue(0);
+        Value<Boolean> on = new Value<>(false);
+        thing.addProperty(new Property<>(thing, "level", level));
+        thing.addProperty(new Property<>(thing, "on", on));
+
+        RecordingWebSocket all = new RecordingWebSocket(thing);
+        RecordingWebSocket filtered = new RecordingWebSocket(thing);
+        all.onOpen();
+        filtered.onOpen();
+
+        filtered.receive("{\"messageType\":\"addPropertySubscription\"," +
+                                 "\"data\":{\"on\":{}}}");
+        level.set(1);
+        on.set(true);
+
+        assertEquals(2, all.messages.size());
+        assertEquals(Collections.singletonList(
+                "{\"messageType\":\"propertyStatus\",\"sequence\":" +
+                        thing.getNotificationSequence() +
+                        ",\"data\":{\"on\":true}}"),
+                     filtered.messages);
+
+        filtered.receive("{\"messageType\":\"removePropertySubscription\"," +
+                                 "\"data\":{\"on\":{}}}");
+        on.set(false);
+        assertEquals(3, all.messages.size());
+        assertEquals(1, filtered.messages.size());
+
+        filtered.onClose(NanoWSD.WebSocketFrame.CloseCode.NormalClosure,
+                         null,
+                         true);
+        all.onClose(NanoWSD.WebSocketFrame.CloseCode.NormalClosure,
+                    null,
+                    true);
+        level.set(2);
+        assertEquals(3, all.messages.size());
+    }
+
+    @Test
+    public void itReplaysMissedNotificationsToReconnectingSockets()
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        IntValue level = new IntValue(0);
+        thing.addProperty(new Property<>(thing, "level", level));
+
+        FrameRecordingWebSocket first = new FrameRecordingWebSocket(thing);
+        thing.addSubscriber(first);
+        level.set(1);
+        long last = new JSONObject(first.frames().get(0)).getLong("sequence");
+        assertEquals(thing.getNotificationSequence(), last);
+
+        thing.removeSubscriber(first);
+        level.set(2);
+        level.set(3);
+
+        // The missed notifications are sent together, then live ones follow
+        FrameRecordingWebSocket second = new FrameRecordingWebSocket(thing);
+        thing.addSubscriber(second, last);
+        level.set(4);
+        assertEquals(2, second.frames().size());
+        JSONArray missed = new JSONArray(second.frames().get(0));
+        assertEquals(2, missed.length());
+        for (int i = 0; i < 2; ++i) {
+            assertEquals(last + 1 + i, missed.getJSONObject(i).getLong("sequence"));
+            assertEquals(2 + i,
+                         missed.getJSONObject(i).getJSONObject("data").getInt("level"));
+        }
+        assertEquals(last + 3,
+                     new JSONObject(second.frames().get(1)).getLong("sequence"));
+
+        thing.removeSubscriber(second);
+        thing.setReplayBufferSize(2);
+        level.set(5);
+        level.set(6);
+
+        FrameRecordingWebSocket third = new FrameRecordingWebSocket(thing);
+        thing.addSubscriber(third, last + 3);
+        assertEquals(2, new JSONArray(third.frames().get(0)).length());
+
+        // Too old a gap, or a sequence from before a restart, gets a snapshot
+        for (long sequence : new long[]{last + 2, last + 100, -1}) {
+            FrameRecordingWebSocket ws = new FrameRecordingWebSocket(thing);
+            thing.addSubscriber(ws, sequence);
+            assertEquals(1, ws.frames().size());
+            JSONObject snapshot = new JSONObject(ws.frames().get(0));
+            assertEquals("snapshot", snapshot.getString("messageType"));
+            assertEquals(last + 5, snapshot.getLong("sequence"));
+            assertEquals(6,
+                         snapshot.getJSONObject("data")
+                                 .getJSONObject("properties")
+                                 .getInt("level"));
+        }
+    }
+
+    @Test
+    public void itOnlyReplaysEventsToTheirSubscribers()
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        IntValue level = new IntValue(0);
+        thing.addProperty(new Property<>(thing, "level", level));
+        thing.addAvailableEvent("alarm", null);
+
+        FrameRecordingWebSocket first = new FrameRecordingWebSocket(thing);
+        thing.addSubscriber(first);
+        thing.addEventSubscriber("alarm", first);
+        level.set(1);
+        long last = thing.getNotificationSequence();
+
+        thing.removeSubscriber(first);
+        thing.addEvent(new Event(thing, "alarm"));
+        level.set(2);
+
+        // A socket which just opened has not subscribed to the event
+        FrameRecordingWebSocket second = new FrameRecordingWebSocket(thing);
+        thing.addSubscriber(second, last);
+        assertEquals(1, second.frames().size());
+        JSONObject missed = new JSONObject(second.frames().get(0));
+        assertEquals("propertyStatus", missed.getString("messageType"));
+        assertEquals(last + 2, missed.getLong("sequence"));
+
+        // A snapshot holds everything a client would otherwise fetch
+        thing.setReplayBufferSize(0);
+        FrameRecordingWebSocket third = new FrameRecordingWebSocket(thing);
+        thing.addSubscriber(third, last);
+        JSONObject snapshot = new JSONObject(third.frames().get(0))
+                .getJSONObject("data");
+        assertEquals(2, snapshot.getJSONObject("properties").getInt("level"));
+        assertEquals(0, snapshot.getJSONArray("actions").length());
+        assertTrue(snapshot.getJSONArray("events")
+                           .getJSONObject(0)
+                           .has("alarm"));
+    }
+
+    @Test
+    public void itPatchesPropertiesAndSendsDeltas() throws Exception
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        JSONObject schedule = new JSONObject().put("monday", "08:00")
+                                              .put("tuesday", "09:00");
+        thing.addProperty(new Property<>(thing,
+                                         "schedule",
+                                         new Value<>(schedule),
+                                         new JSONObject().put("type", "object")
+                                                         .put("required",
+                                                              new JSONArray().put("monday"))));
+        RecordingWebSocket full = new RecordingWebSocket(thing);
+        RecordingWebSocket deltas = new RecordingWebSocket(thing);
+        thing.addSubscriber(full);
+        thing.addSubscriber(deltas);
+        deltas.receive("{\"messageType\":\"setPropertyDeltas\"," +
+                               "\"data\":{\"enabled\":true}}");
+
+        thing.patchProperty("schedule",
+                            new JSONObject().put("tuesday", JSONObject.NULL)
+                                            .put("friday", "07:30"));
+        JSONObject value = thing.getProperty("schedule");
+        assertTrue(value.similar(new JSONObject().put("monday", "08:00")
+                                                 .put("friday", "07:30")));
+        assertTrue(schedule.has("tuesday"));
+
+        // Validation applies to the result, not the patch
+        try {
+            thing.patchProperty("schedule",
+                                new JSONObject().put("monday", JSONObject.NULL));
+            throw new AssertionError("Removed a required member");
+        } catch (PropertyError e) {
+            // Expected
+        }
+        assertTrue(((JSONObject) thing.getProperty("schedule")).has("monday"));
+
+        // The first change is sent in full, as the client has no value to
+        // apply a delta to
+        thing.patchProperty("schedule", new JSONObject().put("monday", "06:00"));
+        assertEquals(2, deltas.messages.size());
+        assertEquals("propertyStatus",
+                     new JSONObject(deltas.messages.get(0)).getString("messageType"));
+        JSONObject delta = new JSONObject(deltas.messages.get(1));
+        assertEquals("propertyDelta", delta.getString("messageType"));
+        assertTrue(delta.getJSONObject("data")
+                        .getJSONObject("schedule")
+                        .similar(new JSONObject().put("monday", "06:00")));
+
+        assertEquals(2, full.messages.size());
+        assertTrue(full.messages.stream()
+                                .allMatch(m -> m.contains("\"propertyStatus\"")));
+    }
+
+    @Test
+    public void itHandlesBatchesAndCombinesTheirReplies() throws Exception
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        thing.addProperty(new Property<>(thing,
+                                         "level",
+                                         new Value<>(0),
+                                         new JSONObject().put("type", "integer")
+                                                         .put("maximum", 10)));
+        FrameRecordingWebSocket ws = new FrameRecordingWebSocket(thing);
+        thing.addSubscriber(ws);
+
+        ws.receive("[{\"messageType\":\"setProperty\",\"data\":{\"level\":5}}," +
+                           "{\"messageType\":\"setProperty\",\"data\":{\"level\":11}}," +
+                           "{\"messageType\":\"bogus\",\"data\":{}}," +
+                           "42]");
+        assertEquals(Integer.valueOf(5), thing.getProperty("level"));
+        assertEquals(1, ws.frames().size());
+
+        JSONArray replies = new JSONArray(ws.frames().get(0));
+        assertEquals(4, replies.length());
+        assertEquals("propertyStatus",
+                     replies.getJSONObject(0).getString("messageType"));
+        assertEquals("400 Bad Request",
+                     replies.getJSONObject(1)
+                            .getJSONObject("data")
+                            .getString("status"));
+        assertTrue(replies.getJSONObject(2)
+                          .getJSONObject("data")
+                          .getString("message")
+                          .contains("bogus"));
+        assertEquals("Invalid message",
+                     replies.getJSONObject(3)
+                            .getJSONObject("data")
+                            .getString("message"));
+
+        // Single messages are still answered on their own
+        ws.receive("{\"messageType\":\"setProperty\",\"data\":{\"level\":6}}");
+        assertEquals(2, ws.frames().size());
+        assertEquals("propertyStatus",
+                     new JSONObject(ws.frames().get(1)).getString("messageType"));
+    }
+
+    @Test
+    public void itHoldsOtherNotificationsInOrderDuringABatch() throws Exception
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        IntValue other = new IntValue(0);
+        thing.addProperty(new Property<>(thing, "level", new IntValue(0)));
+        thing.addProperty(new Property<>(thing, "other", other));
+        thing.addProperty(new Property<>(thing,
+                                         "trigger",
+                                         new Value<Integer>(0, (value) -> {
+                                             Thread thread =
+                                                     new Thread(() -> other.set(value));
+                                             thread.start();
+                                             try {
+                                                 thread.join();
+                                             } catch (InterruptedException e) {
+                                                 Thread.currentThread().interrupt();
+                                             }
+                                         })));
+        FrameRecordingWebSocket ws = new FrameRecordingWebSocket(thing);
+        thing.addSubscriber(ws);
+
+        ws.receive("[{\"messageType\":\"setProperty\",\"data\":{\"level\":1}}," +
+                           "{\"messageType\":\"setProperty\",\"data\":{\"trigger\":2}}]");
+        assertEquals(1, ws.frames().size());
+
+        JSONArray messages = new JSONArray(ws.frames().get(0));
+        assertEquals(3, messages.length());
+        assertEquals(2,
+                     messages.getJSONObject(1)
+                             .getJSONObject("data")
+                             .getInt("other"));
+        for (int i = 1; i < messages.length(); ++i) {
+            assertEquals(messages.getJSONObject(i - 1).getLong("sequence") + 1,
+                         messages.getJSONObject(i).getLong("sequence"));
+        }
+    }
+
+    @Test
+    public void itBatchesNotificationsOnceEnabled() throws Exception
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        Value<Integer> value = new Value<>(0);
+        thing.addProperty(new Property<>(thing,
+                                         "level",
+                                         value,
+                                         new JSONObject().put("type", "integer")));
+        FrameRecordingWebSocket ws = new FrameRecordingWebSocket(thing);
+        thing.addSubscriber(ws);
+
+        ws.receive("{\"messageType\":\"setNotificationBatching\"," +
+                           "\"data\":{\"interval\":100000}}");
+        assertEquals(1, ws.frames().size());
+        assertTrue(ws.frames().get(0).contains("400 Bad Request"));
+
+        ws.receive("{\"messageType\":\"setNotificationBatching\"," +
+                           "\"data\":{\"interval\":5000}}");
+        for (int i = 1; i <= 3; ++i) {
+            value.set(i);
+        }
+        assertEquals(1, ws.frames().size());
+
+        ws.flush();
+        assertEquals(2, ws.frames().size());
+        JSONArray batch = new JSONArray(ws.frames().get(1));
+        assertEquals(3, batch.length());
+        assertEquals(3,
+                     batch.getJSONObject(2)
+                          .getJSONObject("data")
+                          .getInt("level"));
+
+        // Disabling batching sends what is held, and then each message
+        value.set(4);
+        ws.receive("{\"messageType\":\"setNotificationBatching\"," +
+                           "\"data\":{\"interval\":0}}");
+        assertEquals(3, ws.frames().size());
+        value.set(5);
+        assertEquals(4, ws.frames().size());
+        assertEquals("propertyStatus",
+                     new JSONObject(ws.frames().get(3)).getString("messageType"));
+    }
+
+    @Test
+    public void itClosesSocketsWhichFallTooFarBehind() throws Exception
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        IntValue level = new IntValue(0);
+        thing.addProperty(new Property<>(thing, "level", level));
+        CountDownLatch stalled = new CountDownLatch(1);
+        FrameRecordingWebSocket ws = new FrameRecordingWebSocket(thing) {
+            @Override
+            void write(String message) {
+                try {
+                    stalled.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write(message);
+            }
+        };
+        thing.addSubscriber(ws);
+
+        // Notifying does not wait for the client, which is closed once too
+        // many messages are queued for it
+        for (int i = 1; i <= 1100; ++i) {
+            level.set(i);
+        }
+        assertEquals(1, thing.getSubscriberCount());
+
+        stalled.countDown();
+        assertEquals(1, ws.frames().size());
+        assertEquals(0, thing.getSubscriberCount());
+    }
+
+    @Test
+    public void itQueuesActionsAsTheirPolicyAllows() throws Exception
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        thing.addAvailableAction("block",
+                                 null,
+                                 BlockingAction.class,
+                                 ActionPolicy.serialized()
+                                             .withPriority(action -> action.getInput()
+                                                                           .optInt("priority")));
+        RecordingWebSocket ws = new RecordingWebSocket(thing);
+        thing.addSubscriber(ws);
+
+        BlockingAction.gate = new Semaphore(0);
+        BlockingAction.started = Collections.synchronizedList(new ArrayList<>());
+
+        List<Action> actions = new ArrayList<>();
+        for (int priority : new int[]{0, 0, 0, 5}) {
+            Action action = thing.performAction("block",
+                                                new JSONObject().put("priority",
+                                                                     priority));
+            thing.runAction(action);
+            actions.add(action);
+        }
+
+        // The first runs, and the high priority one jumps the queue
+        assertEquals(0, actions.get(0).getQueuePosition());
+        assertEquals(2, actions.get(1).getQueuePosition());
+        assertEquals(3, actions.get(2).getQueuePosition());
+        assertEquals(1, actions.get(3).getQueuePosition());
+        assertEquals(1,
+                     actions.get(3)
+                            .asActionDescription()
+                            .getJSONObject("block")
+                            .getInt("queuePosition"));
+        assertTrue(ws.messages.stream()
+                              .anyMatch(m -> m.contains("\"queuePosition\":3")));
+
+        // A removed action never starts, and the ones behind it move up
+        assertTrue(thing.removeAction("block", actions.get(1).getId()));
+        assertEquals(2, actions.get(2).getQueuePosition());
+
+        BlockingAction.gate.release(3);
+        for (int i = 0; i < 100 && BlockingAction.started.size() < 3; ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList(actions.get(0).getId(),
+                                   actions.get(3).getId(),
+                                   actions.get(2).getId()),
+                     BlockingAction.started);
+        assertEquals(0, actions.get(2).getQueuePosition());
+    }
+
+    @Test
+    public void itCancelsWaitingActionsWhenTheLatestWins() throws Exception
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        thing.addAvailableAction("block",
+                                 null,
+                                 BlockingAction.class,
+                                 ActionPolicy.latestWins());
+
+        BlockingAction.gate = new Semaphore(0);
+        BlockingAction.started = Collections.synchronizedList(new ArrayList<>());
+
+        List<Action> actions = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            Action action = thing.performAction("block", new JSONObject());
+            thing.runAction(action);
+            actions.add(action);
+        }
+
+        assertEquals("cancelled", actions.get(1).getStatus());
+        assertTrue(actions.get(1).getTimeCompleted() != null);
+        assertEquals(1, actions.get(2).getQueuePosition());
+
+        BlockingAction.gate.release(2);
+        for (int i = 0; i < 100 && !"completed".equals(actions.get(2).getStatus()); ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList(actions.get(0).getId(),
+                                   actions.get(2).getId()),
+                     BlockingAction.started);
+        assertEquals("completed", actions.get(2).getStatus());
+    }
+
+    @Test
+    public void itCancelsAndTimesOutRunningActions() throws Exception
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        thing.addAvailableAction("block",
+                                 new JSONObject().put("timeout", 100),
+                                 BlockingAction.class,
+                                 ActionPolicy.serialized());
+
+        BlockingAction.gate = new Semaphore(0);
+        BlockingAction.started = Collections.synchronizedList(new ArrayList<>());
+
+        Action first = thing.performAction("block", new JSONObject());
+        Action second = thing.performAction("block", new JSONObject());
+        thing.runAction(first);
+        thing.runAction(second);
+
+        // The first action ignores interruption, but its timeout still frees
+        // the slot for the second
+        for (int i = 0; i < 100 && BlockingAction.started.size() < 2; ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals("timeout", first.getStatus());
+        assertTrue(first.isCancelled());
+        assertEquals(Arrays.asList(first.getId(), second.getId()),
+                     BlockingAction.started);
+
+        assertTrue(thing.removeAction("block", second.getId()));
+        assertEquals("cancelled", second.getStatus());
+        assertNull(thing.getAction("block", second.getId()));
+
+        // Finishing late does not overwrite the final status
+        BlockingAction.gate.release(2);
+        Thread.sleep(50);
+        assertEquals("timeout", first.getStatus());
+        assertEquals("cancelled", second.getStatus());
+    }
+
+    @Test
+    public void itFinishesFailedActionsAndFreesTheirSlot() throws Exception
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        thing.addAvailableAction("fail",
+                                 null,
+                                 FailingAction.class,
+                                 ActionPolicy.serialized());
+        RecordingWebSocket ws = new RecordingWebSocket(thing);
+        thing.addSubscriber(ws);
+
+        List<Action> actions = new ArrayList<>();
+        for (String failure : new String[]{"exception", "error", "none"}) {
+            Action action = thing.performAction("fail",
+                                                new JSONObject().put("failure",
+                                                                     failure));
+            thing.runAction(action);
+            actions.add(action);
+        }
+
+        for (int i = 0; i < 100 && !"completed".equals(actions.get(2).getStatus()); ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals("error", actions.get(0).getStatus());
+        assertEquals("error", actions.get(1).getStatus());
+        assertEquals("completed", actions.get(2).getStatus());
+        for (Action action : actions) {
+            assertTrue(action.getTimeCompleted() != null);
+        }
+        assertTrue(thing.getActiveActions().isEmpty());
+        assertTrue(ws.messages.stream()
+                              .anyMatch(m -> m.contains("\"status\":\"error\"")));
+    }
+
+    @Test
+    public void itReturnsTheActionCreatedWithAnIdempotencyKey() throws Exception
+    {
+        Utils.setClock(Clock.fixed(Instant.parse("2021-01-05T10:20:30Z"),
+                                   ZoneOffset.UTC));
+        try {
+            Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+            thing.addAvailableAction("count", null, CountAction.class);
+            thing.setIdempotencyKeyLimits(2, 1000);
+
+            Action first = thing.performAction("count", null, "a");
+            assertTrue(first == thing.performAction("count", null, "a"));
+            assertTrue(thing.runAction(first));
+            assertFalse(thing.runAction(first));
+            assertTrue(first != thing.performAction("count", null, null));
+
+            // Keys expire, and only the latest ones are kept
+            Action second = thing.performAction("count", null, "b");
+            thing.performAction("count", null, "c");
+            assertTrue(second == thing.performAction("count", null, "b"));
+            assertTrue(first != thing.performAction("count", null, "a"));
+
+            Utils.setClock(Clock.fixed(Instant.parse("2021-01-05T10:20:31Z"),
+                                       ZoneOffset.UTC));
+            assertTrue(second != thing.performAction("count", null, "b"));
+
+            // Retried websocket requests do not create another action
+            RecordingWebSocket ws = new RecordingWebSocket(thing);
+            int count = thing.getActionDescriptions("count").length();
+            for (int i = 0; i < 2; ++i) {
+                ws.receive("{\"messageType\":\"requestAction\",\"data\":" +
+                                   "{\"count\":{\"idempotencyKey\":\"d\"}}}");
+            }
+            assertEquals(count + 1,
+                         thing.getActionDescriptions("count").length());
+        } finally {
+            Utils.setClock(null);
+        }
+    }
+
+    @Test
+    public void itOnlyHoldsUpRequestsWithTheSameIdempotencyKey()
+            throws Exception
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        IdempotencyCache cache = new IdempotencyCache(16, 60 * 1000);
+        CountDownLatch creating = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Action slow = new CountAction(thing, null);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Action> first = executor.submit(() -> cache.get("a", () -> {
+                creating.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return slow;
+            }));
+            assertTrue(creating.await(5, TimeUnit.SECONDS));
+
+            // Another key is not held up by the action being created
+            Action other = new CountAction(thing, null);
+            assertTrue(other == cache.get("b", () -> other));
+
+            // A retry with the same key waits for it, and creates none
+            Future<Action> retry = executor.submit(
+                    () -> cache.get("a", () -> new CountAction(thing, null)));
+            Thread.sleep(50);
+            assertFalse(retry.isDone());
+
+            release.countDown();
+            assertTrue(slow == first.get(5, TimeUnit.SECONDS));
+            assertTrue(slow == retry.get(5, TimeUnit.SECONDS));
+
+            // A request which creates no action leaves the key unused
+            assertNull(cache.get("c", () -> null));
+            assertTrue(other == cache.get("c", () -> other));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void itCreatesActionsWithFactories()
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        thing.addAvailableAction("count", null, CountAction::new);
+        thing.addAvailableAction("fail", null, (t, input) -> {
+            throw new IllegalStateException("Hardware unavailable");
+        });
+
+        Action action = thing.performAction("count", null);
+        assertTrue(action instanceof CountAction);
+        assertTrue(action == thing.getAction("count", action.getId()));
+
+        try {
+            thing.performAction("fail", null);
+            throw new AssertionError("Created a failing action");
+        } catch (ActionError e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(0, thing.getActionDescriptions("fail").length());
+
+        // Classes are checked when they are added, not on every request
+        try {
+            thing.addAvailableAction("broken", null, Action.class);
+            throw new AssertionError("Added an action without a constructor");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public static class BlockingAction extends Action {
+        static volatile Semaphore gate;
+        static volatile List<String> started;
+
+        public BlockingAction(Thing thing, JSONObject input) {
+            super(UUID.randomUUID().toString(), thing, "block", input);
+        }
+
+        @Override
+        public void performAction() {
+            started.add(this.getId());
+            gate.acquireUninterruptibly();
+        }
+    }
+
+    public static class FailingAction extends Action {
+        public FailingAction(Thing thing, JSONObject input) {
+            super(UUID.randomUUID().toString(), thing, "fail", input);
+        }
+
+        @Override
+        public void performAction() {
+            switch (this.getInput().getString("failure")) {
+                case "exception":
+                    throw new IllegalStateException("Failed");
+                case "error":
+                    throw new AssertionError("Failed");
+                default:
+                    break;
+            }
+        }
+    }
+
+    public static class CountAction extends Action {
+        public CountAction(Thing thing, JSONObject input) {
+            super(UUID.randomUUID().toString(), thing, "count", input);
+        }
+    }
+
+    /**
+     * A websocket which records the messages sent to it instead of writing
+     * them to a connection.
+     */
+    private static class FrameRecordingWebSocket
+            extends WebThingServer.ThingHandler.ThingWebSocket {
+        private final List<String> frames = new ArrayList<>();
+
+        FrameRecordingWebSocket(Thing thing) {
+            super(thing,
+                  (NanoHTTPD.IHTTPSession) Proxy.newProxyInstance(
+                          NanoHTTPD.IHTTPSession.class.getClassLoader(),
+                          new Class<?>[]{NanoHTTPD.IHTTPSession.class},
+                          (proxy, method, args) -> null));
+        }
+
+        void receive(String message) throws Exception {
+            this.onMessage(new NanoWSD.WebSocketFrame(NanoWSD.WebSocketFrame.OpCode.Text,
+                                                      true,
+                                                      message));
+        }
+
+        List<String> frames() {
+            assertTrue(this.awaitWritten(System.nanoTime() +
+                                                 TimeUnit.SECONDS.toNanos(5)));
+            return this.frames;
+        }
+
+        @Override
+        void write(String message) {
+            this.frames.add(message);
+        }
+    }
+
+    private static class RecordingWebSocket
+            extends WebThingServer.ThingHandler.ThingWebSocket {
+        private final List<String> messages = new ArrayList<>();
+
+        RecordingWebSocket(Thing thing) {
+            super(thing,
+                  (NanoHTTPD.IHTTPSession) Proxy.newProxyInstance(
+                          NanoHTTPD.IHTTPSession.class.getClassLoader(),
+                          new Class<?>[]{NanoHTTPD.IHTTPSession.class},
+                          (proxy, method, args) -> null));
+        }
+
+        void receive(String message) throws Exception {
+            this.onMessage(new NanoWSD.WebSocketFrame(NanoWSD.WebSocketFrame.OpCode.Text,
+                                                      true,
+                                                      message));
+        }
+
+        @Override
+        public void sendMessage(String message) {
+            this.messages.add(message);
+        }
+    }
 }
@@ -1,11 +1,19 @@
 package io.webthings.webthing;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Observer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -49,4 +57,193 @@ public class ValueTest {
         ex = assertThrows(NullPointerException.class, () -> new Value<Boolean>(null, true, bool -> {}));
         assertEquals("The base type of a value must not be null.", ex.getMessage());
     }
+
+    @Test
+    public void itNotifiesListenersOnlyOnPrimitiveChanges()
+    {
+        AtomicInteger notifications = new AtomicInteger();
+
+        IntValue intValue = new IntValue(1);
+        intValue.addListener(v -> notifications.incrementAndGet());
+        intValue.notifyOfExternalUpdate(1);
+        assertEquals(0, notifications.get());
+        intValue.notifyOfExternalUpdate(2);
+        assertEquals(1, notifications.get());
+        assertEquals(2, intValue.getInt());
+        assertEquals(Integer.valueOf(2), intValue.get());
+
+        DoubleValue doubleValue = new DoubleValue(Double.NaN);
+        doubleValue.addListener(v -> notifications.incrementAndGet());
+        doubleValue.notifyOfExternalUpdate(Double.NaN);
+        assertEquals(1, notifications.get());
+        doubleValue.notifyOfExternalUpdate(-0.0);
+        assertEquals(2, notifications.get());
+
+        BooleanValue booleanValue = new BooleanValue(false);
+        Value.Listener listener = v -> notifications.incrementAndGet();
+        booleanValue.addListener(listener);
+        booleanValue.set(true);
+        assertEquals(3, notifications.get());
+        booleanValue.removeListener(listener);
+        booleanValue.set(false);
+        assertEquals(3, notifications.get());
+        assertFalse(booleanValue.getBoolean());
+    }
+
+    @Test
+    public void itForwardsPrimitiveValues()
+    {
+        long[] forwarded = new long[1];
+        LongValue longValue = new LongValue(0L, v -> forwarded[0] = v);
+        longValue.set(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, forwarded[0]);
+        assertEquals(Long.MAX_VALUE, longValue.getLong());
+
+        longValue.set(Long.valueOf(7L));
+        assertEquals(7L, forwarded[0]);
+        assertEquals(Long.class, longValue.getBaseType());
+    }
+
+    @Test
+    public void itSerializesPrimitiveValuesAsJson()
+    {
+        StringBuilder builder = new StringBuilder();
+        new IntValue(-42).appendJson(builder);
+        builder.append(',');
+        new BooleanValue(true).appendJson(builder);
+        builder.append(',');
+        new DoubleValue(Double.POSITIVE_INFINITY).appendJson(builder);
+        builder.append(',');
+        new Value<>("text").appendJson(builder);
+        assertEquals("-42,true,null,\"text\"", builder.toString());
+
+        JSONArray parsed = new JSONArray("[" + builder + "]");
+        assertTrue(parsed.isNull(2));
+    }
+
+    @Test
+    public void itStillSupportsObservers()
+    {
+        List<Object> received = new ArrayList<>();
+        Observer observer = (o, arg) -> received.add(arg);
+
+        Value<String> value = new Value<>("a");
+        value.addObserver(observer);
+        value.set("b");
+        assertEquals(Collections.singletonList("b"), received);
+        assertEquals(1, value.countListeners());
+
+        value.deleteObserver(observer);
+        value.set("c");
+        assertEquals(Collections.singletonList("b"), received);
+        assertEquals(0, value.countListeners());
+    }
+
+    @Test
+    public void itPublishesConcurrentUpdatesConsistently() throws InterruptedException
+    {
+        final int writers = 4;
+        final int updates = 10000;
+        AtomicInteger notifications = new AtomicInteger();
+        Set<Object> observed = ConcurrentHashMap.newKeySet();
+        IntValue value = new IntValue(-1);
+        value.addListener(v -> notifications.incrementAndGet());
+        value.addObserver((o, arg) -> observed.add(arg));
+
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; ++w) {
+            final int offset = w * updates;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < updates; ++i) {
+                    value.set(offset + i);
+                }
+            }));
+        }
+
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Every set is a change with respect to the previously published
+        // value unless another writer published the same value, which cannot
+        // happen here.
+        assertEquals(writers * updates, notifications.get());
+        assertEquals(updates - 1, value.getInt() % updates);
+
+        // Observers are handed each value stored, once
+        assertEquals(writers * updates, observed.size());
+    }
+
+    @Test
+    public void itSuppressesChangesWithinTheDeadband()
+    {
+        AtomicInteger notifications = new AtomicInteger();
+        DoubleValue value = new DoubleValue(20.0,
+                                            null,
+                                            new ChangeFilter(0.1, 0, 0, 0));
+        value.addListener(v -> notifications.incrementAndGet());
+
+        value.notifyOfExternalUpdate(20.01);
+        assertEquals(1, notifications.get());
+
+        value.notifyOfExternalUpdate(20.05);
+        value.notifyOfExternalUpdate(19.98);
+        assertEquals(1, notifications.get());
+        assertEquals(2, value.getSuppressedNotifications());
+        assertEquals(19.98, value.getDouble(), 0);
+
+        value.notifyOfExternalUpdate(20.2);
+        assertEquals(2, notifications.get());
+    }
+
+    @Test
+    public void itAppliesRelativeDeadbandsAndIntervals() throws InterruptedException
+    {
+        AtomicInteger notifications = new AtomicInteger();
+        Value<Integer> value = new Value<>(Integer.class,
+                                           100,
+                                           null,
+                                           new ChangeFilter(0, 0.05, 0, 200));
+        value.addListener(v -> notifications.incrementAndGet());
+
+        value.notifyOfExternalUpdate(101);
+        assertEquals(1, notifications.get());
+        value.notifyOfExternalUpdate(104);
+        assertEquals(1, notifications.get());
+
+        // Once the maximum interval passed, even an unchanged reading is
+        // notified as a heartbeat.
+        Thread.sleep(250);
+        value.notifyOfExternalUpdate(104);
+        assertEquals(2, notifications.get());
+
+        value.setChangeFilter(new ChangeFilter(0, 0, 60000, 0));
+        value.notifyOfExternalUpdate(1);
+        value.notifyOfExternalUpdate(2);
+        assertEquals(3, notifications.get());
+        assertEquals(Integer.valueOf(2), value.get());
+    }
+
+    @Test
+    public void itReadsChangeFiltersFromPropertyMetadata()
+    {
+        Thing thing = new Thing("urn:dev:test-123", "My TestThing");
+        DoubleValue value = new DoubleValue(0.0);
+        Property<Double> property =
+                new Property<>(thing,
+                               "p",
+                               value,
+                               new JSONObject().put("type", "number")
+                                               .put("deadband", 0.5)
+                                               .put("minInterval", 10));
+
+        assertEquals(0.5, value.getChangeFilter().getAbsoluteDeadband(), 0);
+        assertEquals(10, value.getChangeFilter().getMinInterval());
+
+        value.notifyOfExternalUpdate(1.0);
+        value.notifyOfExternalUpdate(1.1);
+        assertEquals(1, property.getSuppressedNotifications());
+        assertEquals(1.1, property.getValue(), 0);
+    }
 }
@@ -0,0 +1,375 @@
+package io.webthings.webthing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+
+public class WebThingServerTest
+{
+    private static final String SUBSCRIBERS =
+            "webthing_websocket_subscribers{thing=\"urn:dev:server-test\"}";
+
+    private static int freePort() throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static WebThingServer startServer(WebThingServer.ThingsType things,
+                                              List<WebThingServer.Route> routes)
+            throws IOException
+    {
+        WebThingServer server =
+                new WebThingServer(things,
+                                   freePort(),
+                                   null,
+                                   null,
+                                   routes);
+        server.setNetworkCheckInterval(0);
+        server.start(true);
+        return server;
+    }
+
+    private static HttpURLConnection open(WebThingServer server,
+                                          String method,
+                                          String path) throws IOException
+    {
+        return open(server, "localhost", method, path);
+    }
+
+    private static HttpURLConnection open(WebThingServer server,
+                                          String host,
+                                          String method,
+                                          String path) throws IOException
+    {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL("http://" + host + ":" +
+                                                    server.getListeningPort() +
+                                                    path).openConnection();
+        connection.setRequestMethod(method);
+        return connection;
+    }
+
+    private static String body(HttpURLConnection connection) throws IOException
+    {
+        InputStream in = connection.getResponseCode() < 400 ?
+                         connection.getInputStream() :
+                         connection.getErrorStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (in != null) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void itIsReadyForEveryAddressOnceStarted() throws Exception
+    {
+        WebThingServer server = startServer(new WebThingServer.SingleThing(
+                new Thing("urn:dev:server-test", "Server")), null);
+        try {
+            assertTrue(server.whenReady().isDone());
+
+            // Requests are accepted for the interface addresses at once
+            String address = Utils.getAddresses()
+                                  .stream()
+                                  .filter(a -> !a.startsWith("["))
+                                  .findFirst()
+                                  .orElse("127.0.0.1");
+            assertEquals(200,
+                         open(server, address, "GET", "/").getResponseCode());
+            assertEquals(200,
+                         open(server, "localhost", "GET", "/properties")
+                                 .getResponseCode());
+
+            server.whenAdvertised().get(10, TimeUnit.SECONDS);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void itOnlyServesMetricsOnceEnabled() throws Exception
+    {
+        Thing thing = new Thing("urn:dev:server-test", "Server");
+        WebThingServer server =
+                startServer(new WebThingServer.SingleThing(thing), null);
+        try {
+            assertEquals(404, open(server, "GET", "/metrics").getResponseCode());
+
+            server.setMetricsEnabled(true);
+            HttpURLConnection metrics = open(server, "GET", "/metrics");
+            assertEquals(200, metrics.getResponseCode());
+            String exported = body(metrics);
+            assertTrue(exported.contains("# TYPE"));
+            assertTrue(exported.contains(SUBSCRIBERS));
+            assertTrue(exported.contains(
+                    "webthing_http_requests_total{handler=\"none\"," +
+                            "method=\"GET\",status=\"404\"}"));
+
+            server.setMetricsEnabled(false);
+            assertEquals(404, open(server, "GET", "/metrics").getResponseCode());
+        } finally {
+            server.stop();
+        }
+
+        // A stopped server no longer exports its things
+        assertFalse(Metrics.getDefault().export().contains(SUBSCRIBERS));
+
+        // A route of the application's own is never shadowed
+        server = startServer(new WebThingServer.MultipleThings(Arrays.asList(thing),
+                                                               "Things"),
+                             Collections.singletonList(
+                                     new WebThingServer.Route("/metrics",
+                                                              OwnMetricsHandler.class)));
+        try {
+            server.setMetricsEnabled(true);
+            assertEquals("own", body(open(server, "GET", "/metrics")));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void itDrainsBeforeStopping() throws Exception
+    {
+        Thing thing = new Thing("urn:dev:server-test", "Server");
+        thing.addProperty(new Property<>(thing, "level", new Value<>(0)));
+        thing.addAvailableAction("sleep", null, SleepAction.class);
+        WebThingServer server =
+                startServer(new WebThingServer.SingleThing(thing), null);
+        int port = server.getListeningPort();
+
+        RawWebSocket ws = new RawWebSocket(port);
+        Socket keepAlive = new Socket("localhost", port);
+        assertTrue(request(keepAlive, port, "/properties").startsWith("HTTP/1.1 200"));
+
+        Action quick = thing.performAction("sleep", new JSONObject().put("millis", 200));
+        Action slow = thing.performAction("sleep", new JSONObject().put("millis", 30000));
+        thing.runAction(quick);
+        thing.runAction(slow);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<DrainReport> drain =
+                    executor.submit(() -> server.stop(Duration.ofMillis(1500)));
+
+            // New connections are refused at once
+            for (int i = 0; i < 100; ++i) {
+                try (Socket socket = new Socket("localhost", port)) {
+                    Thread.sleep(10);
+                } catch (IOException e) {
+                    break;
+                }
+            }
+
+            // Requests on open connections are answered, but not handled
+            String response = request(keepAlive, port, "/properties");
+            assertTrue(response, response.startsWith("HTTP/1.1 503"));
+            assertTrue(response, response.toLowerCase().contains("connection: close"));
+
+            ws.send("{\"messageType\":\"setProperty\",\"data\":{\"level\":1}}");
+            String message;
+            do {
+                message = ws.receive();
+            } while (message != null && !message.contains("\"error\""));
+            assertTrue(message, message.contains("503 Service Unavailable"));
+            assertEquals(Integer.valueOf(0), thing.getProperty("level"));
+
+            // Websockets are closed once the actions finish or are cancelled
+            while (message != null) {
+                message = ws.receive();
+            }
+            assertEquals(1001, ws.closeCode);
+
+            DrainReport report = drain.get(10, TimeUnit.SECONDS);
+            assertEquals(0, report.getAbandonedRequests());
+            assertEquals(Collections.singletonList(slow),
+                         report.getAbandonedActions());
+            assertEquals(0, report.getUnclosedWebSockets());
+            assertFalse(report.isClean());
+            assertEquals("completed", quick.getStatus());
+            assertEquals("cancelled", slow.getStatus());
+        } finally {
+            executor.shutdownNow();
+            keepAlive.close();
+            ws.socket.close();
+        }
+    }
+
+    /**
+     * Send a GET request on an open connection, and read the status line and
+     * headers of the response.
+     */
+    private static String request(Socket socket, int port, String path)
+            throws IOException
+    {
+        socket.getOutputStream()
+              .write(("GET " + path + " HTTP/1.1\r\nHost: localhost:" + port +
+                      "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        InputStream in = socket.getInputStream();
+        String head = readHead(in);
+        Matcher length = Pattern.compile("(?i)content-length: *(\\d+)")
+                                .matcher(head);
+        if (length.find()) {
+            for (int n = Integer.parseInt(length.group(1)); n > 0; --n) {
+                in.read();
+            }
+        }
+        return head;
+    }
+
+    private static String readHead(InputStream in) throws IOException
+    {
+        StringBuilder head = new StringBuilder();
+        while (head.indexOf("\r\n\r\n") < 0) {
+            int b = in.read();
+            if (b < 0) {
+                break;
+            }
+            head.append((char) b);
+        }
+        return head.toString();
+    }
+
+    /**
+     * A minimal websocket client.
+     */
+    private static class RawWebSocket
+    {
+        private final Socket socket;
+        private final DataInputStream in;
+        private int closeCode;
+
+        RawWebSocket(int port) throws IOException
+        {
+            this.socket = new Socket("localhost", port);
+            this.socket.setSoTimeout(10000);
+            this.socket.getOutputStream()
+                       .write(("GET / HTTP/1.1\r\nHost: localhost:" + port +
+                               "\r\nUpgrade: websocket\r\nConnection: Upgrade" +
+                               "\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==" +
+                               "\r\nSec-WebSocket-Version: 13\r\n\r\n")
+                                      .getBytes(StandardCharsets.UTF_8));
+            this.in = new DataInputStream(this.socket.getInputStream());
+            assertTrue(readHead(this.in).startsWith("HTTP/1.1 101"));
+        }
+
+        void send(String text) throws IOException
+        {
+            this.sendFrame(0x81, text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void sendFrame(int opcode, byte[] payload) throws IOException
+        {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            frame.write(opcode);
+            frame.write(0x80 | payload.length);
+            byte[] mask = {1, 2, 3, 4};
+            frame.write(mask);
+            for (int i = 0; i < payload.length; ++i) {
+                frame.write(payload[i] ^ mask[i % 4]);
+            }
+            this.socket.getOutputStream().write(frame.toByteArray());
+        }
+
+        /**
+         * Read the next text message, answering a close frame.
+         *
+         * @return The message, or null once the connection was closed.
+         */
+        String receive() throws IOException
+        {
+            while (true) {
+                int opcode = this.in.readUnsignedByte() & 0x0f;
+                int length = this.in.readUnsignedByte() & 0x7f;
+                if (length == 126) {
+                    length = this.in.readUnsignedShort();
+                }
+                byte[] payload = new byte[length];
+                this.in.readFully(payload);
+
+                if (opcode == 0x8) {
+                    this.closeCode = ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+                    this.sendFrame(0x88, Arrays.copyOf(payload, 2));
+                    return null;
+                }
+
+                if (opcode == 0x1) {
+                    return new String(payload, StandardCharsets.UTF_8);
+                }
+            }
+        }
+    }
+
+    public static class SleepAction extends Action
+    {
+        public SleepAction(Thing thing, JSONObject input)
+        {
+            super(UUID.randomUUID().toString(), thing, "sleep", input);
+        }
+
+        @Override
+        public void performAction()
+        {
+            try {
+                Thread.sleep(this.getInput().getLong("millis"));
+            } catch (InterruptedException e) {
+                // Cancelled
+            }
+        }
+    }
+
+    public static class OwnMetricsHandler extends RouterNanoHTTPD.DefaultHandler
+    {
+        @Override
+        public String getText()
+        {
+            return "own";
+        }
+
+        @Override
+        public String getMimeType()
+        {
+            return NanoHTTPD.MIME_PLAINTEXT;
+        }
+
+        @Override
+        public NanoHTTPD.Response.IStatus getStatus()
+        {
+            return NanoHTTPD.Response.Status.OK;
+        }
+    }
+}